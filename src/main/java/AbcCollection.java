@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Works with ABC files holding whole collections of tunes.  Tunes are read with AbcReader and
+ * harmonized in parallel, each by its own InferenceEngine.  The collection's index records the
+ * byte offset and length of every tune, so a single tune can be read back (and harmonized
+ * again) with AbcReader.readTune without scanning the file.
+ *
+ * <p>The index is a text file with one tab-separated line per tune:
+ * X: number, offset, length and title.
+ */
+public class AbcCollection
+{
+    private static final String TAB = "\t";
+
+    /**
+     * Read every tune of an ABC file.
+     *
+     * @param file the ABC file
+     * @return the tunes, in file order
+     */
+    public static List<AbcTune> read(File file) throws IOException
+    {
+        List<AbcTune> tunes = new ArrayList<AbcTune>();
+        InputStream in = new FileInputStream(file);
+        try {
+            AbcReader reader = new AbcReader(in);
+            AbcTune tune;
+            while((tune = reader.next()) != null)
+                tunes.add(tune);
+        }
+        finally {
+            in.close();
+        }
+        return tunes;
+    }
+
+    /**
+     * Harmonize every tune, spreading the tunes over a pool of threads.  Each tune gets its
+     * chords or its error message set.
+     *
+     * @param tunes    the tunes to harmonize
+     * @param threads  the number of threads to use
+     * @return the number of tunes harmonized successfully
+     */
+    public static int harmonizeAll(List<AbcTune> tunes, int threads) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(tunes.size());
+        try {
+            for(final AbcTune tune : tunes)
+            {
+                results.add(pool.submit(() -> harmonize(tune)));
+            }
+
+            int harmonized = 0;
+            for(int i = 0; i < results.size(); i++)
+            {
+                try {
+                    if(results.get(i).get().booleanValue())
+                        harmonized++;
+                }
+                catch(ExecutionException e) {
+                    tunes.get(i).setError("Harmonization failed: " + e.getCause());
+                }
+            }
+            return harmonized;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Harmonize every tune using one thread per available processor.
+     */
+    public static int harmonizeAll(List<AbcTune> tunes) throws InterruptedException
+    {
+        return harmonizeAll(tunes, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Harmonize one tune, setting its chords or its error message.  A tune without a key
+     * HarmoGen knows is harmonized in the key KeyDetector finds for it.
+     *
+     * @return true if the tune was harmonized
+     */
+    public static boolean harmonize(AbcTune tune)
+    {
+        Key key = tune.getKey();
+        if(key == null)
+            key = HarmonyService.detectKey(tune.getNotes());
+        InferenceEngine engine = new InferenceEngine(tune.getNotes(), key);
+        if(engine.checkForError())
+        {
+            tune.setError(engine.getErrorMessage());
+            return false;
+        }
+        tune.setChords(engine.getChords());
+        tune.setError(null);
+        return true;
+    }
+
+    /**
+     * Write the offset index of a collection.
+     *
+     * @param tunes  the tunes, as read from the ABC file
+     * @param index  the index file to write
+     */
+    public static void writeIndex(List<AbcTune> tunes, File index) throws IOException
+    {
+        Writer out = new BufferedWriter(new FileWriter(index));
+        try {
+            for(AbcTune tune : tunes)
+            {
+                out.write(tune.getNumber() + TAB + tune.getOffset() + TAB + tune.getLength()
+                        + TAB + tune.getTitle().replace('\t', ' '));
+                out.write('\n');
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index written by writeIndex.  The entries have no notes or key; use
+     * AbcReader.readTune to load the tune an entry points to.
+     *
+     * @param index the index file
+     * @return one entry per tune, in file order
+     */
+    public static List<AbcTune> readIndex(File index) throws IOException
+    {
+        List<AbcTune> entries = new ArrayList<AbcTune>();
+        BufferedReader in = new BufferedReader(new FileReader(index));
+        try {
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String[] fields = line.split(TAB, 4);
+                if(fields.length < 3)
+                    continue;
+                entries.add(new AbcTune(Integer.parseInt(fields[0]), fields.length > 3 ? fields[3] : "",
+                        null, null, Long.parseLong(fields[1]), Integer.parseInt(fields[2])));
+            }
+        }
+        finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Find a tune in the index by its X: number, read it from the ABC file and harmonize it.
+     *
+     * @param abcFile  the ABC file the index was written for
+     * @param index    the index file
+     * @param number   the X: number of the tune
+     * @return the harmonized tune (check getError()), or null if the index has no such tune
+     */
+    public static AbcTune reharmonize(File abcFile, File index, int number) throws IOException
+    {
+        for(AbcTune entry : readIndex(index))
+        {
+            if(entry.getNumber() == number)
+            {
+                AbcTune tune = AbcReader.readTune(abcFile, entry.getOffset(), entry.getLength());
+                harmonize(tune);
+                return tune;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,416 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the tunes of an ABC file one at a time, so collections with thousands of tunes can be
+ * processed without loading the whole file.  A tune starts at its X: field and ends at a blank
+ * line, the next X: field or the end of the file.
+ *
+ * <p>Only the melody is kept: the first voice of a multi-voice tune, the highest note of a
+ * chord, and one note for tied notes.  Decorations, annotations, grace notes and rests are
+ * skipped.  Chord symbols in the melody voice are kept separately, in order.  Notes take
+ * their accidentals from the key signature and from earlier accidentals in the same bar,
+ * then go through Utilities.convertABCtoHG.
+ */
+public class AbcReader
+{
+    private static final int NONE = 0;
+    private static final int NATURAL = 2;
+
+    private InputStream in;
+    private long position;			//bytes read so far, counted from the start of the file
+    private long lineStart;			//offset of the line last returned by readLine
+    private byte[] line = new byte[256];
+
+    private String pendingLine;		//an X: line read while finishing the previous tune
+    private long pendingOffset;
+
+    /**
+     * @param in the ABC file, positioned at its start
+     */
+    public AbcReader(InputStream in)
+    {
+        this(in, 0);
+    }
+
+    /**
+     * @param in      part of an ABC file
+     * @param offset  where in the file the stream starts, so tune offsets are file offsets
+     */
+    public AbcReader(InputStream in, long offset)
+    {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536);
+        position = offset;
+    }
+
+    /**
+     * Read a single tune back using its offset and length, e.g. from an AbcCollection index,
+     * without scanning the rest of the file.
+     */
+    public static AbcTune readTune(File file, long offset, int length) throws IOException
+    {
+        byte[] tune = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(tune);
+        }
+        finally {
+            raf.close();
+        }
+        return new AbcReader(new ByteArrayInputStream(tune), offset).next();
+    }
+
+    /**
+     * @return the next tune in the file, or null at the end of the file
+     */
+    public AbcTune next() throws IOException
+    {
+        String text;
+        long start;
+        do {
+            if(pendingLine != null)
+            {
+                text = pendingLine;
+                start = pendingOffset;
+                pendingLine = null;
+            }
+            else
+            {
+                text = readLine();
+                if(text == null)
+                    return null;
+                start = lineStart;
+            }
+        } while(!isField(text, 'X'));
+
+        int number = 0;
+        try {
+            number = Integer.parseInt(text.substring(2).trim());
+        }
+        catch(NumberFormatException e) {
+            //X: should be a number, but a missing one doesn't stop us reading the tune
+        }
+
+        String title = null;
+        Key key = null;
+        boolean inHeader = true;
+        String melodyVoice = null;
+        String currentVoice = null;
+        MelodyBuilder melody = null;
+        long end = position;
+
+        while((text = readLine()) != null)
+        {
+            if(isField(text, 'X'))
+            {
+                pendingLine = text;
+                pendingOffset = lineStart;
+                break;
+            }
+            if(text.trim().length() == 0)
+                break;
+            end = position;
+
+            if(text.startsWith("%"))
+                continue;
+            if(isField(text))
+            {
+                char field = text.charAt(0);
+                String value = text.substring(2).trim();
+                if(field == 'V')
+                {
+                    String voice = firstWord(value);
+                    if(melodyVoice == null)
+                        melodyVoice = voice;
+                    currentVoice = inHeader ? melodyVoice : voice;
+                }
+                else if(inHeader && field == 'T' && title == null)
+                {
+                    title = value;
+                }
+                else if(inHeader && field == 'K')
+                {
+                    key = Key.parse(value);
+                    melody = new MelodyBuilder(key);
+                    inHeader = false;
+                }
+                continue;
+            }
+            if(!inHeader && (melodyVoice == null || melodyVoice.equals(currentVoice)))
+                melody.addLine(text);
+        }
+
+        return new AbcTune(number, title == null ? "" : title, key,
+                melody == null ? "" : melody.toString(),
+                melody == null ? "" : melody.getChordSymbols(), start, (int)(end - start));
+    }
+
+    /**
+     * Read one line, without its line terminator, keeping track of byte offsets.
+     *
+     * @return the line, or null at the end of the input
+     */
+    private String readLine() throws IOException
+    {
+        lineStart = position;
+        int length = 0;
+        int b;
+        while((b = in.read()) >= 0)
+        {
+            position++;
+            if(b == '\n')
+                break;
+            if(length == line.length)
+            {
+                byte[] longer = new byte[line.length * 2];
+                System.arraycopy(line, 0, longer, 0, length);
+                line = longer;
+            }
+            line[length++] = (byte)b;
+        }
+        if(b < 0 && length == 0)
+            return null;
+        if(length > 0 && line[length - 1] == '\r')
+            length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isField(String text)
+    {
+        return text.length() >= 2 && text.charAt(1) == ':' && Character.isLetter(text.charAt(0));
+    }
+
+    private static boolean isField(String text, char field)
+    {
+        return isField(text) && text.charAt(0) == field;
+    }
+
+    private static String firstWord(String text)
+    {
+        int end = 0;
+        while(end < text.length() && !Character.isWhitespace(text.charAt(end)))
+            end++;
+        return text.substring(0, end);
+    }
+
+    /**
+     * Turns the body lines of one tune into a HarmoGen note string.
+     */
+    private static class MelodyBuilder
+    {
+        private Key key;
+        private StringBuilder notes = new StringBuilder();
+        private StringBuilder chordSymbols = new StringBuilder();
+        private int[] barAccidentals = new int[7];	//accidentals written earlier in this bar
+        private String lastNote;
+        private boolean tied;
+
+        //the highest note of the chord being read, if we're inside [ ]
+        private boolean inChord;
+        private String chordNote;
+        private int chordPitch;
+
+        MelodyBuilder(Key key)
+        {
+            this.key = key;
+        }
+
+        void addLine(String text)
+        {
+            int i = 0;
+            int accidental = NONE;
+            while(i < text.length())
+            {
+                char c = text.charAt(i);
+                if(c == '%')
+                    break;
+                switch(c) {
+                case '"':
+                    i = readChordSymbol(text, i);
+                    break;
+                case '!':
+                case '+':
+                    i = skipPast(text, i, c);
+                    break;
+                case '{':
+                    i = skipPast(text, i, '}');
+                    break;
+                case '[':
+                    if(i + 2 < text.length() && Character.isLetter(text.charAt(i + 1))
+                            && text.charAt(i + 2) == ':')
+                    {
+                        i = skipPast(text, i, ']');	//inline field
+                    }
+                    else if(i + 1 < text.length() && (Character.isDigit(text.charAt(i + 1))
+                            || text.charAt(i + 1) == '"'))
+                    {
+                        //a numbered repeat ending, [1 or [2, or one labelled ["text"
+                        i++;
+                        while(i < text.length() && (Character.isDigit(text.charAt(i))
+                                || text.charAt(i) == ',' || text.charAt(i) == '-'))
+                            i++;
+                        if(i < text.length() && text.charAt(i) == '"')
+                            i = skipPast(text, i, '"');
+                    }
+                    else
+                    {
+                        inChord = true;
+                        chordNote = null;
+                        i++;
+                    }
+                    break;
+                case ']':
+                    if(inChord && chordNote != null)
+                        addNote(chordNote);
+                    inChord = false;
+                    i++;
+                    break;
+                case '|':
+                    barAccidentals = new int[7];
+                    i++;
+                    break;
+                case '^':
+                    accidental = Note.SHARP;
+                    i++;
+                    break;
+                case '_':
+                    accidental = Note.FLAT;
+                    i++;
+                    break;
+                case '=':
+                    accidental = NATURAL;
+                    i++;
+                    break;
+                case 'z':
+                case 'x':
+                case 'Z':
+                case 'X':
+                    tied = false;
+                    i++;
+                    break;
+                default:
+                    if((c >= 'A' && c <= 'G') || (c >= 'a' && c <= 'g'))
+                    {
+                        i = readNote(text, i, accidental);
+                        accidental = NONE;
+                    }
+                    else
+                    {
+                        i++;
+                    }
+                }
+            }
+            //a chord left open is a typo; don't let it swallow the next line
+            inChord = false;
+        }
+
+        /**
+         * Read a note starting at its letter, along with its octave marks, length and tie.
+         *
+         * @return the index just past the note
+         */
+        private int readNote(String text, int i, int accidental)
+        {
+            char letter = text.charAt(i);
+            int letterIndex = Character.toUpperCase(letter) - 'A';
+            StringBuilder abcNote = new StringBuilder();
+
+            if(accidental != NONE)
+                barAccidentals[letterIndex] = accidental;
+            else if(barAccidentals[letterIndex] != NONE)
+                accidental = barAccidentals[letterIndex];
+            else if(key != null)
+                accidental = key.getSignatureAccidental(letter);
+
+            if(accidental == Note.SHARP)
+                abcNote.append('^');
+            else if(accidental == Note.FLAT)
+                abcNote.append('_');
+            abcNote.append(letter);
+
+            i++;
+            while(i < text.length() && (text.charAt(i) == '\'' || text.charAt(i) == ','))
+                abcNote.append(text.charAt(i++));
+            while(i < text.length() && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '/'))
+                i++;
+            boolean tieFollows = i < text.length() && text.charAt(i) == '-';
+            if(tieFollows)
+                i++;
+
+            String hgNote = Utilities.convertABCtoHG(abcNote.toString());
+            if(inChord)
+            {
+                int pitch = pitchOf(hgNote);
+                if(chordNote == null || pitch > chordPitch)
+                {
+                    chordNote = hgNote;
+                    chordPitch = pitch;
+                }
+                tied = tieFollows;
+            }
+            else
+            {
+                if(!(tied && hgNote.equals(lastNote)))
+                    addNote(hgNote);
+                tied = tieFollows;
+            }
+            return i;
+        }
+
+        /**
+         * Keep a quoted string if it is a chord symbol, i.e. starts with a note letter rather
+         * than one of the annotation placements (^ _ < > @).
+         *
+         * @return the index just past the closing quote
+         */
+        private int readChordSymbol(String text, int i)
+        {
+            int end = skipPast(text, i, '"');
+            if(i + 1 < text.length() && text.charAt(i + 1) >= 'A' && text.charAt(i + 1) <= 'G')
+            {
+                String symbol = text.substring(i + 1, text.charAt(end - 1) == '"' ? end - 1 : end);
+                if(chordSymbols.length() > 0)
+                    chordSymbols.append(' ');
+                chordSymbols.append(symbol.replace(" ", ""));
+            }
+            return end;
+        }
+
+        String getChordSymbols()
+        {
+            return chordSymbols.toString();
+        }
+
+        private void addNote(String hgNote)
+        {
+            if(notes.length() > 0)
+                notes.append(' ');
+            notes.append(hgNote);
+            lastNote = hgNote;
+        }
+
+        private static int pitchOf(String hgNote)
+        {
+            char tag = hgNote.length() > 2 ? hgNote.charAt(1) : 'n';
+            String octave = hgNote.substring(tag == 'n' ? 1 : 2);
+            return Utilities.findNoteNumber(hgNote.substring(0, 1), Integer.parseInt(octave), tag);
+        }
+
+        private static int skipPast(String text, int i, char close)
+        {
+            int end = text.indexOf(close, i + 1);
+            return end < 0 ? text.length() : end + 1;
+        }
+
+        public String toString()
+        {
+            return notes.toString();
+        }
+    }
+}
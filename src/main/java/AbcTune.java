@@ -0,0 +1,102 @@
+/**
+ * One tune of an ABC file: its header information, its melody as a HarmoGen note string,
+ * and where it sits in the file.  Once harmonized it also holds the result.
+ */
+public class AbcTune
+{
+    private int number;			//the X: reference number
+    private String title = "";	//the first T: field
+    private Key key;				//the K: field, or null if it isn't a key HarmoGen knows
+    private String notes;			//the melody, in HarmoGen notation
+    private String chordSymbols = "";	//the tune's own chord symbols, e.g. "G D7 G"
+    private long offset;			//byte offset of the X: line in the file
+    private int length;			//length of the tune in bytes
+
+    private Chord[] chords;
+    private String error;
+
+    public AbcTune(int number, String title, Key key, String notes, long offset, int length)
+    {
+        this.number = number;
+        this.title = title;
+        this.key = key;
+        this.notes = notes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public AbcTune(int number, String title, Key key, String notes, String chordSymbols,
+            long offset, int length)
+    {
+        this(number, title, key, notes, offset, length);
+        this.chordSymbols = chordSymbols;
+    }
+
+    public int getNumber()
+    {
+        return number;
+    }
+
+    public String getTitle()
+    {
+        return title;
+    }
+
+    public Key getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return the melody as a HarmoGen note string, or null if only the index entry was read
+     */
+    public String getNotes()
+    {
+        return notes;
+    }
+
+    /**
+     * @return the chord symbols written in the tune ("Am", "D7/F#"...) in order, separated by
+     *         spaces; empty if it has none
+     */
+    public String getChordSymbols()
+    {
+        return chordSymbols;
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the harmony, or null if the tune hasn't been harmonized successfully
+     */
+    public Chord[] getChords()
+    {
+        return chords;
+    }
+
+    public void setChords(Chord[] chords)
+    {
+        this.chords = chords;
+    }
+
+    /**
+     * @return why harmonizing this tune failed, or null
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    public void setError(String error)
+    {
+        this.error = error;
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Timing runs for HarmoGen's input and output paths.  Run with the name of a benchmark:
+ *
+ * <pre>
+ *   java Benchmarks scaling [largest melody length]
+ *   java Benchmarks cancel [trials]
+ *   java Benchmarks corpus [chords]
+ * </pre>
+ *
+ * "scaling" reads, converts, parses and renders melodies of growing length and prints the
+ * cost per note at each length.  A linear path keeps that cost flat as the length grows by
+ * factors of ten; a quadratic one grows it tenfold each step.
+ *
+ * <p>"cancel" starts harmonizing a long melody, interrupts it at a random moment and measures
+ * how long the engine takes to notice and give up its thread.
+ *
+ * <p>"corpus" fills a CorpusStore with harmonizations and prints the heap it took alongside
+ * the direct memory, then the cost per chord of scanning it on one thread and on all of them.
+ */
+public class Benchmarks
+{
+    private static final int[] C_MAJOR_SOPRANO = { 60, 62, 64, 65, 67, 69, 71, 72, 74, 76, 77, 79,
+            81, 83, 84 };
+    private static final int NOTES_PER_LINE = 16;
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        String name = args.length > 0 ? args[0] : "scaling";
+
+        if(name.equals("scaling"))
+        {
+            int largest = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            scaling(largest);
+        }
+        else if(name.equals("cancel"))
+        {
+            int trials = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+            cancel(trials);
+        }
+        else if(name.equals("corpus"))
+        {
+            long chords = args.length > 1 ? Long.parseLong(args[1]) : 10000000;
+            corpus(chords);
+        }
+        else
+        {
+            System.out.println("Unknown benchmark: " + name);
+        }
+    }
+
+    /**
+     * Time each stage of the text input and output path for melodies from 1000 notes up to
+     * the given length, growing by factors of ten.
+     */
+    private static void scaling(int largest) throws IOException
+    {
+        Key key = new Key(Key.C_MAJOR, Key.MAJOR);
+
+        //one untimed round so the JIT has compiled everything before measuring
+        scalingRound(key, 1000, false);
+
+        System.out.println("notes       read(ns/note)  convert(ns/note)  parse(ns/note)  render(ns/note)");
+        for(int n = 1000; n <= largest; n *= 10)
+            scalingRound(key, n, true);
+    }
+
+    private static void scalingRound(Key key, int n, boolean print) throws IOException
+    {
+        Random random = new Random(n);
+        int[] pitches = new int[n];
+        for(int i = 0; i < n; i++)
+            pitches[i] = C_MAJOR_SOPRANO[random.nextInt(C_MAJOR_SOPRANO.length)];
+
+        //convert: MIDI note numbers to a note string, as when importing MIDI
+        long start = System.nanoTime();
+        String noteString = Utilities.createNoteString(pitches, key);
+        long convert = System.nanoTime() - start;
+
+        //read: a text file with a line break every few notes
+        String[] tokens = noteString.trim().split(" ");
+        StringBuilder text = new StringBuilder(noteString.length() + n / NOTES_PER_LINE);
+        for(int i = 0; i < tokens.length; i++)
+        {
+            text.append(tokens[i]);
+            text.append(i % NOTES_PER_LINE == NOTES_PER_LINE - 1 ? '\n' : ' ');
+        }
+        start = System.nanoTime();
+        String read = Utilities.readNotes(new StringReader(text.toString()));
+        long readTime = System.nanoTime() - start;
+
+        //parse: the note string into Notes, as the inference engine does
+        start = System.nanoTime();
+        String[] notesAsStrings = read.trim().split("\\s+");
+        Note[] notes = new Note[notesAsStrings.length];
+        for(int i = 0; i < notes.length; i++)
+            notes[i] = new Note(notesAsStrings[i], key);
+        long parse = System.nanoTime() - start;
+
+        //render: a harmony of the same length to the four voice strings
+        Chord[] chords = new Chord[n];
+        for(int i = 0; i < n; i++)
+        {
+            int bass = 46 + random.nextInt(7);
+            chords[i] = new Chord(new Note(bass, key), new Note(bass + 9, key),
+                    new Note(bass + 11, key), notes[i]);
+        }
+        start = System.nanoTime();
+        StringBuilder voice = new StringBuilder(n * 4);
+        for(int v = Chord.SOPRANO; v <= Chord.BASS; v++)
+        {
+            voice.setLength(0);
+            InferenceEngine.writeVoice(chords, v, voice);
+        }
+        long render = System.nanoTime() - start;
+
+        if(print)
+            System.out.println(pad(n, 10) + pad(readTime / n, 15) + pad(convert / n, 18)
+                    + pad(parse / n, 16) + pad(render / n, 17));
+    }
+
+    /**
+     * Interrupt harmonizations part way through and print the distribution of the time from
+     * the interrupt to the engine throwing CancellationException.
+     */
+    private static void cancel(int trials)
+    {
+        Key key = new Key(Key.C_MAJOR, Key.MAJOR);
+        KeyTables tables = new KeyTables(key);
+        Random random = new Random(trials);
+        int[] pitches = new int[2000];
+        for(int i = 0; i < pitches.length; i++)
+            pitches[i] = C_MAJOR_SOPRANO[random.nextInt(C_MAJOR_SOPRANO.length)];
+        pitches[pitches.length - 1] = 72;
+        String melody = Utilities.createNoteString(pitches, key);
+
+        long[] latencies = new long[trials];
+        int measured = 0;
+        int finishedFirst = 0;
+        //the first tenth of the trials are untimed, so the JIT has compiled the engine
+        for(int trial = -trials / 10; trial < trials; trial++)
+        {
+            long[] stopped = new long[1];
+            Thread harmonizer = new Thread(() -> {
+                try {
+                    new InferenceEngine(melody, tables);
+                }
+                catch(CancellationException e) {
+                    stopped[0] = System.nanoTime();
+                }
+                catch(RuntimeException e) {
+                    //a failed search ends the run as surely as a cancelled one; not measured
+                }
+            });
+            harmonizer.start();
+            try {
+                Thread.sleep(1 + random.nextInt(20));
+                long interrupted = System.nanoTime();
+                harmonizer.interrupt();
+                harmonizer.join();
+                if(trial < 0)
+                    continue;
+                if(stopped[0] == 0)
+                    finishedFirst++;
+                else
+                    latencies[measured++] = stopped[0] - interrupted;
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+        }
+
+        Arrays.sort(latencies, 0, measured);
+        System.out.println("trials  cancelled  finished first  p50(us)  p99(us)  max(us)");
+        System.out.println(pad(trials, 6) + pad(measured, 11) + pad(finishedFirst, 16)
+                + pad(percentile(latencies, measured, 0.50) / 1000, 9)
+                + pad(percentile(latencies, measured, 0.99) / 1000, 9)
+                + pad(measured == 0 ? 0 : latencies[measured - 1] / 1000, 9));
+    }
+
+    /**
+     * Store the given number of chords as 32-chord harmonizations, then scan them.
+     */
+    private static void corpus(long chords) throws InterruptedException
+    {
+        Key key = new Key(Key.C_MAJOR, Key.MAJOR);
+        Random random = new Random(chords);
+        Chord[] harmony = new Chord[32];
+        for(int i = 0; i < harmony.length; i++)
+        {
+            int bass = 46 + random.nextInt(7);
+            harmony[i] = new Chord(new Note(bass, key), new Note(bass + 9, key), new Note(bass + 11, key),
+                    new Note(bass + 14, key));
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        CorpusStore store = new CorpusStore();
+        for(long stored = 0; stored < chords; stored += harmony.length)
+            store.add(harmony);
+        long fill = System.nanoTime() - start;
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+        System.out.println("chords      entries  heap(MB)  direct(MB)  add(ns/chord)");
+        System.out.println(pad(store.getChordCount(), 10) + pad(store.size(), 13)
+                + pad(heap >> 20, 10) + pad(store.getAllocatedBytes() >> 20, 12)
+                + pad(fill / store.getChordCount(), 15));
+
+        int threads = runtime.availableProcessors();
+        System.out.println("threads  scan(ns/chord)");
+        //a round of each untimed first, so the JIT has compiled the scan
+        for(int round = 0; round < 2; round++)
+        {
+            long[] sum = new long[1];
+            start = System.nanoTime();
+            store.forEach(entry -> sum[0] += sumBass(entry));
+            long single = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long[] parallel = store.parallelScan(threads, () -> new long[1],
+                    (total, entry) -> total[0] += sumBass(entry), (a, b) -> new long[] { a[0] + b[0] });
+            long scan = System.nanoTime() - start;
+            if(parallel[0] != sum[0])
+                throw new IllegalStateException("Scans disagree: " + sum[0] + " and " + parallel[0]);
+
+            if(round > 0)
+            {
+                System.out.println(pad(1, 7) + pad(single / store.getChordCount(), 16));
+                System.out.println(pad(threads, 7) + pad(scan / store.getChordCount(), 16));
+            }
+        }
+    }
+
+    private static long sumBass(HarmonyArchiveReader.Entry entry)
+    {
+        long sum = 0;
+        for(int i = 0; i < entry.size(); i++)
+            sum += entry.getPitch(i, Chord.BASS);
+        return sum;
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction)
+    {
+        if(count == 0)
+            return 0;
+        return sorted[Math.min(count - 1, (int)(fraction * count))];
+    }
+
+    private static String pad(long value, int width)
+    {
+        StringBuilder padded = new StringBuilder(Long.toString(value));
+        while(padded.length() < width)
+            padded.insert(0, ' ');
+        return padded.toString();
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports many harmonizations in one pass, either as a single multi-track MIDI file or as a
+ * zip of MIDI files, through one buffered file channel.  The same SmfWriter (and so the same
+ * track buffer) is used for every harmonization.
+ *
+ * <p>A multi-track file is format 2: each track is an independent piece, so the harmonizations
+ * don't sound at once.  Each one is a track with its four voices on channels 0 to 3 and its
+ * own tempo and key signature at the start.  A MIDI file holds at most 65535 tracks, so
+ * larger batches should go to a zip.  In a zip, a name used twice (tunes numbered or titled
+ * alike) gets a suffix, e.g. "12 Reel (2).mid".
+ *
+ * <p>Run from the command line to harmonize and export a whole ABC collection:
+ * <pre>
+ *   java BulkMidiExporter tunes.abc tunes.zip
+ *   java BulkMidiExporter tunes.abc tunes.mid
+ * </pre>
+ */
+public class BulkMidiExporter
+{
+    public static final int MAX_TRACKS = 65535;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private SmfWriter writer = new SmfWriter();
+
+    /**
+     * Write every harmonization as one track of a single format 2 MIDI file.
+     *
+     * @param harmonies  the harmonizations
+     * @param names      a track name per harmonization, or null for none
+     * @param file       the MIDI file to write
+     */
+    public Stats writeMultiTrack(List<Chord[]> harmonies, List<String> names, File file)
+            throws IOException
+    {
+        if(harmonies.size() > MAX_TRACKS)
+            throw new IllegalArgumentException("A MIDI file can't hold " + harmonies.size()
+                    + " harmonizations; export them to a zip instead");
+
+        long start = System.nanoTime();
+        long midiBytes = 0;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel),
+                    BUFFER_SIZE);
+            midiBytes += SmfWriter.writeHeader(out, 2, harmonies.size());
+
+            for(int i = 0; i < harmonies.size(); i++)
+            {
+                writer.startTrack(names == null ? null : names.get(i));
+                writer.addTempo();
+                writer.addKeySignature(harmonies.get(i));
+                writer.addChords(harmonies.get(i));
+                midiBytes += writer.writeTrack(out);
+            }
+            out.flush();
+            return new Stats(harmonies.size(), midiBytes, channel.size(), System.nanoTime() - start);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Write every harmonization as its own MIDI file inside a zip.
+     *
+     * @param harmonies  the harmonizations
+     * @param names      a file name (without .mid) per harmonization, or null to number them
+     * @param file       the zip file to write
+     */
+    public Stats writeZip(List<Chord[]> harmonies, List<String> names, File file)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        long midiBytes = 0;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), BUFFER_SIZE));
+            zip.setLevel(Deflater.BEST_SPEED);
+
+            Set<String> used = new HashSet<String>();
+            for(int i = 0; i < harmonies.size(); i++)
+            {
+                String name = names == null ? String.format("harmony-%06d", i + 1) : names.get(i);
+                String unique = name;
+                for(int copy = 2; !used.add(unique); copy++)
+                    unique = name + " (" + copy + ")";
+                zip.putNextEntry(new ZipEntry(unique + ".mid"));
+                midiBytes += writer.write(harmonies.get(i), zip);
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+            return new Stats(harmonies.size(), midiBytes, channel.size(), System.nanoTime() - start);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * How an export went.
+     */
+    public static class Stats
+    {
+        private int entries;
+        private long midiBytes;
+        private long fileBytes;
+        private long nanos;
+
+        Stats(int entries, long midiBytes, long fileBytes, long nanos)
+        {
+            this.entries = entries;
+            this.midiBytes = midiBytes;
+            this.fileBytes = fileBytes;
+            this.nanos = nanos;
+        }
+
+        public int getEntries()
+        {
+            return entries;
+        }
+
+        /**
+         * @return the size of all the MIDI data, before any compression
+         */
+        public long getMidiBytes()
+        {
+            return midiBytes;
+        }
+
+        /**
+         * @return the size of the file written
+         */
+        public long getFileBytes()
+        {
+            return fileBytes;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        /**
+         * @return MIDI bytes produced per second
+         */
+        public double getBytesPerSecond()
+        {
+            return nanos == 0 ? 0 : midiBytes * 1e9 / nanos;
+        }
+
+        public String toString()
+        {
+            return entries + " harmonizations, " + midiBytes + " MIDI bytes, " + fileBytes
+                    + " bytes written in " + (nanos / 1000000) + " ms ("
+                    + String.format("%.1f", getBytesPerSecond() / (1024 * 1024)) + " MB/s)";
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            System.out.println("usage: java BulkMidiExporter <collection.abc> <output.zip|output.mid>");
+            return;
+        }
+
+        List<AbcTune> tunes = AbcCollection.read(new File(args[0]));
+        AbcCollection.harmonizeAll(tunes);
+
+        List<Chord[]> harmonies = new ArrayList<Chord[]>();
+        List<String> names = new ArrayList<String>();
+        for(AbcTune tune : tunes)
+        {
+            if(tune.getChords() == null)
+            {
+                System.err.println("X:" + tune.getNumber() + " " + tune.getTitle() + ": "
+                        + tune.getError());
+                continue;
+            }
+            harmonies.add(tune.getChords());
+            names.add(tune.getNumber() + " " + tune.getTitle().replace('/', '-'));
+        }
+
+        BulkMidiExporter exporter = new BulkMidiExporter();
+        File out = new File(args[1]);
+        Stats stats = out.getName().endsWith(".zip") ? exporter.writeZip(harmonies, names, out)
+                : exporter.writeMultiTrack(harmonies, names, out);
+        System.out.println(stats);
+    }
+}
@@ -7,20 +7,47 @@
  */
 public class Chord {
 
+	//voice indexes of a four-part chord, in the order InferenceEngine.printFourParts returns
+	//them; a chord of more parts counts its voices the same way, from the top
+	public static final int SOPRANO = 0;
+	public static final int ALTO = 1;
+	public static final int TENOR = 2;
+	public static final int BASS = 3;
+
 	private int chordCount;
 	private String chordString;
 
 	private boolean loopExceeded;
+	private ChordVocabulary.Type type;	//which chord of the vocabulary, if the engine chose it
+	private Note[] voices;		//top first
 	private Note bass;
 	private Note tenor;
 	private Note alto;
 	private Note soprano;
 
 	public Chord(Note bassNote, Note tenorNote, Note altoNote, Note sopranoNote) {
-		bass = bassNote;
-		tenor = tenorNote;
-		alto = altoNote;
-		soprano = sopranoNote;
+		this(new Note[] { sopranoNote, altoNote, tenorNote, bassNote });
+	}
+
+	/**
+	 * A chord of any number of parts.  The alto is the second voice from the top and the
+	 * tenor the second from the bottom, so in four parts they are the usual ones.
+	 * 
+	 * @param voiceNotes the notes, top voice first
+	 */
+	public Chord(Note[] voiceNotes) {
+		voices = voiceNotes;
+		soprano = voices[0];
+		alto = voices[1];
+		tenor = voices[voices.length - 2];
+		bass = voices[voices.length - 1];
+	}
+
+	/**
+	 * @return the number of parts, 4 unless the chord was made for more
+	 */
+	public int getVoiceCount() {
+		return voices.length;
 	}
 
 	public int getBassNoteNum() {
@@ -55,6 +82,26 @@ public class Chord {
 		return soprano;
 	}
 
+	/**
+	 * @param voice one of SOPRANO, ALTO, TENOR or BASS, or in a chord of more parts its
+	 *              number counting from 0 at the top
+	 * @return the note sung by that voice
+	 */
+	public Note getNote(int voice) {
+		return voices[voice];
+	}
+
+	/**
+	 * @return the chord of the vocabulary this voices, e.g. V7, or null if not known
+	 */
+	public ChordVocabulary.Type getType() {
+		return type;
+	}
+
+	public void setType(ChordVocabulary.Type type) {
+		this.type = type;
+	}
+
 	public void setLoopExceeded(boolean loop) {
 		loopExceeded = loop;
 	}
@@ -64,7 +111,9 @@ public class Chord {
 	}
 
 	public String printNotes() {
-		return bass.getNoteAndOctave() + tenor.getNoteAndOctave() + alto.getNoteAndOctave()
-				+ soprano.getNoteAndOctave();
+		StringBuilder notes = new StringBuilder();
+		for (int v = voices.length - 1; v >= 0; v--)
+			notes.append(voices[v].getNoteAndOctave());
+		return notes.toString();
 	}
 }
@@ -7,377 +7,261 @@ import java.util.*;
  */
 public class ChordGen {
 
-    private final int BASS = 0;
-    private final int TENOR = 7;
-    private final int ALTO = 7;
-    public static final int LOOPS = 20;
+    //how many notes the search for a voicing in more than four parts may try
+    private static final int SEARCH_LIMIT = 20000;
     
-    private ArrayList bassRange;
-    private ArrayList tenorRange;
-    private ArrayList altoRange;
-    private ArrayList sopranoRange;
+    //the tones that must sound in more than four parts, a bit per tone from the root: the
+    //root and third, and the seventh of a seventh chord
+    private static final int REQUIRED_TRIAD = 1 << 0 | 1 << 1;
+    private static final int REQUIRED_SEVENTH = REQUIRED_TRIAD | 1 << 3;
+    
+    //the pitch class of each letter's natural, C to B
+    private static final int[] NATURALS = { 0, 2, 4, 5, 7, 9, 11 };
+    
+    private KeyTables tables;
+    private Random rand = new Random();
+    
+    //the search's state, for one chord at a time
+    private int[] toneOf = new int[8];		//which tone of the chord each degree is, or -1
+    private int[] harmony = new int[VoiceRanges.MAX_VOICES];	//the notes placed, top first
+    private int[] pitches = new int[VoiceRanges.MAX_VOICES];	//and as MIDI numbers
+    private int[] byPitchClass = new int[12];	//the voices placed on each pitch class
+    private Chord previous;
+    private VoiceLeading leading;
+    private int required;
+    private int inversion;
+    private int steps;
+    
+    //the chords the search has ruled out under the last melody note and previous chord
+    private Chord failedAfter;
+    private int failedSoprano = -1;
+    private List<ChordVocabulary.Type> failed = new ArrayList<ChordVocabulary.Type>();
 
     /**
-     * Initialize the chord generator with the voice ranges defined in the knowledge database.
+     * Initialize the chord generator with the voicings and notes of the key.
      * 
-     * @param bass  		all possible bass notes
-     * @param tenor 		all possible tenor notes
-     * @param alto		all possible alto notes
-     * @param soprano		all possible soprano notes
+     * @param tables the key's tables, as used by the knowledge database
      */
-    public ChordGen(ArrayList bass, ArrayList tenor, ArrayList alto, ArrayList soprano) 
+    public ChordGen(KeyTables tables) 
     {
-        bassRange = bass;
-        tenorRange = tenor;
-        altoRange = alto;
-        sopranoRange = soprano;
+        this.tables = tables;
     }
 
     /**
-     * Picks an octave for the given note and range.
+     * Set where the random choices come from.
      * 
-     * @param note
-     * @param range
-     * @param rangeNums
-     * @param soprano
-     * @return
+     * @param rand the generator, used by one thread at a time
      */
-    public Note pickNote( int note, int range, ArrayList rangeNums, Note soprano ) 
+    public void setRandom( Random rand ) 
     {
-        double randomNum = Math.random();
-        int choiceOne = note + range + 45;
-        int choiceTwo = choiceOne + 7;
-        int choiceThree = choiceTwo + 7;
-        int validChoiceOne = 0;
-        int validChoiceTwo = 0;
-        int randomChoice = 0;
-        
-        if( rangeNums.contains(new Integer(choiceOne)) ) 
-            	validChoiceOne = choiceOne;
-        else if( rangeNums.contains(new Integer(choiceThree)) ) 
-            validChoiceOne = choiceThree;  
-        else
-            randomChoice = choiceTwo;
-        if( randomChoice != choiceTwo ) {
-            if( rangeNums.contains(new Integer(choiceTwo)) ) 
-                validChoiceTwo = choiceTwo;
-        
-            if( validChoiceTwo != 0 && randomNum >= 0.5 )
-                randomChoice = validChoiceTwo;
-            else
-                randomChoice = validChoiceOne;
-        }
-        //System.out.println("choice: " + randomChoice);
-        Note randomNote = new Note( randomChoice, soprano.getKey());
-        //System.out.println(randomNote.getHarmonyNote8());
-        return randomNote;
+        this.rand = rand;
     }
 
     /**
-     * Generate a chord whose bass note is the root of the chord.
+     * Voice a chord of the vocabulary under a melody note, following the previous chord.
+     * In four parts every voicing that could be right on its own was compiled into the key's
+     * tables, so this only has to drop those that make parallels or cross a part against the
+     * previous chord, and picks one of the rest at random.  In more parts the voicings are
+     * searched for instead (see searchChord).  Root position is preferred; inversions are used
+     * only when no root position voicing fits.
      * 
-     * @param chordNotes		the notes that need to be in this chord
-     * @param melodyNote		The melody note of this chord
-     * @param previousChord
-     * @return
+     * @param type          the chord
+     * @param melodyNote    the melody note of this chord
+     * @param previousChord the chord before, or null for the first chord of a phrase
+     * @return the chord, or null if no voicing of it fits
      */
-    public Chord generateRootChord(Integer[] chordNotes, Note melodyNote, 
-            Chord previousChord ) 
+    public Chord generateChord( ChordVocabulary.Type type, Note melodyNote, Chord previousChord ) 
     {
-        	Chord rootChord = null;
-        	double randomNum = Math.random();
-        	Note bassNote = null;
-        	Note tenorNote = null;
-        	Note altoNote = null;
-        	boolean overlap = true;
-        	boolean octaveGap = true;
-        	boolean parallelOctave = true;
-        	boolean parallelFifth = true;
-        	boolean partCross = true;
-        	int loopCount = 0;
-        	
-        	melodyNote.setHarmonyNote8( findSopranoNum( melodyNote ) );
-        	
-        	while( (overlap || octaveGap || parallelOctave || parallelFifth || partCross) && 
-        	        loopCount < LOOPS ) {
-        	    randomNum = Math.random();
-	        	bassNote = pickNote( chordNotes[0].intValue(), BASS, 
-	        	        bassRange, melodyNote );
-	        	if( randomNum >= (1/2) ) {
-	        	    	tenorNote = pickNote( chordNotes[1].intValue(), TENOR, 
-	        	    	        tenorRange, melodyNote );
-	        	    	altoNote = pickNote( chordNotes[2].intValue(), ALTO, 
-	        	    	        altoRange, melodyNote );
-	        	} else {
-	        	    tenorNote = pickNote( chordNotes[2].intValue(), TENOR, 
-	        	            tenorRange, melodyNote );
-	    	    		altoNote = pickNote( chordNotes[1].intValue(), ALTO, 
-	    	    		        altoRange, melodyNote );
-	        	}
-	        	if( previousChord != null ) {
-	        	    parallelOctave = checkParOctave(bassNote, tenorNote, altoNote, 
-	        	            melodyNote, previousChord);
-	        	    parallelFifth = checkParFifth(bassNote, tenorNote, altoNote, 
-	        	            melodyNote, previousChord);
-	        	    partCross = checkPartCrosses(bassNote, tenorNote, altoNote,
-	        	            melodyNote, previousChord);
-	        	} else {
-	        	    parallelOctave = false;
-	        	    parallelFifth = false;
-	        	    partCross = false;
-	        	}
-	        	overlap = checkOverlap(bassNote, tenorNote, altoNote, melodyNote);
-	        	octaveGap = checkGaps(tenorNote, altoNote, melodyNote);
-	        	loopCount++;
-        	}
-        	
-        	rootChord = new Chord(bassNote, tenorNote, altoNote, melodyNote);
-        	//System.out.println("Picked bass Rootchord: " + 
-        	 //       rootChord.getBassNote().getNoteAndOctave());
-        	if( loopCount >= LOOPS ) 
-        	{
-        	    rootChord.setLoopExceeded( true );
-        	    /*
-        	    if(partCross)
-        	        System.out.println("generateRootChord: loop boundary hit...part crossed");
-        	    else
-            	    System.out.println("generateRootChord: loop boundary hit");
-            	    */
-        	}
-        	else
-        	    rootChord.setLoopExceeded( false );
+        melodyNote.setHarmonyNote8( findSopranoNum( melodyNote ) );
+        VoiceLeading leading = previousChord == null ? null 
+                : new VoiceLeading( previousChord, tables.getRanges() );
+        if( tables.getVoiceCount() != 4 )
+            return searchChord( type, melodyNote, previousChord, leading );
+        int[] voicings = tables.getVoicings().get( type, melodyNote.getHarmonyNote8() );
+        
+        //choose uniformly among the voicings that fit, in one pass, by reservoir sampling
+        int chosen = -1;
+        int fitting = 0;
+        for( int i = 0; i < voicings.length; i++ ) {
+            if( chosen >= 0 && ChordVocabulary.Voicings.getInversion(voicings[i]) != 0 
+                    && ChordVocabulary.Voicings.getInversion(voicings[chosen]) == 0 )
+                break;
+            if( leading != null && !fits( voicings[i], melodyNote, leading ) )
+                continue;
+            fitting++;
+            if( rand.nextInt(fitting) == 0 )
+                chosen = i;
+        }
+        if( chosen < 0 )
+            return null;
         
-        	return rootChord;
+        Chord chord = new Chord( tables.getNote( ChordVocabulary.Voicings.getBass(voicings[chosen]) ),
+                tables.getNote( ChordVocabulary.Voicings.getTenor(voicings[chosen]) ),
+                tables.getNote( ChordVocabulary.Voicings.getAlto(voicings[chosen]) ), melodyNote );
+        chord.setType( type );
+        return chord;
+    }
+    
+    private boolean fits( int voicing, Note soprano, VoiceLeading leading ) 
+    {
+        int[] pitches = { soprano.getNoteNumber(), 
+                tables.getNote( ChordVocabulary.Voicings.getAlto(voicing) ).getNoteNumber(),
+                tables.getNote( ChordVocabulary.Voicings.getTenor(voicing) ).getNoteNumber(),
+                tables.getNote( ChordVocabulary.Voicings.getBass(voicing) ).getNoteNumber() };
+        return leading.allows( pitches );
     }
     
     /**
-     * Generate a chord whose root may be for the tenor or alto.  Only used when a root chord cannot
-     * be generated.
-     * 
-     * @param chordNotes  	the notes that need to be in this chord
-     * @param melodyNote		The melody note of this chord
-     * @param previousChord
-     * @return
+     * Can next follow previous without parallels or overlapping parts?
      */
-    public Chord generateInvertedChord(Integer[] chordNotes, Note melodyNote, 
-            Chord previousChord ) 
+    public boolean connects( Chord previous, Chord next ) 
     {
-        Chord invertedChord = null;
-	    	double randomNum = Math.random();
-	    	Note bassNote = null;
-	    	Note tenorNote = null;
-	    	Note altoNote = null;
-	    	boolean overlap = true;
-	    	boolean octaveGap = true;
-	    	boolean parallelOctave = true;
-	    	boolean parallelFifth = true;
-	    	boolean partCross = true;
-	    	int loopCount = 0;
-	    	
-	    	melodyNote.setHarmonyNote8( findSopranoNum( melodyNote ) );
-	    	
-	    	while( (overlap || octaveGap || parallelOctave || parallelFifth || partCross) && 
-	    	        loopCount < LOOPS ) {
-	    	    randomNum = Math.random();
-	    	    if( randomNum < 0.25 ) {
-	    	        tenorNote = pickNote( chordNotes[0].intValue(), TENOR, 
-        	    	        tenorRange, melodyNote );
-	    	        bassNote = pickNote( chordNotes[1].intValue(), BASS, 
-	        	        bassRange, melodyNote );
-	    	        altoNote = pickNote( chordNotes[2].intValue(), ALTO, 
-	    	   		    altoRange, melodyNote );
-	    	    } else if( randomNum < 0.5 ) {
-	    	        tenorNote = pickNote( chordNotes[0].intValue(), TENOR, 
-        	    	        tenorRange, melodyNote );
-	    	        bassNote = pickNote( chordNotes[2].intValue(), BASS, 
-	        	        bassRange, melodyNote );
-	    	        altoNote = pickNote( chordNotes[1].intValue(), ALTO, 
-	    	   		    altoRange, melodyNote );
-	        	} else if( randomNum < 0.75 ){
-	        	    tenorNote = pickNote( chordNotes[1].intValue(), TENOR, 
-        	    	        tenorRange, melodyNote );
-	    	        bassNote = pickNote( chordNotes[2].intValue(), BASS, 
-	        	        bassRange, melodyNote );
-	    	        altoNote = pickNote( chordNotes[0].intValue(), ALTO, 
-	    	   		    altoRange, melodyNote );
-	        	} else {
-	        	    tenorNote = pickNote( chordNotes[2].intValue(), TENOR, 
-        	    	        tenorRange, melodyNote );
-	    	        bassNote = pickNote( chordNotes[1].intValue(), BASS, 
-	        	        bassRange, melodyNote );
-	    	        altoNote = pickNote( chordNotes[0].intValue(), ALTO, 
-	    	   		    altoRange, melodyNote );
-	        	}
-	        	if( previousChord != null ) {
-	        	    parallelOctave = checkParOctave(bassNote, tenorNote, altoNote, 
-	        	            melodyNote, previousChord);
-	        	    parallelFifth = checkParFifth(bassNote, tenorNote, altoNote, 
-	        	            melodyNote, previousChord);
-	        	    partCross = checkPartCrosses(bassNote, tenorNote, altoNote, 
-	        	            melodyNote, previousChord);
-	        	    
-	        	} else {
-	        	    parallelOctave = false;
-	        	    parallelFifth = false;
-	        	    partCross = false;
-	        	}
-	        	overlap = checkOverlap(bassNote, tenorNote, altoNote, melodyNote);
-	        	octaveGap = checkGaps(tenorNote, altoNote, melodyNote);
-	        	loopCount++;
-	    	}
-	    	if( overlap || octaveGap || parallelOctave || parallelFifth || partCross)
-	    	{
-	    	    invertedChord = null;
-	    	    //System.out.println("generateInvertedChord: loop boundary hit");
-	    	}
-	    	else {
-	    	    invertedChord = new Chord(bassNote, tenorNote, altoNote, melodyNote);
-	    	    /*
-	    	    System.out.println("Picked bass Invchord: " + 
-	    	            invertedChord.getBassNote().getNoteAndOctave());
-	    	    System.out.println("Picked tenor Invchord: " + 
-	    	            invertedChord.getTenorNote().getNoteAndOctave());
-	    	    System.out.println("Picked alto Invchord: " + 
-	    	            invertedChord.getAltoNote().getNoteAndOctave());
-	    	            */
-	    	}
-	    	return invertedChord;
+        VoiceLeading leading = new VoiceLeading( previous, tables.getRanges() );
+        return leading.allows( VoiceLeading.pitchesOf(next) );
     }
     
     public int findSopranoNum( Note soprano ) {
-        int retNum = 0;
-        int noteID8 = soprano.getNoteID8();
-        int scaledNoteID = noteID8 + 59;
-        if( soprano.getNoteNumber() < 72 && noteID8 != 1) {
-            retNum = scaledNoteID;
-        } else {
-            retNum = scaledNoteID + 7;
-        }
-        return retNum;
+        //the octave goes by the letter, as harmony numbers do: B#4 sounds as C5 and Cb5 as
+        //B4, but they are numbered as B4 and C5.  An accidental moves a note only a semitone
+        //or two from its letter's natural, so the nearest octave of that natural is the one
+        int natural = NATURALS[soprano.getNoteID8() - 1];
+        int octave = Math.floorDiv( soprano.getNoteNumber() - natural + 6, 12 );
+        return 24 + 7 * octave + soprano.getNoteID8();
     }
     
-    //--------------------------Begin generated chord checking methods--------------------------
-    
-    public boolean checkOverlap(Note bass, Note tenor, Note alto, Note soprano) {
-        boolean crossed = false;
-        if( bass.getHarmonyNote8() > tenor.getHarmonyNote8() ) 
-            crossed = true;
-        if( tenor.getHarmonyNote8() > alto.getHarmonyNote8() ) 
-            crossed = true;
-        if( alto.getHarmonyNote8() > soprano.getHarmonyNote8() ) 
-            crossed = true;
-        if( bass.getHarmonyNote8() > alto.getHarmonyNote8() ) 
-            crossed = true;
-        if( tenor.getHarmonyNote8() > soprano.getHarmonyNote8() ) 
-            crossed = true;
-        if( bass.getHarmonyNote8() > soprano.getHarmonyNote8() )
-            crossed = true;
-        
-        return crossed;
-    }
+    //--------------------------Voicing in more than four parts--------------------------
     
-    public boolean checkGaps(Note tenor, Note alto, Note soprano) 
-    {
-        boolean bigGap = false;
-        if( tenor.getHarmonyNote8() + 7 < alto.getHarmonyNote8() ) 
-            bigGap = true;
-        if( alto.getHarmonyNote8() + 7 < soprano.getHarmonyNote8() ) 
-            bigGap = true;
-        return bigGap;
-    }
-    
-    public boolean checkParOctave(Note bass, Note tenor, Note alto, Note soprano,
-            Chord prevChord) 
+    /**
+     * Voice a chord in more than four parts.  There are too many voicings of five to eight
+     * parts to compile, so they are searched for: depth first from the top, each voice taking
+     * a chord tone at or below the voice over it and within an octave of it (but for the bass
+     * section, which may be as far below as its range allows), nearest a point by its note in
+     * the previous chord first so the parts move little.  Each note is checked against the
+     * previous chord as it is placed, so a branch with a parallel is cut at once.  The leading
+     * tone and a chord's seventh are never doubled.  The root, third and any seventh must
+     * sound; the fifth may be left out, as the doubled parts often have better notes to sing.
+     * <p>
+     * A search that runs to the end without a voicing proves there is none, whatever order
+     * the notes were tried in, so the chord is remembered and not searched again while the
+     * knowledge database retries other chords under the same note and previous chord.
+     * 
+     * @param leading the rules against the previous chord, or null for the first chord
+     * @return the chord, or null if no voicing fits within SEARCH_LIMIT steps
+     */
+    private Chord searchChord( ChordVocabulary.Type type, Note melodyNote, Chord previousChord, 
+            VoiceLeading leading ) 
     {
-        boolean parOctave = false;
+        int voices = tables.getVoiceCount();
+        for( int degree = 1; degree <= 7; degree++ )
+            toneOf[degree] = type.toneOf(degree);
+        int soprano = melodyNote.getHarmonyNote8();
+        if( soprano < KeyTables.HARMONY_LOW || soprano > KeyTables.HARMONY_HIGH 
+                || toneOf[tables.getDegree(soprano)] < 0 )
+            return null;
         
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 7 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 7) &&
-                ( tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 7 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 7 ) ) 
-            parOctave = true;
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 7 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 7) &&
-                ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 7 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 7 ) ) 
-            parOctave = true;
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 7 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 7) &&
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 7 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 7 )  ) 
-            parOctave = true;
-        if( (tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 7 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 7) && 
-                ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 7 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 7 ) )
-            parOctave = true;
-        if( (tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 7 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 7) && 
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 7 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 7 ) )
-            parOctave = true;
-        if( ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 7 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 7 ) && 
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 7 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 7 ) )
-            parOctave = true;
+        if( previousChord != failedAfter || soprano != failedSoprano ) {
+            failedAfter = previousChord;
+            failedSoprano = soprano;
+            failed.clear();
+        }
+        if( failed.contains( type ) )
+            return null;
         
-        return parOctave;
+        this.previous = previousChord;
+        this.leading = leading;
+        required = type.getToneCount() == 4 ? REQUIRED_SEVENTH : REQUIRED_TRIAD;
+        harmony[0] = soprano;
+        pitches[0] = melodyNote.getNoteNumber();
+        steps = 0;
+        for( inversion = 0; inversion < type.getToneCount(); inversion++ ) {
+            Arrays.fill( byPitchClass, 0 );
+            byPitchClass[pitches[0] % 12] = 1;
+            int moved = leading != null && leading.moves( 0, pitches[0] ) ? 1 : 0;
+            int tone = toneOf[tables.getDegree(soprano)];
+            if( place( 1, voices, 1 << tone, tendencies( soprano, tone ), moved ) ) {
+                Note[] notes = new Note[voices];
+                notes[0] = melodyNote;
+                for( int v = 1; v < voices; v++ )
+                    notes[v] = tables.getNote( harmony[v] );
+                Chord chord = new Chord( notes );
+                chord.setType( type );
+                return chord;
+            }
+        }
+        if( steps <= SEARCH_LIMIT )
+            failed.add( type );
+        return null;
     }
     
-    public boolean checkParFifth(Note bass, Note tenor, Note alto, Note soprano,
-            Chord prevChord) 
+    /**
+     * Place a voice and, below it, the rest.
+     * 
+     * @param sounding   the chord's tones sung by the voices above, a bit per tone
+     * @param tendencies the tendency tones sung above: 1 the leading tone, 2 the seventh
+     * @param moved      the voices above whose note changed from the previous chord
+     * @return true if every voice was placed, in harmony and pitches
+     */
+    private boolean place( int voice, int voices, int sounding, int tendencies, int moved ) 
     {
-        boolean parFifth = false;
+        boolean bass = voice == voices - 1;
+        int above = harmony[voice - 1];
+        int high = Math.min( above, tables.getHigh8(voice) );
+        int low = tables.getRanges().isBass( voice ) ? tables.getLow8(voice) 
+                : Math.max( tables.getLow8(voice), above - 7 );
+        //the tones still missing must fit in the voices left, this one included
+        if( Integer.bitCount( required & ~sounding ) > voices - voice || low > high )
+            return false;
         
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 4 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 4) &&
-                ( tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 4 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 4 ) ) 
-            parFifth = true;
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 4 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 4) &&
-                ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 4 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 4 ) ) 
-            parFifth = true;
-        if( (bass.getHarmonyNote8() - prevChord.getBassNoteNum() == 4 ||
-                prevChord.getBassNoteNum() - bass.getHarmonyNote8() == 4) &&
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 4 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 4 )  ) 
-            parFifth = true;
-        if( (tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 4 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 4) && 
-                ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 4 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 4 ) )
-            parFifth = true;
-        if( (tenor.getHarmonyNote8() - prevChord.getTenorNoteNum() == 4 ||
-                prevChord.getTenorNoteNum() - tenor.getHarmonyNote8() == 4) && 
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 4 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 4 ) )
-            parFifth = true;
-        if( ( alto.getHarmonyNote8() - prevChord.getAltoNoteNum() == 4 ||
-                prevChord.getAltoNoteNum() - alto.getHarmonyNote8() == 4 ) && 
-                ( soprano.getHarmonyNote8() - prevChord.getSopranoNoteNum() == 4 ||
-                prevChord.getSopranoNoteNum() - soprano.getHarmonyNote8() == 4 ) )
-            parFifth = true;
-        
-        return parFifth;
+        //near the voice's last note, or for a first chord anywhere it can go; the start is
+        //moved at random so a chord found again after backing up isn't spaced the same way
+        int start;
+        if( previous != null )
+            start = previous.getNote(voice).getHarmonyNote8() + rand.nextInt(7) - 3;
+        else
+            start = low + rand.nextInt( Math.max( 1, high - low + 1 ) );
+        start = Math.max( low, Math.min( high, start ) );
+        int direction = rand.nextBoolean() ? 1 : -1;
+        for( int distance = 0; start - distance >= low || start + distance <= high; distance++ ) {
+            for( int side = 0; side < (distance == 0 ? 1 : 2); side++ ) {
+                int note = start + (side == 0 ? direction : -direction) * distance;
+                if( note < low || note > high )
+                    continue;
+                if( ++steps > SEARCH_LIMIT )
+                    return false;
+                int tone = toneOf[tables.getDegree(note)];
+                if( tone < 0 || (bass && tone != inversion) )
+                    continue;
+                int tendency = tendencies( note, tone );
+                if( (tendency & tendencies) != 0 )
+                    continue;
+                int pitch = tables.getNote(note).getNoteNumber();
+                if( leading != null && (leading.makesParallels( voice, pitch, byPitchClass, moved )
+                        || leading.overlaps( voice, pitch, pitches[voice - 1] )) )
+                    continue;
+                
+                harmony[voice] = note;
+                pitches[voice] = pitch;
+                if( bass ) {
+                    if( ((sounding | 1 << tone) & required) == required )
+                        return true;
+                    continue;
+                }
+                int bit = 1 << voice;
+                byPitchClass[pitch % 12] |= bit;
+                int nowMoved = leading != null && leading.moves( voice, pitch ) ? moved | bit : moved;
+                if( place( voice + 1, voices, sounding | 1 << tone, tendencies | tendency, nowMoved ) )
+                    return true;
+                byPitchClass[pitch % 12] &= ~bit;
+            }
+        }
+        return false;
     }
     
-    public boolean checkPartCrosses(Note bass, Note tenor, Note alto, Note soprano, Chord prevChord) 
+    /**
+     * @return 1 if the note is the leading tone, 2 if it is the chord's seventh, else 0
+     */
+    private int tendencies( int note, int tone ) 
     {
-        boolean crossed = false;
-        
-        if( prevChord.getAltoNote().getHarmonyNote8() > soprano.getHarmonyNote8() ) 
-            crossed = true;
-        if( prevChord.getTenorNote().getHarmonyNote8() > alto.getHarmonyNote8() )
-            crossed = true;
-        if( prevChord.getBassNote().getHarmonyNote8() > tenor.getHarmonyNote8() ) 
-            crossed = true;
-        if( prevChord.getTenorNote().getHarmonyNote8() > soprano.getHarmonyNote8() ) 
-            crossed = true;
-        if( prevChord.getBassNote().getHarmonyNote8() > alto.getHarmonyNote8())
-            crossed = true;
-        return crossed;
+        return (tables.getDegree(note) == 7 ? 1 : 0) | (tone == 3 ? 2 : 0);
     }
 }
\ No newline at end of file
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Learns a ChordTransitionModel from a corpus of harmonized music:
+ *
+ * <pre>
+ *   java ChordModelTrainer &lt;output.model&gt; &lt;file or directory&gt;...
+ * </pre>
+ *
+ * <p>ABC files give their chords as chord symbols ("G", "D7/F#"), which are read in order for
+ * every tune with a key.  MIDI files give all their notes.  Those are sampled on every beat,
+ * and the diatonic triad that best covers the notes sounding there is taken as that beat's
+ * chord.  A beat no triad covers breaks the chain, so no transition is counted across it.
+ * MIDI files without a key signature are skipped, as are files that can't be read; those are
+ * listed by getBadFiles().
+ *
+ * <p>Files are spread over one thread per processor.  Each thread counts into its own
+ * ChordTransitionModel.Counts, and the counts are added together at the end, so the threads
+ * share nothing while they work.
+ */
+public class ChordModelTrainer
+{
+    public static final double DEFAULT_SMOOTHING = 0.5;
+
+    private static final String LETTERS = "CDEFGAB";
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int filesRead;
+    private int filesSkipped;
+    private List<String> badFiles = new ArrayList<String>();
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Count the transitions in every ABC and MIDI file among the given files and directories,
+     * looking inside directories recursively.  A file that can't be read is skipped rather
+     * than ending the run.
+     */
+    public ChordTransitionModel.Counts train(List<File> sources) throws InterruptedException
+    {
+        List<File> files = new ArrayList<File>();
+        for(File source : sources)
+            collect(source, files);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            //one task per thread, each taking every threads-th file, so each has one Counts
+            List<Future<ChordTransitionModel.Counts>> results =
+                    new ArrayList<Future<ChordTransitionModel.Counts>>();
+            int tasks = Math.max(1, Math.min(threads, files.size()));
+            for(int t = 0; t < tasks; t++)
+            {
+                final int first = t;
+                final int stride = tasks;
+                results.add(pool.submit(() -> countFiles(files, first, stride)));
+            }
+
+            ChordTransitionModel.Counts counts = new ChordTransitionModel.Counts();
+            for(Future<ChordTransitionModel.Counts> result : results)
+            {
+                try {
+                    counts.add(result.get());
+                }
+                catch(ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return counts;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of files that gave at least one transition
+     */
+    public synchronized int getFilesRead()
+    {
+        return filesRead;
+    }
+
+    /**
+     * @return the number of files with no key or no usable chords, or that couldn't be read
+     */
+    public synchronized int getFilesSkipped()
+    {
+        return filesSkipped;
+    }
+
+    /**
+     * @return each file that couldn't be read, with the reason
+     */
+    public synchronized List<String> getBadFiles()
+    {
+        return new ArrayList<String>(badFiles);
+    }
+
+    private synchronized void recordFile(boolean used)
+    {
+        if(used)
+            filesRead++;
+        else
+            filesSkipped++;
+    }
+
+    private synchronized void recordBadFile(File file, Exception e)
+    {
+        filesSkipped++;
+        badFiles.add(file + ": " + e.getMessage());
+    }
+
+    private static void collect(File source, List<File> files)
+    {
+        File[] children = source.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                collect(child, files);
+        }
+        else if(isAbc(source) || isMidi(source))
+        {
+            files.add(source);
+        }
+    }
+
+    private static boolean isAbc(File file)
+    {
+        return file.getName().toLowerCase().endsWith(".abc");
+    }
+
+    private static boolean isMidi(File file)
+    {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".mid") || name.endsWith(".midi");
+    }
+
+    private ChordTransitionModel.Counts countFiles(List<File> files, int first, int stride)
+    {
+        ChordTransitionModel.Counts counts = new ChordTransitionModel.Counts();
+        SmfReader smf = new SmfReader();
+        for(int i = first; i < files.size(); i += stride)
+        {
+            File file = files.get(i);
+            long before = counts.size();
+            try {
+                if(isAbc(file))
+                {
+                    for(AbcTune tune : AbcCollection.read(file))
+                        countAbc(tune, counts);
+                }
+                else
+                {
+                    countMidi(smf.readNotes(file), counts);
+                }
+            }
+            catch(IOException | InvalidMidiDataException e) {
+                //one bad file shouldn't cost the rest of the corpus; what it gave is kept
+                recordBadFile(file, e);
+                continue;
+            }
+            recordFile(counts.size() > before);
+        }
+        return counts;
+    }
+
+    /**
+     * Count the transitions between the chord symbols of one tune.
+     */
+    static void countAbc(AbcTune tune, ChordTransitionModel.Counts counts)
+    {
+        Key key = tune.getKey();
+        if(key == null || tune.getChordSymbols().length() == 0)
+            return;
+        int mode = ChordTransitionModel.modeOf(key);
+        int previous = 0;
+        for(String symbol : tune.getChordSymbols().split(" "))
+        {
+            int degree = degreeOf(symbol, key);
+            if(degree > 0 && previous > 0)
+                counts.add(mode, previous, degree);
+            previous = degree;
+        }
+    }
+
+    /**
+     * @return the scale degree, 1 to 7, of a chord symbol's root in the key, going by the
+     *         letter name alone (so Bb and B are both 7 in C); 0 if it isn't a chord symbol
+     */
+    static int degreeOf(String symbol, Key key)
+    {
+        int letter = symbol.length() == 0 ? -1 : LETTERS.indexOf(symbol.charAt(0));
+        if(letter < 0)
+            return 0;
+        int tonic = LETTERS.indexOf(key.getRootName().charAt(0));
+        return (letter - tonic + 7) % 7 + 1;
+    }
+
+    /**
+     * Count the transitions between the chords heard on successive beats of a MIDI file.
+     */
+    static void countMidi(Melody notes, ChordTransitionModel.Counts counts)
+    {
+        Key key = notes.getKey();
+        if(key == null || notes.getResolution() <= 0)
+            return;
+        int mode = ChordTransitionModel.modeOf(key);
+
+        //the pitch classes of each diatonic triad, as 12-bit masks
+        int[] triads = new int[8];
+        for(int degree = 1; degree <= 7; degree++)
+        {
+            for(int step = 0; step <= 4; step += 2)
+                triads[degree] |= 1 << key.getPitchClass((degree - 1 + step) % 7 + 1);
+        }
+
+        int[] pitches = notes.getPitches();
+        long[] onsets = notes.getOnsets();
+        long[] durations = notes.getDurations();
+        int resolution = notes.getResolution();
+        long end = 0;
+        for(int i = 0; i < pitches.length; i++)
+            end = Math.max(end, onsets[i] + durations[i]);
+
+        //the notes sounding at the last beat; notes are in order of onset, so each beat adds
+        //those starting by it and drops those that have ended, and a long note held from the
+        //start doesn't make every later beat look at every note before it
+        int[] active = new int[pitches.length];
+        int activeCount = 0;
+        int next = 0;
+        int previous = 0;
+        for(long beat = 0; beat < end; beat += resolution)
+        {
+            while(next < pitches.length && onsets[next] <= beat)
+                active[activeCount++] = next++;
+            int sounding = 0;
+            int bass = Integer.MAX_VALUE;
+            int kept = 0;
+            for(int a = 0; a < activeCount; a++)
+            {
+                int i = active[a];
+                if(onsets[i] + durations[i] > beat)
+                {
+                    active[kept++] = i;
+                    sounding |= 1 << (pitches[i] % 12);
+                    bass = Math.min(bass, pitches[i]);
+                }
+            }
+            activeCount = kept;
+            int degree = sounding == 0 ? 0 : bestTriad(triads, sounding, bass % 12, key);
+            if(degree > 0 && previous > 0)
+                counts.add(mode, previous, degree);
+            previous = degree;
+        }
+    }
+
+    /**
+     * @return the degree of the triad containing the most of the sounding pitch classes, the
+     *         bass being the root breaking ties; 0 if none has at least two of them or the
+     *         notes outside it outnumber those in it
+     */
+    private static int bestTriad(int[] triads, int sounding, int bassClass, Key key)
+    {
+        int best = 0;
+        int bestScore = 1;
+        for(int degree = 1; degree <= 7; degree++)
+        {
+            int inside = Integer.bitCount(sounding & triads[degree]);
+            int outside = Integer.bitCount(sounding & ~triads[degree]);
+            if(outside > inside)
+                continue;
+            int score = inside * 2 + (key.getPitchClass(degree) == bassClass ? 1 : 0);
+            if(inside >= 2 && score > bestScore)
+            {
+                best = degree;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            System.out.println("usage: java ChordModelTrainer <output.model> <file or directory>...");
+            return;
+        }
+
+        List<File> sources = new ArrayList<File>();
+        for(int i = 1; i < args.length; i++)
+            sources.add(new File(args[i]));
+
+        ChordModelTrainer trainer = new ChordModelTrainer();
+        long start = System.nanoTime();
+        ChordTransitionModel.Counts counts = trainer.train(sources);
+        ChordTransitionModel model = counts.toModel(DEFAULT_SMOOTHING);
+        model.write(new File(args[0]));
+
+        System.out.println(counts.size() + " transitions from " + trainer.getFilesRead()
+                + " files (" + trainer.getFilesSkipped() + " skipped) in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        for(String bad : trainer.getBadFiles())
+            System.err.println("couldn't read " + bad);
+        System.out.print(model);
+    }
+}
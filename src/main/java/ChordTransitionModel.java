@@ -0,0 +1,240 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * How likely each chord is to follow each other chord, by scale degree of the chord roots,
+ * with one table for major keys and one for minor.  findBestChord weighs the chords that
+ * could harmonize the next melody note by how likely their roots are to follow the last
+ * chord's, so it asks for single probabilities rather than drawing a degree from a row.
+ *
+ * <p>The tables are kept as one flat array of floats.  A model is never changed after it is
+ * built, so one can be shared by every harmonization.
+ *
+ * <p>The default model is the progression rules HarmoGen has always used: a root moving up a
+ * fourth or fifth 30% of the time each, staying put 15%, a step up or down 10% each, and a
+ * third up or down 2.5% each.  ChordModelTrainer learns a model from a corpus instead.  Models
+ * are saved as a small binary file: the magic number "HGCM", a version, and the probabilities
+ * as floats, major table first, rows in order of the previous chord.
+ */
+public class ChordTransitionModel
+{
+    public static final int MAJOR = 0;
+    public static final int MINOR = 1;
+    public static final int DEGREES = 7;
+
+    static final int MAGIC = 0x4847434D;		//"HGCM"
+    static final short VERSION = 1;
+
+    private static final int MODES = 2;
+    private static final int ROW = DEGREES;
+    private static final int TABLE = DEGREES * DEGREES;
+
+    //the old hard-coded weights, by how many scale steps the root moves up
+    private static final double[] DEFAULT_BY_STEP = { 0.15, 0.10, 0.025, 0.30, 0.30, 0.025, 0.10 };
+    private static final ChordTransitionModel DEFAULT = createDefault();
+
+    private final float[] probability = new float[MODES * TABLE];
+
+    /**
+     * @param weights  MODES * 7 * 7 non-negative weights, indexed by mode, previous degree and
+     *                 next degree; each row is scaled to sum to 1
+     */
+    ChordTransitionModel(double[] weights)
+    {
+        if(weights.length != MODES * TABLE)
+            throw new IllegalArgumentException("Expected " + MODES * TABLE + " weights");
+        for(int row = 0; row < MODES * DEGREES; row++)
+        {
+            int base = row * ROW;
+            double sum = 0;
+            for(int i = 0; i < ROW; i++)
+            {
+                if(!(weights[base + i] >= 0))
+                    throw new IllegalArgumentException("Negative weight in row " + row);
+                sum += weights[base + i];
+            }
+            if(sum <= 0)
+                throw new IllegalArgumentException("Row " + row + " has no weight");
+            for(int i = 0; i < ROW; i++)
+                probability[base + i] = (float)(weights[base + i] / sum);
+        }
+    }
+
+    /**
+     * @return the progression rules HarmoGen uses when no trained model is loaded
+     */
+    public static ChordTransitionModel getDefault()
+    {
+        return DEFAULT;
+    }
+
+    private static ChordTransitionModel createDefault()
+    {
+        double[] weights = new double[MODES * TABLE];
+        for(int mode = 0; mode < MODES; mode++)
+            for(int from = 0; from < DEGREES; from++)
+                for(int to = 0; to < DEGREES; to++)
+                    weights[mode * TABLE + from * ROW + to] = DEFAULT_BY_STEP[(to - from + DEGREES) % DEGREES];
+        return new ChordTransitionModel(weights);
+    }
+
+    /**
+     * @return MAJOR or MINOR, the table to use for a key
+     */
+    public static int modeOf(Key key)
+    {
+        return Key.MINOR.equals(key.getKeyType()) ? MINOR : MAJOR;
+    }
+
+    /**
+     * @param mode        MAJOR or MINOR
+     * @param prevDegree  the scale degree of the previous chord's root, 1 to 7; 0 if it
+     *                    couldn't be told, which is treated as 7 as it always has been
+     * @param degree      the scale degree of the next chord's root, 1 to 7
+     * @return the probability of the next chord following the previous one
+     */
+    public double getProbability(int mode, int prevDegree, int degree)
+    {
+        return probability[rowBase(mode, prevDegree) + degree - 1];
+    }
+
+    private static int rowBase(int mode, int prevDegree)
+    {
+        if(prevDegree == 0)
+            prevDegree = DEGREES;
+        return mode * TABLE + (prevDegree - 1) * ROW;
+    }
+
+    /**
+     * Save the model.
+     */
+    public void write(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            for(int i = 0; i < probability.length; i++)
+                out.writeFloat(probability[i]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a model saved by write().
+     */
+    public static ChordTransitionModel read(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != MAGIC)
+                throw new IOException(file.getName() + " is not a chord transition model");
+            short version = in.readShort();
+            if(version != VERSION)
+                throw new IOException(file.getName() + " has unsupported version " + version);
+            in.readShort();
+            double[] weights = new double[MODES * TABLE];
+            for(int i = 0; i < weights.length; i++)
+                weights[i] = in.readFloat();
+            return new ChordTransitionModel(weights);
+        }
+        catch(IllegalArgumentException e) {
+            throw new IOException(file.getName() + " is corrupt: " + e.getMessage());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The table as text, one row per previous chord, for checking a trained model by eye.
+     */
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder();
+        for(int mode = 0; mode < MODES; mode++)
+        {
+            text.append(mode == MAJOR ? "major" : "minor");
+            for(int to = 1; to <= DEGREES; to++)
+                text.append("      ").append(to);
+            text.append('\n');
+            for(int from = 1; from <= DEGREES; from++)
+            {
+                text.append("    ").append(from);
+                for(int to = 1; to <= DEGREES; to++)
+                    text.append(String.format(" %6.3f", getProbability(mode, from, to)));
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Transition counts gathered from a corpus.  Not thread-safe; give each thread its own and
+     * add them together at the end.
+     */
+    public static class Counts
+    {
+        private final long[] counts = new long[MODES * TABLE];
+        private long total;
+
+        /**
+         * Count one chord following another.
+         *
+         * @param mode        MAJOR or MINOR
+         * @param prevDegree  the scale degree of the first chord's root, 1 to 7
+         * @param degree      the scale degree of the second chord's root, 1 to 7
+         */
+        public void add(int mode, int prevDegree, int degree)
+        {
+            counts[rowBase(mode, prevDegree) + degree - 1]++;
+            total++;
+        }
+
+        public void add(Counts other)
+        {
+            for(int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            total += other.total;
+        }
+
+        /**
+         * @return the number of transitions counted
+         */
+        public long size()
+        {
+            return total;
+        }
+
+        /**
+         * Turn the counts into a model.  Every transition gets the smoothing added to its
+         * count, so nothing the corpus happened not to contain becomes impossible.  A row with
+         * no counts at all keeps the default model's row.
+         *
+         * @param smoothing  the count added to every transition, e.g. 0.5
+         */
+        public ChordTransitionModel toModel(double smoothing)
+        {
+            double[] weights = new double[MODES * TABLE];
+            for(int base = 0; base < weights.length; base += ROW)
+            {
+                long rowTotal = 0;
+                for(int i = 0; i < ROW; i++)
+                    rowTotal += counts[base + i];
+                for(int i = 0; i < ROW; i++)
+                    weights[base + i] = rowTotal == 0 ? DEFAULT.probability[base + i]
+                            : counts[base + i] + smoothing;
+            }
+            return new ChordTransitionModel(weights);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The chords the engine can choose from, as data: the seven triads of the key and the
+ * seventh chords on its fifth and seventh degrees.  A chord is a root scale degree and a stack
+ * of thirds, so adding one is adding a line to DEFAULT rather than a branch to the search.
+ *
+ * <p>Every tone comes from the key's scale, which in minor is the natural minor, so each chord
+ * has a name in either mode: the seventh on the fifth degree is a dominant seventh, V7, in
+ * major and a minor seventh, v7, in minor, and the one on the seventh degree is
+ * half-diminished, vii\u00f87, in major and VII7 in minor.  Nothing raises the leading tone,
+ * so there is no dominant seventh in minor and no fully diminished seventh.
+ *
+ * <p>compile() turns the vocabulary into a Voicings table for a key and set of voice ranges:
+ * for every chord and soprano note, every spacing of bass, tenor and alto that is in range,
+ * doesn't cross, has no gap above an octave between upper voices and sounds the chord's
+ * required tones.  The search then only has to filter a short list against the previous
+ * chord, so a bigger vocabulary makes the tables bigger but not the retry loops longer.
+ */
+public class ChordVocabulary
+{
+    //how often a seventh chord is chosen against the triad on the same root
+    public static final double SEVENTH_WEIGHT = 0.5;
+
+    public static final ChordVocabulary DEFAULT = new ChordVocabulary(new Type[] {
+            new Type("I", "i", 1, 3, 1), new Type("ii", "ii\u00b0", 2, 3, 1),
+            new Type("iii", "III", 3, 3, 1), new Type("IV", "iv", 4, 3, 1),
+            new Type("V", "v", 5, 3, 1), new Type("vi", "VI", 6, 3, 1),
+            new Type("vii\u00b0", "VII", 7, 3, 1), new Type("V7", "v7", 5, 4, SEVENTH_WEIGHT),
+            new Type("vii\u00f87", "VII7", 7, 4, SEVENTH_WEIGHT) });
+
+    private final Type[] types;
+
+    public ChordVocabulary(Type[] types)
+    {
+        this.types = types;
+        for(int i = 0; i < types.length; i++)
+            types[i].index = i;
+    }
+
+    public int size()
+    {
+        return types.length;
+    }
+
+    public Type get(int index)
+    {
+        return types[index];
+    }
+
+    /**
+     * @return the chord with the given root and number of tones, or null if there is none
+     */
+    public Type find(int root, int tones)
+    {
+        for(Type type : types)
+        {
+            if(type.root == root && type.tones == tones)
+                return type;
+        }
+        return null;
+    }
+
+    /**
+     * @param degree  a scale degree, 1 to 7
+     * @return every chord with that degree among its tones
+     */
+    public Type[] containing(int degree)
+    {
+        List<Type> found = new ArrayList<Type>();
+        for(Type type : types)
+        {
+            if(type.contains(degree))
+                found.add(type);
+        }
+        return found.toArray(new Type[found.size()]);
+    }
+
+    /**
+     * Build the voicing tables of every chord for a key, in the tables' voice ranges.
+     */
+    public Voicings compile(KeyTables tables)
+    {
+        return new Voicings(this, tables);
+    }
+
+    /**
+     * One chord of the vocabulary.
+     */
+    public static class Type
+    {
+        private final String name;
+        private final String minorName;
+        private final int root;
+        private final int tones;
+        private final double weight;
+        private int index;
+
+        /**
+         * @param name    for printing, e.g. "V7"
+         * @param root    the scale degree of the root, 1 to 7
+         * @param tones   3 for a triad, 4 for a seventh chord
+         * @param weight  how likely the chord is against others on the same root
+         */
+        public Type(String name, int root, int tones, double weight)
+        {
+            this(name, name, root, tones, weight);
+        }
+
+        /**
+         * @param name       for printing in a major key, e.g. "V7"
+         * @param minorName  for printing in a minor key, e.g. "v7"
+         * @param root       the scale degree of the root, 1 to 7
+         * @param tones      3 for a triad, 4 for a seventh chord
+         * @param weight     how likely the chord is against others on the same root
+         */
+        public Type(String name, String minorName, int root, int tones, double weight)
+        {
+            this.name = name;
+            this.minorName = minorName;
+            this.root = root;
+            this.tones = tones;
+            this.weight = weight;
+        }
+
+        /**
+         * @return the chord's name in a major key
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @param mode  ChordTransitionModel.MAJOR or MINOR
+         * @return the chord's name in a key of that mode
+         */
+        public String getName(int mode)
+        {
+            return mode == ChordTransitionModel.MINOR ? minorName : name;
+        }
+
+        /**
+         * @return the scale degree of the root, 1 to 7
+         */
+        public int getRoot()
+        {
+            return root;
+        }
+
+        /**
+         * @return the number of tones, 3 or 4
+         */
+        public int getToneCount()
+        {
+            return tones;
+        }
+
+        public double getWeight()
+        {
+            return weight;
+        }
+
+        /**
+         * @param tone  0 for the root, 1 the third, 2 the fifth, 3 the seventh
+         * @return the tone's scale degree, 1 to 7
+         */
+        public int getTone(int tone)
+        {
+            return (root - 1 + 2 * tone) % 7 + 1;
+        }
+
+        /**
+         * @return which tone the degree is, 0 to getToneCount() - 1, or -1 if it isn't one
+         */
+        public int toneOf(int degree)
+        {
+            for(int tone = 0; tone < tones; tone++)
+            {
+                if(getTone(tone) == degree)
+                    return tone;
+            }
+            return -1;
+        }
+
+        public boolean contains(int degree)
+        {
+            return toneOf(degree) >= 0;
+        }
+
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * The voicings of a vocabulary in one key, as harmony numbers (see Note(int, Key)).  Each
+     * voicing is packed into an int: bass in the low byte, then tenor, then alto, then the
+     * inversion, i.e. which tone is in the bass.  Root position voicings come first in each
+     * list.  Read-only once built, so it can be shared between threads.
+     */
+    public static class Voicings
+    {
+        private static final int[] NONE = new int[0];
+
+        private final int[][][] voicings;		//by chord, then soprano harmony number
+        private final int sopranoLow;
+
+        private Voicings(ChordVocabulary vocabulary, KeyTables tables)
+        {
+            sopranoLow = tables.getLow8(Chord.SOPRANO);
+            int sopranos = Math.max(0, tables.getHigh8(Chord.SOPRANO) - sopranoLow + 1);
+            voicings = new int[vocabulary.size()][sopranos][];
+            int[] found = new int[4096];
+            for(int c = 0; c < vocabulary.size(); c++)
+            {
+                Type type = vocabulary.get(c);
+                for(int s = 0; s < sopranos; s++)
+                {
+                    int count = compile(type, sopranoLow + s, tables, found);
+                    voicings[c][s] = count == 0 ? NONE : Arrays.copyOf(found, count);
+                }
+            }
+        }
+
+        /**
+         * Find every voicing of one chord under one soprano note.
+         *
+         * @return how many were put in found
+         */
+        private int compile(Type type, int soprano, KeyTables tables, int[] found)
+        {
+            //which tone of the chord each degree is, or -1
+            int[] toneOf = new int[8];
+            for(int degree = 1; degree <= 7; degree++)
+                toneOf[degree] = type.toneOf(degree);
+            int sopranoTone = toneOf[tables.getDegree(soprano)];
+            if(sopranoTone < 0)
+                return 0;
+            int required = type.getToneCount() == 4 ? 0xB : 0x3;
+            int count = 0;
+            for(int inversion = 0; inversion < type.getToneCount(); inversion++)
+            {
+                for(int bass = tables.getLow8(Chord.BASS); bass <= tables.getHigh8(Chord.BASS); bass++)
+                {
+                    if(toneOf[tables.getDegree(bass)] != inversion)
+                        continue;
+                    for(int tenor = Math.max(bass, tables.getLow8(Chord.TENOR));
+                            tenor <= tables.getHigh8(Chord.TENOR); tenor++)
+                    {
+                        int tenorTone = toneOf[tables.getDegree(tenor)];
+                        if(tenorTone < 0)
+                            continue;
+                        for(int alto = Math.max(tenor, tables.getLow8(Chord.ALTO));
+                                alto <= tables.getHigh8(Chord.ALTO) && alto <= soprano; alto++)
+                        {
+                            int altoTone = toneOf[tables.getDegree(alto)];
+                            if(altoTone < 0 || tenor + 7 < alto || alto + 7 < soprano)
+                                continue;
+                            //a triad needs its root and third, a seventh chord its root, third
+                            //and seventh; the fifth may be left out for a doubled note
+                            int sounding = 1 << inversion | 1 << tenorTone | 1 << altoTone
+                                    | 1 << sopranoTone;
+                            if((sounding & required) == required && count < found.length)
+                                found[count++] = bass | tenor << 8 | alto << 16 | inversion << 24;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @param type     a chord of the vocabulary the table was compiled from
+         * @param soprano  the soprano's harmony number
+         * @return the chord's voicings under that soprano, root positions first; don't modify
+         */
+        public int[] get(Type type, int soprano)
+        {
+            int s = soprano - sopranoLow;
+            if(s < 0 || s >= voicings[type.index].length)
+                return NONE;
+            return voicings[type.index][s];
+        }
+
+        public static int getBass(int voicing)
+        {
+            return voicing & 0xFF;
+        }
+
+        public static int getTenor(int voicing)
+        {
+            return voicing >>> 8 & 0xFF;
+        }
+
+        public static int getAlto(int voicing)
+        {
+            return voicing >>> 16 & 0xFF;
+        }
+
+        /**
+         * @return which tone is in the bass, 0 for root position
+         */
+        public static int getInversion(int voicing)
+        {
+            return voicing >>> 24;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Holds a large corpus of harmonizations in memory without putting them on the Java heap.
+ * Each harmonization is packed the way HarmonyArchiveWriter packs an entry, 4 bytes per
+ * chord, into direct ByteBuffers allocated in large segments, so 100 million chords take
+ * 400MB outside the heap and the garbage collector never has to trace them.  The heap holds
+ * only the segments' handles and an 8-byte offset per harmonization.
+ *
+ * <p>Entries are read back as HarmonyArchiveReader.Entry views of the segment they live in,
+ * so code written against a mapped archive works on a store too, and save() writes a store
+ * out as an archive.  forEach() visits every entry in order; parallelScan() splits them over
+ * threads that each fold their share into their own result.
+ *
+ * <p>Direct memory counts against -XX:MaxDirectMemorySize, which defaults to the maximum heap
+ * size, so a store larger than the heap needs that raised.
+ *
+ * <p>Adding is synchronized, and entries added before a read has started are safe to read
+ * from any thread while more are being added.
+ */
+public class CorpusStore
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private final int segmentSize;
+    private volatile ByteBuffer[] segments = new ByteBuffer[16];
+    private int segmentCount;
+    private int segmentPosition;				//where the next entry goes in the last segment
+    private long[] offsets = new long[1024];	//segment number << 32 | position, per entry
+    private volatile long count;
+    private long chords;
+
+    public CorpusStore()
+    {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize  the size of each block of direct memory allocated, in bytes; an
+     *                     entry too large for one gets a segment of its own
+     */
+    public CorpusStore(int segmentSize)
+    {
+        if(segmentSize < HarmonyArchiveWriter.ENTRY_HEADER_SIZE)
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Add a four-part harmonization.  Its key is taken from the soprano of the first chord, as
+     * HarmonyArchiveWriter does.
+     *
+     * @return the index of the new entry
+     */
+    public synchronized long add(Chord[] harmony)
+    {
+        if(harmony.length > 0 && harmony[0].getVoiceCount() != 4)
+            throw new IllegalArgumentException("A store holds four-part harmony, not "
+                    + harmony[0].getVoiceCount() + " parts");
+        Key key = harmony.length > 0 ? harmony[0].getSopranoNote().getKey() : null;
+        ByteBuffer segment = startEntry(key == null ? 0 : key.getFifths(),
+                key != null && Key.MINOR.equals(key.getKeyType()), harmony.length);
+        for(int i = 0; i < harmony.length; i++)
+        {
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+                segment.put(segmentPosition++, (byte)harmony[i].getNote(voice).getNoteNumber());
+        }
+        return publish(harmony.length);
+    }
+
+    /**
+     * Copy an entry from an archive or another store without decoding it.
+     *
+     * @return the index of the new entry
+     */
+    public synchronized long add(HarmonyArchiveReader.Entry entry)
+    {
+        ByteBuffer segment = startEntry(entry.getFifths(), entry.isMinor(), entry.size());
+        ByteBuffer data = entry.getChordData();
+        ByteBuffer target = segment.duplicate();
+        target.position(segmentPosition);
+        target.put(data);
+        segmentPosition = target.position();
+        return publish(entry.size());
+    }
+
+    /**
+     * Find room for an entry, record where it starts and write its header.
+     *
+     * @return the segment to write the chords to, from segmentPosition on
+     */
+    private ByteBuffer startEntry(int fifths, boolean minor, int chordCount)
+    {
+        long size = HarmonyArchiveWriter.ENTRY_HEADER_SIZE
+                + (long)chordCount * HarmonyArchiveWriter.BYTES_PER_CHORD;
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Harmony too long to store: " + chordCount + " chords");
+        if(segmentCount == 0 || segmentPosition + size > segments[segmentCount - 1].capacity())
+            newSegment((int)Math.max(size, segmentSize));
+
+        if(count == offsets.length)
+        {
+            long[] larger = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, larger, 0, offsets.length);
+            offsets = larger;
+        }
+        offsets[(int)count] = (long)(segmentCount - 1) << 32 | segmentPosition;
+
+        ByteBuffer segment = segments[segmentCount - 1];
+        segment.put(segmentPosition, (byte)fifths);
+        segment.put(segmentPosition + 1, (byte)(minor ? 1 : 0));
+        segment.putInt(segmentPosition + 2, chordCount);
+        segmentPosition += HarmonyArchiveWriter.ENTRY_HEADER_SIZE;
+        return segment;
+    }
+
+    private void newSegment(int size)
+    {
+        if(segmentCount == segments.length)
+        {
+            ByteBuffer[] larger = new ByteBuffer[segments.length * 2];
+            System.arraycopy(segments, 0, larger, 0, segments.length);
+            segments = larger;
+        }
+        segments[segmentCount++] = ByteBuffer.allocateDirect(size);
+        segmentPosition = 0;
+    }
+
+    /**
+     * Make the entry just written visible to readers.
+     */
+    private long publish(int chordCount)
+    {
+        chords += chordCount;
+        return count++;
+    }
+
+    /**
+     * @return the number of harmonizations stored
+     */
+    public long size()
+    {
+        return count;
+    }
+
+    /**
+     * @return the number of chords in all the harmonizations together
+     */
+    public synchronized long getChordCount()
+    {
+        return chords;
+    }
+
+    /**
+     * @return the direct memory allocated for the entries, in bytes
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        long bytes = 0;
+        for(int i = 0; i < segmentCount; i++)
+            bytes += segments[i].capacity();
+        return bytes;
+    }
+
+    /**
+     * @param index  which harmonization, from 0
+     * @return a view of the harmonization, backed by the store's memory
+     */
+    public HarmonyArchiveReader.Entry get(long index)
+    {
+        long stored = count;
+        if(index < 0 || index >= stored)
+            throw new IndexOutOfBoundsException("No entry " + index + " in a store of " + stored);
+        return entry(segments, offsets, index);
+    }
+
+    /**
+     * Build the view of an entry.  The arrays are passed in as read after count, so they are
+     * at least as new as the entry.
+     */
+    private static HarmonyArchiveReader.Entry entry(ByteBuffer[] segments, long[] offsets, long index)
+    {
+        long offset = offsets[(int)index];
+        ByteBuffer segment = segments[(int)(offset >>> 32)];
+        int position = (int)offset;
+        int chordCount = segment.getInt(position + 2);
+
+        ByteBuffer data = segment.duplicate();
+        data.position(position);
+        data.limit(position + HarmonyArchiveWriter.ENTRY_HEADER_SIZE
+                + chordCount * HarmonyArchiveWriter.BYTES_PER_CHORD);
+        return new HarmonyArchiveReader.Entry(data.slice());
+    }
+
+    /**
+     * Visit every entry in order, on this thread.
+     */
+    public void forEach(Consumer<HarmonyArchiveReader.Entry> visitor)
+    {
+        scan(0, count, visitor);
+    }
+
+    private void scan(long from, long to, Consumer<HarmonyArchiveReader.Entry> visitor)
+    {
+        //read after count was, so both arrays reach at least entry to - 1
+        ByteBuffer[] segments = this.segments;
+        long[] offsets = this.offsets;
+        for(long i = from; i < to; i++)
+            visitor.accept(entry(segments, offsets, i));
+    }
+
+    /**
+     * Fold every entry into a result using several threads.  The entries are cut into one
+     * contiguous run per thread; each thread starts its own result from the supplier, adds its
+     * run's entries to it, and the results are combined in order at the end.  The threads
+     * share nothing while they scan, so the accumulator needs no locking.
+     *
+     * @param threads     how many threads to scan with
+     * @param start       makes each thread's empty result
+     * @param accumulate  adds one entry to a result
+     * @param combine     joins two results, the earlier entries' first
+     * @return the combined result
+     */
+    public <T> T parallelScan(int threads, Supplier<T> start, BiConsumer<T, HarmonyArchiveReader.Entry> accumulate,
+            BinaryOperator<T> combine) throws InterruptedException
+    {
+        long total = count;
+        int tasks = (int)Math.max(1, Math.min(threads, total));
+        ExecutorService pool = Executors.newFixedThreadPool(tasks);
+        try {
+            List<Future<T>> results = new ArrayList<Future<T>>();
+            for(int t = 0; t < tasks; t++)
+            {
+                final long from = total * t / tasks;
+                final long to = total * (t + 1) / tasks;
+                results.add(pool.submit(() -> {
+                    T result = start.get();
+                    scan(from, to, entry -> accumulate.accept(result, entry));
+                    return result;
+                }));
+            }
+
+            T combined = null;
+            for(Future<T> result : results)
+            {
+                try {
+                    combined = combined == null ? result.get() : combine.apply(combined, result.get());
+                }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException)e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return combined;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Write the store out as an archive HarmonyArchiveReader can map.
+     */
+    public void save(File file) throws IOException
+    {
+        HarmonyArchiveWriter writer = new HarmonyArchiveWriter(file);
+        try {
+            long stored = count;
+            for(long i = 0; i < stored; i++)
+                writer.add(get(i));
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Copy every entry of an archive into a new store.
+     */
+    public static CorpusStore load(HarmonyArchiveReader archive)
+    {
+        CorpusStore store = new CorpusStore();
+        for(long i = 0; i < archive.size(); i++)
+            store.add(archive.get(i));
+        return store;
+    }
+}
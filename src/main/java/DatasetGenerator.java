@@ -0,0 +1,358 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a synthetic dataset of four-part harmonizations for training models: samples
+ * random melodies, harmonizes them on every core and writes the results as a set of archive
+ * shards HarmonyArchiveReader can map.
+ *
+ * <pre>
+ *   java DatasetGenerator --out=dir [--shards=N] [--melodies=N] [--keys=C,G,Am,...]
+ *                         [--lengths=8,16,32] [--cadences=authentic,plagal,half,deceptive]
+ *                         [--leap=steps] [--budget=N] [--threads=N] [--seed=N]
+ * </pre>
+ *
+ * <p>Each shard samples --melodies melodies from MelodySampler, each in a key and of a length
+ * picked at random from those given, and keeps only those whose last two notes lead
+ * KnowledgeDB.findCadence to one of the cadences asked for.  Keys are written as Key.parse
+ * reads them, or "all" for all 30.  The shard's melodies and the engine's choices while
+ * harmonizing them all come from one Random seeded from the master seed and the shard
+ * number, so a shard's harmonies don't depend on which thread made them or when.
+ *
+ * <p>A harmonization gives up after --budget retried chords per melody note, counted by its
+ * listener rather than timed, so a melody the engine can't finish is dropped the same way on
+ * every run.  About 28% of the sampled melodies can't be harmonized at any budget, so the
+ * default of 1000 keeps about 72% of them.  A budget of 200 runs two to three times as fast
+ * but keeps about 65%, as it also drops melodies that need many retries.  The engine throwing
+ * anything but the budget's CancellationException is a bug, and stops the run with the
+ * melody in the message.
+ *
+ * <p>Shards are written in order, as shard-00000.hgar and so on, and a harmonization whose
+ * key and notes match one already written, in this shard or an earlier one, is left out.
+ * Duplicates are found by a 64-bit hash of the entry, so the same master seed and settings
+ * give the same files whatever --threads is.  A finished shard is held off the heap in a
+ * CorpusStore until the shards before it are written.
+ */
+public class DatasetGenerator
+{
+    public static final String SHARD_SUFFIX = ".hgar";
+
+    private static final int STORE_SEGMENT_SIZE = 1 << 20;
+
+    private File out;
+    private int shards = 16;
+    private int melodiesPerShard = 1000;
+    private Key[] keys = MelodySampler.allKeys();
+    private int[] lengths = { 8, 16, 32 };
+    private boolean[] cadences = { true, true, true, true };	//by KnowledgeDB cadence type
+    private int maxLeap = MelodySampler.DEFAULT_MAX_LEAP;
+    private int budget = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long seed = 1;
+
+    public static void main(String[] args) throws Exception
+    {
+        DatasetGenerator generator = new DatasetGenerator();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--out="))
+                generator.out = new File(arg.substring("--out=".length()));
+            else if(arg.startsWith("--shards="))
+                generator.shards = Integer.parseInt(arg.substring("--shards=".length()));
+            else if(arg.startsWith("--melodies="))
+                generator.melodiesPerShard = Integer.parseInt(arg.substring("--melodies=".length()));
+            else if(arg.startsWith("--keys="))
+                generator.keys = parseKeys(arg.substring("--keys=".length()));
+            else if(arg.startsWith("--lengths="))
+                generator.lengths = parseLengths(arg.substring("--lengths=".length()));
+            else if(arg.startsWith("--cadences="))
+                generator.cadences = parseCadences(arg.substring("--cadences=".length()));
+            else if(arg.startsWith("--leap="))
+                generator.maxLeap = Integer.parseInt(arg.substring("--leap=".length()));
+            else if(arg.startsWith("--budget="))
+                generator.budget = Integer.parseInt(arg.substring("--budget=".length()));
+            else if(arg.startsWith("--threads="))
+                generator.threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if(arg.startsWith("--seed="))
+                generator.seed = Long.parseLong(arg.substring("--seed=".length()));
+            else
+            {
+                generator.out = null;
+                break;
+            }
+        }
+        if(generator.out == null)
+        {
+            System.out.println("usage: java DatasetGenerator --out=dir [--shards=N] [--melodies=N] "
+                    + "[--keys=C,G,Am,...] [--lengths=8,16,32] "
+                    + "[--cadences=authentic,plagal,half,deceptive] [--leap=steps] [--budget=N] "
+                    + "[--threads=N] [--seed=N]");
+            return;
+        }
+        generator.run();
+    }
+
+    private static Key[] parseKeys(String text)
+    {
+        if(text.equals("all"))
+            return MelodySampler.allKeys();
+        String[] parts = text.split(",");
+        Key[] keys = new Key[parts.length];
+        for(int i = 0; i < parts.length; i++)
+        {
+            keys[i] = Key.parse(parts[i]);
+            if(keys[i] == null)
+                throw new IllegalArgumentException("Unknown key: " + parts[i]);
+        }
+        return keys;
+    }
+
+    private static int[] parseLengths(String text)
+    {
+        String[] parts = text.split(",");
+        int[] lengths = new int[parts.length];
+        for(int i = 0; i < parts.length; i++)
+        {
+            lengths[i] = Integer.parseInt(parts[i].trim());
+            if(lengths[i] < 3)
+                throw new IllegalArgumentException("A melody needs at least 3 notes: " + lengths[i]);
+        }
+        return lengths;
+    }
+
+    private static boolean[] parseCadences(String text)
+    {
+        boolean[] cadences = new boolean[KnowledgeDB.CADENCE_NAMES.length];
+        for(String part : text.split(","))
+        {
+            int type = 0;
+            while(type < cadences.length && !KnowledgeDB.CADENCE_NAMES[type].equals(part.trim()))
+                type++;
+            if(type == cadences.length)
+                throw new IllegalArgumentException("Unknown cadence: " + part);
+            cadences[type] = true;
+        }
+        return cadences;
+    }
+
+    private void run() throws IOException, InterruptedException, ExecutionException
+    {
+        if(!out.isDirectory() && !out.mkdirs())
+            throw new IOException("Can't create " + out);
+
+        final MelodySampler[] samplers = new MelodySampler[keys.length];
+        final KeyTables[] tables = new KeyTables[keys.length];
+        for(int k = 0; k < keys.length; k++)
+        {
+            samplers[k] = new MelodySampler(keys[k]);
+            samplers[k].setMaxLeap(maxLeap);
+            tables[k] = new KeyTables(keys[k]);
+        }
+
+        System.out.println(shards + " shards of " + melodiesPerShard + " melodies on " + threads
+                + " threads, seed " + seed);
+        long started = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Shard>> results = new ArrayList<Future<Shard>>();
+            for(int s = 0; s < shards; s++)
+            {
+                final int shard = s;
+                results.add(pool.submit(() -> generate(shard, samplers, tables)));
+            }
+
+            //written in shard order, so which copy of a duplicate is kept never varies
+            Set<Long> written = new HashSet<Long>();
+            Shard total = new Shard();
+            for(int s = 0; s < shards; s++)
+            {
+                Shard shard = results.get(s).get();
+                results.set(s, null);
+                HarmonyArchiveWriter writer = new HarmonyArchiveWriter(shardFile(out, s));
+                try {
+                    for(long i = 0; i < shard.store.size(); i++)
+                    {
+                        if(written.add(shard.hashes[(int)i]))
+                            writer.add(shard.store.get(i));
+                        else
+                            total.duplicates++;
+                    }
+                    total.written += writer.size();
+                }
+                finally {
+                    writer.close();
+                }
+                total.add(shard);
+            }
+            report(total, System.nanoTime() - started);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the file shard number s of a dataset is written to
+     */
+    public static File shardFile(File directory, int s)
+    {
+        return new File(directory, String.format("shard-%05d%s", s, SHARD_SUFFIX));
+    }
+
+    /**
+     * @return the seed of one shard's Random, spread so neighbouring shards share no pattern
+     */
+    static long shardSeed(long seed, int shard)
+    {
+        //the SplitMix64 finalizer over the master seed stepped once per shard
+        long z = seed + (shard + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private Shard generate(int number, MelodySampler[] samplers, KeyTables[] tables)
+    {
+        Random random = new Random(shardSeed(seed, number));
+        Shard shard = new Shard();
+        shard.store = new CorpusStore(STORE_SEGMENT_SIZE);
+        shard.hashes = new long[melodiesPerShard];
+
+        for(int m = 0; m < melodiesPerShard; m++)
+        {
+            int k = random.nextInt(samplers.length);
+            int length = lengths[random.nextInt(lengths.length)];
+            int[] melody = samplers[k].sample(length, random);
+            if(!cadences[getCadenceType(samplers[k], melody)])
+            {
+                shard.rejected++;
+                continue;
+            }
+
+            String notes = samplers[k].toNoteString(melody);
+            InferenceEngine engine;
+            try {
+                engine = new InferenceEngine(notes, tables[k], new Budget(budget * length), random);
+            }
+            catch(CancellationException e) {
+                shard.overBudget++;
+                continue;
+            }
+            catch(RuntimeException e) {
+                //an engine bug, not a melody to drop: stop the run and say which melody
+                Key key = samplers[k].getKey();
+                throw new IllegalStateException("Harmonizing " + notes + " in "
+                        + key.getRootName() + " " + key.getKeyType() + " failed", e);
+            }
+            if(engine.checkForError())
+            {
+                shard.failed++;
+                continue;
+            }
+
+            long index = shard.store.add(engine.getChords());
+            shard.hashes[(int)index] = hash(shard.store.get(index));
+        }
+        return shard;
+    }
+
+    private static int getCadenceType(MelodySampler sampler, int[] melody)
+    {
+        return KnowledgeDB.getCadenceType(sampler.getDegree(melody[melody.length - 2]),
+                sampler.getDegree(melody[melody.length - 1]));
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of an entry's key and notes.
+     */
+    static long hash(HarmonyArchiveReader.Entry entry)
+    {
+        long hash = 0xCBF29CE484222325L;
+        hash = (hash ^ (entry.getFifths() & 0xFF)) * 0x100000001B3L;
+        hash = (hash ^ (entry.isMinor() ? 1 : 0)) * 0x100000001B3L;
+        ByteBuffer chords = entry.getChordData();
+        while(chords.hasRemaining())
+            hash = (hash ^ (chords.get() & 0xFF)) * 0x100000001B3L;
+        return hash;
+    }
+
+    private void report(Shard total, long elapsed)
+    {
+        long sampled = (long)shards * melodiesPerShard;
+        System.out.println(String.format("sampled %d, wrong cadence %d, failed %d, over budget %d",
+                sampled, total.rejected, total.failed, total.overBudget));
+        System.out.println(String.format("harmonized %d, duplicates %d, written %d to %s",
+                total.harmonized, total.duplicates, total.written, out));
+        System.out.println(String.format("finished in %.1f s, %.0f melodies/s", elapsed / 1e9,
+                sampled / (elapsed / 1e9)));
+    }
+
+    /**
+     * A shard's harmonizations and what became of its melodies.
+     */
+    private static class Shard
+    {
+        CorpusStore store;
+        long[] hashes;		//of each entry in the store
+        long rejected;
+        long failed;
+        long overBudget;
+        long harmonized;
+        long duplicates;
+        long written;
+
+        void add(Shard other)
+        {
+            rejected += other.rejected;
+            failed += other.failed;
+            overBudget += other.overBudget;
+            harmonized += other.store.size();
+        }
+    }
+
+    /**
+     * Stops a harmonization after a fixed number of retries, so the cut-off is the same on
+     * every run however busy the machine is.
+     */
+    private static class Budget implements HarmonyListener
+    {
+        private int left;
+
+        Budget(int retries)
+        {
+            left = retries;
+        }
+
+        public void chordCompleted(int index, int total)
+        {
+        }
+
+        public void chordRetried(int index, int attempt)
+        {
+            spend();
+        }
+
+        public void invertedChordTried(int index)
+        {
+            spend();
+        }
+
+        private void spend()
+        {
+            if(--left < 0)
+                throw new CancellationException("Retry budget spent");
+        }
+    }
+}
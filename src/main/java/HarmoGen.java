@@ -8,26 +8,30 @@
  * @author Alec LaLonde
  */
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ExecutionException;
 
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.Track;
-
-import org.jfugue.Pattern;
-import org.jfugue.Player;
+import javax.swing.SwingWorker;
 
 public class HarmoGen {
 	
 	//Constants useful for outputting results.
 	public final static String TEXT = "text";
 	public final static String MIDI = "MIDI";
+	public final static String MUSICXML = "MusicXML";
+	public final static String ABC = "ABC";
 	public final static String PLAY = "Play";
 	
 	private final static String SOPRANO = "Soprano: ";
@@ -51,21 +55,12 @@ public class HarmoGen {
 	private final static int B = 0;
 	*/
 	
-	private final static String NOTES_AS_SHARPS[] =
-		{ "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
-	
-	private final static String NOTES_AS_FLATS[] =
-		{ "C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab", "A", "Bb", "B" };
-
-	//Other useful constants.
-	private final static byte opcode = -112;
-	private final static int octaveSize = 12;
-	
 	//Variables
 	private static String notes = "";
 	private static BufferedReader input;
 	private static String[] harmonized;
-	private static Player player;
+	private static Chord[] harmonizedChords;
+	private static String harmonizedMelody;	//the notes harmonizedChords were found for
 	
 	//GUI
 	private static HarmoGenPanel view;
@@ -74,31 +69,33 @@ public class HarmoGen {
 	//Methods
 	
 	/**
-	 * Reads in a midi file, using the note on MidiEvent to determine
-	 * what notes are being played.
+	 * Reads in a midi file, taking the melody from its highest voice.  The key comes
+	 * from the file's key signature if it has one, otherwise from the GUI, and failing
+	 * that KeyDetector works it out from the melody.
 	 * 
-	 * @param fileName - The name of the file to read in.
+	 * @param file - The MIDI file to read in.
+	 * @return the key of the melody, or null if no key could be found.
 	 */
-	public static void readMidi(File file) throws Exception {
-		Sequence sequence = MidiSystem.getSequence(file);
-		Track[] tracks = sequence.getTracks();
-		byte[] messages;
-		int noteByte;
-		int octave;
-		String noteString;
-		
-		ArrayList noteBytes = new ArrayList();
+	public static Key readMidi(File file) throws Exception {
+		Melody melody = new SmfReader().readMelody(file);
+		Key key = melody.getKey();
 		
-		//7 is the magic number that steps past all the header/rhythm information
-		for (int j = 7; j < (tracks[0].size() - 1); j++) {
-            messages = tracks[0].get(j).getMessage().getMessage();
-            if ((messages[0] & opcode) == opcode) {
-                noteByte = messages[1];
-                noteBytes.add(new Integer(noteByte));
-            }
+		if(key == null)
+		    key = view.getKey();
+		if(key == null)
+		{
+		    KeyDetector.Result found = KeyDetector.detect(melody);
+		    if(found == null)
+		    {
+		        view.displayErrorMessage("Please enter a key before importing a MIDI file " +
+		                "without a key signature");
+		        return null;
+		    }
+		    key = found.getKey();
 		}
 		
-		createNotesArray(noteBytes);
+		notes = Utilities.createNoteString(melody.getPitches(), key);
+		return key;
 	}
 	
 	/**
@@ -113,13 +110,12 @@ public class HarmoGen {
 		}
 		catch(FileNotFoundException e){
 		    view.displayErrorMessage(e.getMessage());
+		    return;
 		}
 	
 		try{
-			String nextLine;
-			while( (nextLine = input.readLine()) != null){
-				notes = notes.concat(nextLine);
-			}
+			notes = Utilities.readNotes(input);
+			input.close();
 		}
 		catch(IOException e){
 		    view.displayErrorMessage(e.getMessage());
@@ -127,84 +123,56 @@ public class HarmoGen {
 	}
 	
 	/**
-	 * Read in an ABC file
+	 * Read in an ABC file.  Only the first tune of a collection is used; see
+	 * AbcCollection for working with all of them.
 	 * 
 	 * @param file - the name of the ABC file to be read
+	 * @return the key of the tune, or null if it has none HarmoGen knows
 	 */
 	public static Key readABC(File file)
 	{
-	    String melodyString;
-	    Key key = null;
+	    AbcTune tune = null;
 	    
 	    try {
-			input = new BufferedReader(new FileReader(file));
-		}
-		catch(FileNotFoundException e){
-		    view.displayErrorMessage(e.getMessage());
-		}
-	
-		try{
-			String nextLine;
-			while( (nextLine = input.readLine()) != null){
-			    if(nextLine.substring(0,2).equals("K:"))
-			    {
-			        key = readKey(nextLine.substring(2));
-			    }
-			    
-				notes = notes.concat(nextLine);
-			}
+	        InputStream in = new FileInputStream(file);
+	        try {
+	            tune = new AbcReader(in).next();
+	        }
+	        finally {
+	            in.close();
+	        }
 		}
 		catch(IOException e){
 		    view.displayErrorMessage(e.getMessage());
+		    return null;
 		}
 		
-		return key;
-	}
-	
-	private static Key readKey(String keyString)
-	{
-	    String keyRoot;
-	    String majOrMin; 
-	    
-        if(keyString.charAt(1) == '#' || keyString.charAt(1) == 'b')
-        {
-            keyRoot = keyString.substring(0,2);
-            majOrMin = keyString.substring(2);
-        }
-        else
-        {
-            keyRoot = keyString.substring(0,1);
-            majOrMin = keyString.substring(1);
-        }
-        
-        if(majOrMin.equals("") || majOrMin.equals("Maj") || majOrMin.equals("maj"))
-            majOrMin = Key.MAJOR;
-        else if(majOrMin.equals("m") || majOrMin.equals("Min") || majOrMin.equals("min"))
-            majOrMin = Key.MINOR;
-        
-        return new Key(keyRoot, majOrMin);
+		if(tune == null)
+		{
+		    view.displayErrorMessage(file.getName() + " does not contain an ABC tune.");
+		    return null;
+		}
+		
+		notes = tune.getNotes();
+		return tune.getKey();
 	}
 	
-	
 	/**
-	 * Saves the results to a text file.
-	 * 
-	 * @param results - The harmonized notes.
+	 * Saves the results to a text file, one line per voice.
 	 */
-	private static void textOutput(String[] results){
+	private static void textOutput(){
 	    String fileName = harmonyView.showFileNamePrompt(TEXT);
 		try{ 
-			FileWriter textFile = new FileWriter(new File(fileName));
-			textFile.write(SOPRANO + results[0] + NEW_LINE, 0,
-					SOPRANO.length() + results[0].length() + NEW_LINE.length());
-			textFile.write(ALTO + results[1] + NEW_LINE, 0,
-					ALTO.length() + results[1].length() + NEW_LINE.length());
-			textFile.write(TENOR + results[2] + NEW_LINE, 0,
-					TENOR.length() + results[2].length() + NEW_LINE.length());
-			textFile.write(BASS + results[3] + NEW_LINE, 0,
-					BASS.length() + results[3].length() + NEW_LINE.length());
-			textFile.flush();
-			textFile.close();
+			Writer textFile = new BufferedWriter(new FileWriter(new File(fileName)));
+			try {
+				writeVoiceLine(textFile, SOPRANO, Chord.SOPRANO);
+				writeVoiceLine(textFile, ALTO, Chord.ALTO);
+				writeVoiceLine(textFile, TENOR, Chord.TENOR);
+				writeVoiceLine(textFile, BASS, Chord.BASS);
+			}
+			finally {
+				textFile.close();
+			}
 		}
 		catch(Exception e)
 		{
@@ -212,24 +180,11 @@ public class HarmoGen {
 		}
 	}
 	
-	/**
-	 * Sets up a midi to do something useful with.
-	 * 
-	 * @param results - The harmonized notes.
-	 * @return A Pattern representing the harmonized notes.
-	 */	
-	private static Pattern setupMidi(String[] results){
-		Pattern pattern = new Pattern("");
-		String[] soprano = results[0].split(" ");
-		String[] alto = results[1].split(" ");
-		String[] tenor = results[2].split(" ");
-		String[] bass = results[3].split(" ");
-		for(int i = 0; i < soprano.length; i++){
-			pattern.add(new Pattern(soprano[i] + "+" + 
-					alto[i] + "+" + tenor[i] + "+" +
-					bass[i]));
-		}
-		return pattern;
+	private static void writeVoiceLine(Writer out, String label, int voice) throws IOException
+	{
+	    out.write(label);
+	    InferenceEngine.writeVoice(harmonizedChords, voice, out);
+	    out.write(NEW_LINE);
 	}
 	
 	public static String getNotes()
@@ -244,33 +199,79 @@ public class HarmoGen {
 	
 	/**
 	 * Create the inference engine and go through the harmonization process, assuming the notes 
-	 * variable contains a set of valid notes.
+	 * variable contains a set of valid notes.  The harmonizing runs in the background, so the 
+	 * window stays responsive; the view shows its progress and can cancel it.
+	 * 
+	 * If the melody is an edit of the last one harmonized, only the chords around the notes
+	 * that changed are found again.  Harmonizing the same melody twice starts afresh, to get a
+	 * different harmony.
 	 */
 	public static void harmonize()
 	{
-	    //TODO: display progress bar
-	    InferenceEngine engine = new InferenceEngine(notes, view.getKey());
-	    //this starts the harmonization
-				
-		if (engine.checkForError()) 
-		{
-            view.displayErrorMessage(InferenceEngine.errorMessage());
-        	} 
-		else 
-        	{
-            harmonized = engine.printFourParts();
-            
-            harmonyView = new HarmonyCompleteDialog(view, harmonized);
-            harmonyView.setVisible(true);  
-        }
+	    final String melody = notes;
+	    //with no key chosen, harmonize in the key the melody sounds like it's in
+	    final Key key = view.getKey() != null ? view.getKey() : HarmonyService.detectKey(melody);
+	    final Chord[] previous = melody.trim().equals(harmonizedMelody) ? null : harmonizedChords;
+	    
+	    SwingWorker<InferenceEngine, Void> worker = new SwingWorker<InferenceEngine, Void>() {
+	        protected InferenceEngine doInBackground()
+	        {
+	            //this starts the harmonization
+	            return new InferenceEngine(melody, key == null ? null : new KeyTables(key),
+	                    new HarmonyListener() {
+	                        public void chordCompleted(int index, int total)
+	                        {
+	                            setProgress(100 * index / total);
+	                        }
+	                    }, null, previous);
+	        }
+	        
+	        protected void done()
+	        {
+	            view.harmonizationFinished();
+	            if(isCancelled())
+	                return;
+	            
+	            InferenceEngine engine;
+	            try {
+	                engine = get();
+	            }
+	            catch(InterruptedException e) {
+	                return;
+	            }
+	            catch(ExecutionException e) {
+	                view.displayErrorMessage("Harmonization failed: " + e.getCause());
+	                return;
+	            }
+	            
+	            if (engine.checkForError()) 
+	            {
+	                view.displayErrorMessage(engine.getErrorMessage());
+	            } 
+	            else 
+	            {
+	                harmonized = engine.printFourParts();
+	                harmonizedChords = engine.getChords();
+	                harmonizedMelody = melody.trim();
+	                
+	                harmonyView = new HarmonyCompleteDialog(view, harmonized);
+	                harmonyView.setVisible(true);  
+	            }
+	        }
+	    };
+	    
+	    view.harmonizationStarted(worker);
+	    worker.execute();
     }
 	
 	/**
 	 * Perform the saving or playing based on what the user chose in the GUI.
 	 * 
-	 * @param choices an array of the two choices: 
+	 * @param choices an array of the four choices: 
 	 * 		0 = save to text 
 	 * 		1 = save to MIDI
+	 * 		2 = save to MusicXML
+	 * 		3 = save to ABC
 	 * 
 	 * 		-if a choice is not selected, the String will be an empty String.
 	 */
@@ -278,16 +279,58 @@ public class HarmoGen {
 	{
         if(choices[0].equals(TEXT))
         {
-            HarmoGen.textOutput(harmonized);
+            HarmoGen.textOutput();
         }
         
         if(choices[1].equals(MIDI))
         {
             //Save to MIDI file.
-            Player player = new Player();
             try {
                 String fileName = harmonyView.showFileNamePrompt(MIDI);
-                player.save(HarmoGen.setupMidi(harmonized), fileName);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+                try {
+                    new SmfWriter().write(harmonizedChords, out);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            catch (Exception e) 
+            {
+               view.displayErrorMessage("Error while saving file: " + e.getMessage());
+            }
+        }
+        
+        if(choices[2].equals(MUSICXML))
+        {
+            try {
+                String fileName = harmonyView.showFileNamePrompt(MUSICXML);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+                try {
+                    NotationWriter.writeMusicXml(NotationWriter.iterate(harmonizedChords), 
+                            "Harmony", out);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            catch (Exception e) 
+            {
+               view.displayErrorMessage("Error while saving file: " + e.getMessage());
+            }
+        }
+        
+        if(choices[3].equals(ABC))
+        {
+            try {
+                String fileName = harmonyView.showFileNamePrompt(ABC);
+                Writer out = new BufferedWriter(new FileWriter(fileName));
+                try {
+                    NotationWriter.writeAbc(NotationWriter.iterate(harmonizedChords), "Harmony", out);
+                }
+                finally {
+                    out.close();
+                }
             }
             catch (Exception e) 
             {
@@ -298,10 +341,9 @@ public class HarmoGen {
 	
 	public static void play() 
 	{
-	    //Play as MIDI file.
-        Player player2 = new Player();
+	    //Play as MIDI file; jfugue is only loaded now
         try {
-            player2.play(HarmoGen.setupMidi(harmonized));
+            HarmonyPlayer.play(harmonized);
         } 
         catch (Exception e) 
         {
@@ -309,29 +351,6 @@ public class HarmoGen {
         }
 	}
 	
-	private static void createNotesArray(ArrayList noteBytes)
-	{
-	    int octave;
-	    String noteString;
-	    int noteByte;
-	    
-	    String[] NOTE_AS_STRING;
-	    
-	    if(view.getKey().getSharpOrFlatKey() == Note.FLAT)
-	        NOTE_AS_STRING = NOTES_AS_FLATS;
-	    else
-	        NOTE_AS_STRING = NOTES_AS_SHARPS;
-	    
-	    for(int i = 0; i < noteBytes.size(); i++)
-	    {
-	        noteByte = ((Integer)noteBytes.get(i)).intValue();
-	        octave = noteByte / octaveSize;
-	        //System.out.println("Note " + i + ": " + noteByte);
-	        noteString = NOTE_AS_STRING[noteByte % octaveSize];
-	        notes = notes.concat(noteString + octave + " ");
-	    }
-	}
-	
 	/**
 	 * Display the GUI.
 	 * 
@@ -0,0 +1,201 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HarmoGen from the command line, for scripts and shell pipelines:
+ *
+ * <pre>
+ *   java HarmoGenCli [--key=G] [--mode=minor] [--format=text|abc|musicxml|midi]
+ *                    [--model=file] [--ranges=soprano=C5-G6,...] [--parts=SSATBB] [note...]
+ * </pre>
+ *
+ * <p>The melody is given as notes on the command line, or else read from standard input, one
+ * melody per line, so a file of melodies can be piped through.  Each harmony is written to
+ * standard output: as four labelled lines with a blank line after them in the default text
+ * format, or as ABC, MusicXML or a MIDI file.  A MIDI file holds one harmony, so with
+ * --format=midi standard input must hold exactly one melody.  Melodies that can't be
+ * harmonized get their reason on standard error, and the exit status is 1 if any failed; a
+ * bad argument or model file exits with 2.  Without --key each melody follows the keys
+ * KeyTracker finds in it.  --ranges gives the voices other ranges, as VoiceRanges.parse reads
+ * them.  --parts divides the sections for harmony in up to eight parts, as VoiceRanges.divide
+ * reads them; text and MIDI can hold any number of parts, ABC and MusicXML only four.
+ *
+ * <p>Nothing here touches AWT, Swing, jfugue or the MIDI system (except for --format=midi),
+ * so the JVM loads only the engine's classes and a one-off harmonization starts in a
+ * fraction of the time the GUI takes.  bin/harmogen runs this class with a class-data
+ * sharing archive, which cuts startup further.
+ */
+public class HarmoGenCli
+{
+    private static final String USAGE = "usage: java HarmoGenCli [--key=G] [--mode=minor] "
+            + "[--format=text|abc|musicxml|midi] [--model=file] [--ranges=soprano=C5-G6,...] "
+            + "[--parts=SSATBB] [note...]";
+
+    public static void main(String[] args) throws IOException
+    {
+        String key = null;
+        String mode = null;
+        String format = "text";
+        String ranges = null;
+        String parts = null;
+        ChordTransitionModel transitions = ChordTransitionModel.getDefault();
+        StringBuilder notes = new StringBuilder();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--key="))
+                key = arg.substring("--key=".length());
+            else if(arg.startsWith("--mode="))
+                mode = arg.substring("--mode=".length());
+            else if(arg.startsWith("--format="))
+                format = arg.substring("--format=".length());
+            else if(arg.startsWith("--ranges="))
+                ranges = arg.substring("--ranges=".length());
+            else if(arg.startsWith("--parts="))
+                parts = arg.substring("--parts=".length());
+            else if(arg.startsWith("--model="))
+            {
+                try {
+                    File model = new File(arg.substring("--model=".length()));
+                    transitions = ChordTransitionModel.read(model);
+                }
+                catch(IOException e) {
+                    System.err.println("Can't read the model: " + e.getMessage());
+                    System.exit(2);
+                }
+            }
+            else if(arg.startsWith("--"))
+            {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            else
+                notes.append(arg).append(' ');
+        }
+        if(!format.equals("text") && !format.equals("abc") && !format.equals("musicxml")
+                && !format.equals("midi"))
+        {
+            System.err.println("Unknown format: " + format);
+            System.exit(2);
+        }
+
+        HarmonyService service = new HarmonyService(transitions);
+        Key parsedKey = null;
+        VoiceRanges parsedRanges = null;
+        try {
+            if(key != null)
+                parsedKey = HarmonyService.parseKey(key, mode);
+            parsedRanges = VoiceRanges.parse(ranges);
+            if(parts != null)
+                parsedRanges = parsedRanges.divide(parts);
+        }
+        catch(InvalidNoteException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        if(parsedRanges.getVoiceCount() != 4 && (format.equals("abc") || format.equals("musicxml")))
+        {
+            System.err.println("--format=" + format + " can only write four parts");
+            System.exit(2);
+        }
+
+        OutputStream out = new BufferedOutputStream(System.out);
+        boolean failed = false;
+        if(notes.length() > 0)
+        {
+            failed = !harmonize(service, notes.toString(), parsedKey, parsedRanges, format, out);
+        }
+        else
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+            if(format.equals("midi"))
+            {
+                //a MIDI file is one harmony, and two written back to back aren't a MIDI file
+                String melody = null;
+                int count = 0;
+                while((line = in.readLine()) != null)
+                {
+                    if(line.trim().length() > 0)
+                    {
+                        melody = line;
+                        count++;
+                    }
+                }
+                if(count != 1)
+                {
+                    System.err.println("--format=midi writes one harmony, so give exactly one "
+                            + "melody (BulkMidiExporter writes many)");
+                    System.exit(2);
+                }
+                failed = !harmonize(service, melody, parsedKey, parsedRanges, format, out);
+            }
+            else
+            {
+                while((line = in.readLine()) != null)
+                {
+                    if(line.trim().length() > 0 && !harmonize(service, line, parsedKey, parsedRanges, format, out))
+                        failed = true;
+                }
+            }
+        }
+        out.flush();
+        if(failed)
+            System.exit(1);
+    }
+
+    /**
+     * Harmonize one melody and write the harmony.
+     *
+     * @return false if the melody couldn't be harmonized
+     */
+    private static boolean harmonize(HarmonyService service, String melody, Key key,
+            VoiceRanges ranges, String format, OutputStream out) throws IOException
+    {
+        Chord[] chords;
+        try {
+            chords = service.harmonize(melody, key, ranges);
+        }
+        catch(InvalidNoteException e) {
+            out.flush();
+            System.err.println(melody.trim() + ": " + e.getMessage().replace('\n', ' '));
+            return false;
+        }
+
+        if(format.equals("midi"))
+        {
+            new SmfWriter().write(chords, out);
+        }
+        else if(format.equals("musicxml"))
+        {
+            NotationWriter.writeMusicXml(NotationWriter.iterate(chords), "Harmony", out);
+        }
+        else
+        {
+            Writer text = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            if(format.equals("abc"))
+            {
+                NotationWriter.writeAbc(NotationWriter.iterate(chords), "Harmony", text);
+            }
+            else
+            {
+                String[] labels = HarmonyService.textLabels(ranges);
+                for(int v = 0; v < labels.length; v++)
+                {
+                    text.write(labels[v]);
+                    InferenceEngine.writeVoice(chords, v, text);
+                    text.write('\n');
+                }
+                text.write('\n');
+            }
+            text.flush();
+        }
+        return true;
+    }
+}
@@ -6,6 +6,8 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileNotFoundException;
 
@@ -22,10 +24,12 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingWorker;
 import javax.swing.WindowConstants;
 import javax.swing.border.BevelBorder;
 
@@ -63,6 +67,8 @@ public class HarmoGenPanel extends JFrame implements ActionListener
     private JButton btnHarmonize;
     private JButton btnImportMidi;
     private JButton btnImportText;
+    private JButton btnCancel;
+    private JProgressBar pbHarmonize;
     private JRadioButton rbManual;
     private JRadioButton rbImportMidi;
     private JRadioButton rbImportText;
@@ -85,6 +91,7 @@ public class HarmoGenPanel extends JFrame implements ActionListener
     private JFileChooser chooser;
     
     private Key key;						//the current selected key
+    private SwingWorker<?, ?> harmonizer;		//the harmonization running now, if any
     
     public HarmoGenPanel(String name) 
     {
@@ -112,6 +119,12 @@ public class HarmoGenPanel extends JFrame implements ActionListener
         btnHarmonize = new JButton("Harmonize...");
         btnImportMidi = new JButton("Import MIDI...");
         btnImportText = new JButton("Import ABC file...");
+        btnCancel = new JButton("Cancel");
+        btnCancel.setVisible(false);
+        
+        pbHarmonize = new JProgressBar(0, 100);
+        pbHarmonize.setStringPainted(true);
+        pbHarmonize.setVisible(false);
         
         cbKeyType = new JComboBox();
         cbKeyType.addItem(Key.BLANK);
@@ -136,6 +149,7 @@ public class HarmoGenPanel extends JFrame implements ActionListener
         btnImportMidi.addActionListener(this);
         btnImportText.addActionListener(this);
         btnHarmonize.addActionListener(this);
+        btnCancel.addActionListener(this);
         cbKeyType.addActionListener(this);
         cbKeyList.addActionListener(this);
         
@@ -286,6 +300,11 @@ public class HarmoGenPanel extends JFrame implements ActionListener
         
         gbc.weightx = 0;
         gbc.fill = GridBagConstraints.NONE; 
+        gbc.insets = new Insets(0, 0, 0, BORDER_SPACING);
+        harmonizePanel.add(pbHarmonize, gbc);
+        harmonizePanel.add(btnCancel, gbc);
+        
+        gbc.insets = new Insets(0, 0, 0, 0);
         gbc.gridwidth = GridBagConstraints.REMAINDER;
         harmonizePanel.add(btnHarmonize, gbc);
         
@@ -341,20 +360,16 @@ public class HarmoGenPanel extends JFrame implements ActionListener
             }           
             HarmoGen.harmonize();
         }
+        else if(selected == btnCancel)
+        {
+            if(harmonizer != null)
+                harmonizer.cancel(true);
+        }
         else if(selected == btnImportMidi || selected == btnImportText)
         {
             HarmoGen.setNotes("");
-            
-            if(selected == btnImportMidi && key == null)
-            {
-                displayErrorMessage("Please enter a key before importing a MIDI file");
-            }
-            else
-            {
-                displayFileChooser();
-                taNoteArea.setText(HarmoGen.getNotes());
-                
-            }
+            displayFileChooser();
+            taNoteArea.setText(HarmoGen.getNotes());
         }
         else if(selected == cbKeyType)
         {
@@ -414,7 +429,11 @@ public class HarmoGenPanel extends JFrame implements ActionListener
             
             try{
                 if(fileName.endsWith("mid"))
-                    HarmoGen.readMidi(selectedFile);
+                {
+                    Key midiKey = HarmoGen.readMidi(selectedFile);
+                    if(midiKey != null)
+                        key = midiKey;
+                }
                 else if(fileName.endsWith("abc"))
                     key = HarmoGen.readABC(selectedFile);
                 else
@@ -435,6 +454,41 @@ public class HarmoGenPanel extends JFrame implements ActionListener
         }
     }
     
+    /**
+     * Show the progress of a harmonization that is starting in the background, and let the 
+     * user cancel it.
+     * 
+     * @param worker the background harmonization
+     */
+    public void harmonizationStarted(SwingWorker<?, ?> worker)
+    {
+        harmonizer = worker;
+        btnHarmonize.setEnabled(false);
+        pbHarmonize.setValue(0);
+        pbHarmonize.setVisible(true);
+        btnCancel.setVisible(true);
+        worker.addPropertyChangeListener(new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent event)
+            {
+                if("progress".equals(event.getPropertyName()))
+                    pbHarmonize.setValue(((Integer)event.getNewValue()).intValue());
+            }
+        });
+        harmonizePanel.revalidate();
+    }
+    
+    /**
+     * Put the window back to normal once a harmonization has finished or been cancelled.
+     */
+    public void harmonizationFinished()
+    {
+        harmonizer = null;
+        btnHarmonize.setEnabled(true);
+        pbHarmonize.setVisible(false);
+        btnCancel.setVisible(false);
+        harmonizePanel.revalidate();
+    }
+    
     /**
      * Display a simple error dialog.
      * 
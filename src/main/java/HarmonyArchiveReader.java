@@ -0,0 +1,204 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads an archive written by HarmonyArchiveWriter by memory-mapping it.  Any entry, and any
+ * chord within it, can be reached in constant time, and entries are views of the mapped file
+ * rather than copies, so scanning an archive runs at the speed of the disk (or page cache).
+ *
+ * <p>A single mapping is limited to 2GB, so larger files are mapped as several windows.  The
+ * windows overlap by the size of the largest entry, which guarantees every entry lies wholly
+ * inside the window its offset falls in.
+ *
+ * <p>A reader can be shared between threads; each call to get() returns its own view.
+ */
+public class HarmonyArchiveReader implements Closeable
+{
+    private static final long WINDOW_STRIDE = 1L << 30;
+
+    private FileChannel channel;
+    private MappedByteBuffer[] windows;
+    private long count;
+    private long indexOffset;
+
+    public HarmonyArchiveReader(File file) throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HarmonyArchiveWriter.HEADER_SIZE);
+            while(header.hasRemaining() && channel.read(header, header.position()) >= 0)
+                ;
+            if(header.hasRemaining() || header.getInt(0) != HarmonyArchiveWriter.MAGIC)
+                throw new IOException(file.getName() + " is not a harmony archive");
+            if(header.getShort(4) != HarmonyArchiveWriter.VERSION)
+                throw new IOException(file.getName() + " has unsupported version "
+                        + header.getShort(4));
+            count = header.getLong(8);
+            indexOffset = header.getLong(16);
+            int overlap = Math.max(header.getInt(24), 8);
+            if(count < 0 || indexOffset < HarmonyArchiveWriter.HEADER_SIZE
+                    || indexOffset + count * 8 > length)
+                throw new IOException(file.getName() + " is truncated or corrupt");
+
+            int windowCount = (int)((length + WINDOW_STRIDE - 1) / WINDOW_STRIDE);
+            windows = new MappedByteBuffer[Math.max(windowCount, 1)];
+            for(int i = 0; i < windowCount; i++)
+            {
+                long start = i * WINDOW_STRIDE;
+                long size = Math.min(WINDOW_STRIDE + overlap, length - start);
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of harmonizations in the archive
+     */
+    public long size()
+    {
+        return count;
+    }
+
+    /**
+     * @param index which harmonization, from 0
+     * @return a view of the harmonization, backed by the mapped file
+     */
+    public Entry get(long index)
+    {
+        if(index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("No entry " + index + " in an archive of " + count);
+
+        long offset = windowFor(indexOffset + index * 8).getLong(positionIn(indexOffset + index * 8));
+        ByteBuffer window = windowFor(offset);
+        int position = positionIn(offset);
+        int chords = window.getInt(position + 2);
+
+        ByteBuffer entry = window.duplicate();
+        entry.position(position);
+        entry.limit(position + HarmonyArchiveWriter.ENTRY_HEADER_SIZE
+                + chords * HarmonyArchiveWriter.BYTES_PER_CHORD);
+        return new Entry(entry.slice());
+    }
+
+    private ByteBuffer windowFor(long offset)
+    {
+        return windows[(int)(offset / WINDOW_STRIDE)];
+    }
+
+    private static int positionIn(long offset)
+    {
+        return (int)(offset % WINDOW_STRIDE);
+    }
+
+    public void close() throws IOException
+    {
+        //the mappings stay valid until they are garbage collected
+        channel.close();
+    }
+
+    /**
+     * One harmonization in the archive.  Reading from an entry reads the mapped file directly.
+     */
+    public static class Entry
+    {
+        private ByteBuffer data;
+
+        Entry(ByteBuffer data)
+        {
+            this.data = data;
+        }
+
+        public int getFifths()
+        {
+            return data.get(0);
+        }
+
+        public boolean isMinor()
+        {
+            return data.get(1) != 0;
+        }
+
+        /**
+         * @return the key, or null if the stored signature is out of range
+         */
+        public Key getKey()
+        {
+            return Key.fromFifths(getFifths(), isMinor());
+        }
+
+        /**
+         * @return the number of chords
+         */
+        public int size()
+        {
+            return data.getInt(2);
+        }
+
+        /**
+         * @param chord  which chord, from 0
+         * @param voice  Chord.SOPRANO, ALTO, TENOR or BASS
+         * @return the MIDI number of that voice's note
+         */
+        public int getPitch(int chord, int voice)
+        {
+            return data.get(HarmonyArchiveWriter.ENTRY_HEADER_SIZE
+                    + chord * HarmonyArchiveWriter.BYTES_PER_CHORD + voice) & 0xFF;
+        }
+
+        /**
+         * @return the melody (soprano) as MIDI numbers
+         */
+        public int[] getMelody()
+        {
+            return getVoice(Chord.SOPRANO);
+        }
+
+        public int[] getVoice(int voice)
+        {
+            int[] pitches = new int[size()];
+            for(int i = 0; i < pitches.length; i++)
+                pitches[i] = getPitch(i, voice);
+            return pitches;
+        }
+
+        /**
+         * @return the chords as 4 bytes each, soprano first; a read-only view, not a copy
+         */
+        public ByteBuffer getChordData()
+        {
+            ByteBuffer chords = data.asReadOnlyBuffer();
+            chords.position(HarmonyArchiveWriter.ENTRY_HEADER_SIZE);
+            return chords.slice();
+        }
+
+        /**
+         * Rebuild the harmonization as Chords, spelling its notes in its key.
+         */
+        public Chord[] toChords()
+        {
+            Key key = getKey();
+            String[][] voices = new String[4][];
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+                voices[voice] = Utilities.createNoteString(getVoice(voice), key).split(" ");
+
+            Chord[] chords = new Chord[size()];
+            for(int i = 0; i < chords.length; i++)
+            {
+                chords[i] = new Chord(new Note(voices[Chord.BASS][i], key),
+                        new Note(voices[Chord.TENOR][i], key), new Note(voices[Chord.ALTO][i], key),
+                        new Note(voices[Chord.SOPRANO][i], key));
+            }
+            return chords;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes harmonizations to a compact binary archive that HarmonyArchiveReader can map and
+ * read at random.  Entries are streamed to the file as they are added; only the index (8 bytes
+ * per entry) is kept in memory until close().
+ *
+ * <p>Layout, all numbers big-endian:
+ * <pre>
+ *   header   "HGAR", version (2 bytes), reserved (2 bytes), entry count (8 bytes),
+ *            index offset (8 bytes), largest entry size (4 bytes), reserved (4 bytes)
+ *   entries  key fifths (1 byte), 0 for major or 1 for minor (1 byte), chord count (4 bytes),
+ *            then per chord the MIDI numbers of soprano, alto, tenor and bass (1 byte each)
+ *   index    the file offset of every entry (8 bytes each)
+ * </pre>
+ * The melody is the soprano voice, so each chord takes 4 bytes.
+ */
+public class HarmonyArchiveWriter implements Closeable
+{
+    static final int MAGIC = ('H' << 24) | ('G' << 16) | ('A' << 8) | 'R';
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_HEADER_SIZE = 6;
+    static final int BYTES_PER_CHORD = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private FileChannel channel;
+    private DataOutputStream out;
+    private long position = HEADER_SIZE;
+    private long[] offsets = new long[1024];
+    private long count;
+    private int largestEntry;
+
+    /**
+     * Create (or replace) an archive.
+     */
+    public HarmonyArchiveWriter(File file) throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.position(HEADER_SIZE);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Add a four-part harmonization.  Its key is taken from the soprano of the first chord.
+     *
+     * @return the index of the new entry
+     */
+    public long add(Chord[] chords) throws IOException
+    {
+        if(chords.length > 0 && chords[0].getVoiceCount() != 4)
+            throw new IllegalArgumentException("An archive holds four-part harmony, not "
+                    + chords[0].getVoiceCount() + " parts");
+        Key key = chords.length > 0 ? chords[0].getSopranoNote().getKey() : null;
+        startEntry(key == null ? 0 : key.getFifths(),
+                key != null && Key.MINOR.equals(key.getKeyType()), chords.length);
+        for(int i = 0; i < chords.length; i++)
+        {
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+                out.writeByte(chords[i].getNote(voice).getNoteNumber());
+        }
+        return count - 1;
+    }
+
+    /**
+     * Copy an entry from another archive without decoding it.
+     *
+     * @return the index of the new entry
+     */
+    public long add(HarmonyArchiveReader.Entry entry) throws IOException
+    {
+        startEntry(entry.getFifths(), entry.isMinor(), entry.size());
+        ByteBuffer data = entry.getChordData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        out.write(bytes);
+        return count - 1;
+    }
+
+    private void startEntry(int fifths, boolean minor, int chords) throws IOException
+    {
+        if(count == offsets.length)
+        {
+            long[] larger = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, larger, 0, offsets.length);
+            offsets = larger;
+        }
+        offsets[(int)count++] = position;
+
+        int size = ENTRY_HEADER_SIZE + chords * BYTES_PER_CHORD;
+        largestEntry = Math.max(largestEntry, size);
+        position += size;
+
+        out.writeByte(fifths);
+        out.writeByte(minor ? 1 : 0);
+        out.writeInt(chords);
+    }
+
+    /**
+     * @return the number of entries added so far
+     */
+    public long size()
+    {
+        return count;
+    }
+
+    /**
+     * Write the index and header and close the file.
+     */
+    public void close() throws IOException
+    {
+        if(out == null)
+            return;
+        try {
+            long indexOffset = position;
+            for(int i = 0; i < count; i++)
+                out.writeLong(offsets[i]);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort((short)VERSION);
+            header.putShort((short)0);
+            header.putLong(count);
+            header.putLong(indexOffset);
+            header.putInt(largestEntry);
+            header.putInt(0);
+            header.flip();
+            channel.write(header, 0);
+        }
+        finally {
+            out = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,590 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups harmonization requests that arrive close together into batches.  A batch is closed
+ * when the window has passed since its first request arrived or when it reaches the maximum
+ * size, whichever comes first.  Requests in a batch are grouped by key and voice ranges, and
+ * each group's key is parsed and its KeyTables fetched once for the whole group; each melody
+ * is still harmonized on its own and gets its own result.
+ *
+ * <p>One dispatcher thread forms the batches and a pool of workers, one per processor, runs
+ * them.  The dispatcher only forms a batch when a worker is free, so waiting requests stay
+ * in one bounded queue.  The worker that takes a batch groups it and fetches the tables,
+ * then hands each request to another idle worker where there is one, so a batch uses every
+ * free core and one slow melody doesn't hold up the others.  When the queue of waiting
+ * requests is full, submit() rejects the request at once rather than letting work pile up.
+ * A request may carry a deadline.  If the deadline passes before a worker gets to the
+ * request, the request is dropped without being harmonized.
+ *
+ * <p>Completing a request's future from outside, as the server does when its deadline passes
+ * or the client goes away, interrupts the worker harmonizing it.  The engine checks for
+ * interruption in every retry loop, so the worker moves on to the next request at once
+ * instead of finishing a harmony nobody will read.
+ */
+public class HarmonyBatcher
+{
+    public static final long DEFAULT_WINDOW_MICROS = 2000;
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private HarmonyService service;
+    private long windowNanos;
+    private int maxBatch;
+    private BlockingQueue<Request> queue;
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    private Semaphore idleWorkers = new Semaphore(workerCount);
+    private ExecutorService workers;
+    private Thread dispatcher;
+    private volatile boolean running;
+    private Metrics metrics = new Metrics();
+
+    /**
+     * @param service       does the harmonizing
+     * @param windowMicros  how long a batch waits for more requests after its first one
+     * @param maxBatch      the most requests in one batch
+     */
+    public HarmonyBatcher(HarmonyService service, long windowMicros, int maxBatch)
+    {
+        this(service, windowMicros, maxBatch, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param service        does the harmonizing
+     * @param windowMicros   how long a batch waits for more requests after its first one
+     * @param maxBatch       the most requests in one batch
+     * @param queueCapacity  the most requests waiting for a worker before new ones are rejected
+     */
+    public HarmonyBatcher(HarmonyService service, long windowMicros, int maxBatch, int queueCapacity)
+    {
+        if(windowMicros < 0 || maxBatch < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException(
+                    "Batch window must be >= 0, and batch size and queue capacity >= 1");
+        this.service = service;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        this.queue = new LinkedBlockingQueue<Request>(queueCapacity);
+    }
+
+    public void start()
+    {
+        running = true;
+        workers = Executors.newFixedThreadPool(workerCount);
+        dispatcher = new Thread(this::dispatch, "HarmonyBatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop taking requests.  Requests still queued are failed; batches already running finish.
+     */
+    public void shutdown()
+    {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+        Request request;
+        while((request = queue.poll()) != null)
+            request.result.completeExceptionally(new IllegalStateException("Server is shutting down"));
+    }
+
+    /**
+     * Queue a melody for harmonizing, with no deadline.
+     */
+    public CompletableFuture<String[]> submit(String notes, String key, String mode)
+    {
+        return submit(notes, key, mode, 0);
+    }
+
+    /**
+     * Queue a melody for harmonizing.
+     *
+     * @param notes          the melody as a note string
+     * @param key            the key, e.g. "F#" or "F#m", or null to follow the keys found in the melody
+     * @param mode           "major", "minor" or null
+     * @param timeoutMillis  drop the request if no worker has started it within this time;
+     *                       0 for no deadline
+     * @return the four voices, soprano first; an InvalidNoteException if the melody or key
+     *         can't be harmonized, or a TimeoutException if the deadline passed first
+     * @throws RejectedExecutionException if the queue is full; try again after
+     *         getRetryAfterSeconds()
+     */
+    public CompletableFuture<String[]> submit(String notes, String key, String mode,
+            long timeoutMillis)
+    {
+        return submit(notes, key, mode, VoiceRanges.DEFAULT, timeoutMillis);
+    }
+
+    /**
+     * Queue a melody for harmonizing for voices with the given ranges.
+     *
+     * @param ranges  what each voice may sing
+     */
+    public CompletableFuture<String[]> submit(String notes, String key, String mode,
+            VoiceRanges ranges, long timeoutMillis)
+    {
+        Request request = new Request(notes, key, mode, ranges, timeoutMillis);
+        if(!running)
+            throw new RejectedExecutionException("Batcher is not running");
+        if(!queue.offer(request))
+        {
+            metrics.rejected.incrementAndGet();
+            throw new RejectedExecutionException("Too many requests waiting");
+        }
+        return request.result;
+    }
+
+    /**
+     * Estimate how long a rejected client should wait before trying again: the time the
+     * workers need to get through the queue at the mean harmonizing time so far.
+     *
+     * @return whole seconds, at least 1
+     */
+    public long getRetryAfterSeconds()
+    {
+        double seconds = (queue.size() + 1) * metrics.getMeanServiceSeconds() / workerCount;
+        return Math.max(1, (long)Math.ceil(seconds));
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    private void dispatch()
+    {
+        while(running)
+        {
+            List<Request> batch = new ArrayList<Request>();
+            try {
+                idleWorkers.acquire();
+                batch.add(queue.take());
+                long closeAt = System.nanoTime() + windowNanos;
+                while(batch.size() < maxBatch)
+                {
+                    Request next = queue.poll(closeAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+            }
+            catch(InterruptedException e) {
+                for(Request request : batch)
+                    request.result.completeExceptionally(new IllegalStateException("Server is shutting down"));
+                return;
+            }
+            workers.execute(() -> {
+                try {
+                    run(batch);
+                }
+                finally {
+                    idleWorkers.release();
+                }
+            });
+        }
+    }
+
+    private void run(List<Request> batch)
+    {
+        try {
+            harmonizeBatch(batch);
+        }
+        catch(RuntimeException e) {
+            //never leave a caller waiting, whatever went wrong
+            for(Request request : batch)
+                request.result.completeExceptionally(e);
+        }
+    }
+
+    private void harmonizeBatch(List<Request> batch)
+    {
+        long start = System.nanoTime();
+        metrics.recordBatch(batch.size());
+
+        Map<String, List<Request>> byKey = new LinkedHashMap<String, List<Request>>();
+        for(Request request : batch)
+        {
+            metrics.recordQueueTime(start - request.enqueued);
+            String keyText = request.key + "|" + request.mode + "|" + request.ranges;
+            if(request.key == null || request.key.trim().length() == 0)
+            {
+                //no key given: follow the melody's keys, and group melodies found to stay in
+                //one key with the others in that key so they share its tables
+                keyText = "|" + request.ranges;
+                try {
+                    request.regions = HarmonyService.findRegions(request.notes);
+                }
+                catch(InvalidNoteException e) {
+                    //harmonizing reports it
+                }
+                if(request.regions != null && request.regions.size() == 1)
+                {
+                    request.detectedKey = request.regions.get(0).getKey();
+                    keyText = request.detectedKey.getRootName() + "|" + request.detectedKey.getKeyType()
+                            + "|" + request.ranges;
+                }
+            }
+            List<Request> group = byKey.get(keyText);
+            if(group == null)
+            {
+                group = new ArrayList<Request>();
+                byKey.put(keyText, group);
+            }
+            group.add(request);
+        }
+
+        for(List<Request> group : byKey.values())
+        {
+            //every request in a group has the same key and ranges, so their tables are found
+            //once here and shared by whichever workers run them
+            Request first = group.get(0);
+            KeyTables tables = null;
+            Exception failure = null;
+            if(first.detectedKey != null || (first.key != null && first.key.trim().length() > 0))
+            {
+                try {
+                    tables = service.newTables(first.detectedKey != null ? first.detectedKey
+                            : HarmonyService.parseKey(first.key, first.mode), first.ranges);
+                }
+                catch(Exception e) {
+                    failure = e;
+                }
+            }
+            for(Request request : group)
+                hand(request, tables, failure);
+        }
+    }
+
+    /**
+     * Harmonize one request of a batch on an idle worker if there is one, so a batch spreads
+     * over the pool and a hard melody doesn't hold up the rest; otherwise on this thread.
+     */
+    private void hand(Request request, KeyTables tables, Exception failure)
+    {
+        if(idleWorkers.tryAcquire())
+        {
+            try {
+                workers.execute(() -> {
+                    try {
+                        harmonize(request, tables, failure);
+                    }
+                    finally {
+                        idleWorkers.release();
+                    }
+                });
+                return;
+            }
+            catch(RejectedExecutionException e) {
+                //shutting down: finish the batch here
+                idleWorkers.release();
+            }
+        }
+        harmonize(request, tables, failure);
+    }
+
+    /**
+     * @param tables   the tables of the request's key, or null if it gave none
+     * @param failure  why the request's key couldn't be read, or null
+     */
+    private void harmonize(Request request, KeyTables tables, Exception failure)
+    {
+        if(request.isExpired())
+        {
+            metrics.expired.incrementAndGet();
+            request.result.completeExceptionally(
+                    new TimeoutException("Deadline passed before harmonizing"));
+            return;
+        }
+        if(failure != null)
+        {
+            request.result.completeExceptionally(failure);
+            return;
+        }
+        if(!request.start())
+            return;
+        long started = System.nanoTime();
+        try {
+            Chord[] chords;
+            if(tables == null)
+            {
+                //a melody that changes key, each region with its own tables
+                chords = request.regions != null
+                        ? service.harmonize(request.notes, request.regions, request.ranges,
+                                metrics.searchListener)
+                        : service.harmonize(request.notes, (Key)null, request.ranges);
+            }
+            else
+            {
+                chords = service.harmonize(request.notes, tables, metrics.searchListener);
+            }
+            request.finish();
+            request.result.complete(HarmonyService.toVoices(chords));
+        }
+        catch(CancellationException e) {
+            request.finish();
+            metrics.cancelled.incrementAndGet();
+        }
+        catch(Exception e) {
+            request.finish();
+            request.result.completeExceptionally(e);
+        }
+        finally {
+            metrics.recordServiceTime(System.nanoTime() - started);
+        }
+    }
+
+    private static class Request
+    {
+        final String notes;
+        final String key;
+        final String mode;
+        final VoiceRanges ranges;
+        final long enqueued = System.nanoTime();
+        final long timeoutNanos;
+        final CompletableFuture<String[]> result = new CompletableFuture<String[]>();
+        Key detectedKey;		//the key found for a request that gave none and stays in it
+        List<KeyTracker.Region> regions;	//the keys found for a request that gave none
+        private Thread runner;
+
+        Request(String notes, String key, String mode, VoiceRanges ranges, long timeoutMillis)
+        {
+            this.notes = notes;
+            this.key = key;
+            this.mode = mode;
+            this.ranges = ranges;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            result.whenComplete((voices, error) -> interruptRunner());
+        }
+
+        /**
+         * Called by the worker before harmonizing.
+         *
+         * @return false if the result was completed while the request waited
+         */
+        synchronized boolean start()
+        {
+            if(result.isDone())
+                return false;
+            runner = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * Called by the worker when it is done with the request, before completing the
+         * result.  Clears any interrupt aimed at this request so it can't cancel the next one.
+         */
+        synchronized void finish()
+        {
+            runner = null;
+            Thread.interrupted();
+        }
+
+        private synchronized void interruptRunner()
+        {
+            if(runner != null)
+                runner.interrupt();
+        }
+
+        boolean isExpired()
+        {
+            return result.isDone() || (timeoutNanos > 0 && System.nanoTime() - enqueued > timeoutNanos);
+        }
+    }
+
+    /**
+     * Counters describing the batches formed so far.  Safe to read while batches run.
+     */
+    public class Metrics
+    {
+        private AtomicLong batches = new AtomicLong();
+        private AtomicLong requests = new AtomicLong();
+        private AtomicLong largestBatch = new AtomicLong();
+        private AtomicLong totalQueueNanos = new AtomicLong();
+        private AtomicLong longestQueueNanos = new AtomicLong();
+        private AtomicLong served = new AtomicLong();
+        private AtomicLong totalServiceNanos = new AtomicLong();
+        private AtomicLong rejected = new AtomicLong();
+        private AtomicLong expired = new AtomicLong();
+        private AtomicLong cancelled = new AtomicLong();
+        private AtomicLong chordRetries = new AtomicLong();
+        private AtomicLong inversions = new AtomicLong();
+        private AtomicLong chordFailures = new AtomicLong();
+
+        //counts the work the search does; shared by all workers
+        private final HarmonyListener searchListener = new HarmonyListener() {
+            public void chordCompleted(int index, int total)
+            {
+            }
+
+            public void chordRetried(int index, int attempt)
+            {
+                chordRetries.incrementAndGet();
+            }
+
+            public void invertedChordTried(int index)
+            {
+                inversions.incrementAndGet();
+            }
+
+            public void chordFailed(int index)
+            {
+                chordFailures.incrementAndGet();
+            }
+        };
+
+        void recordBatch(int size)
+        {
+            batches.incrementAndGet();
+            requests.addAndGet(size);
+            largestBatch.accumulateAndGet(size, Math::max);
+        }
+
+        void recordQueueTime(long nanos)
+        {
+            totalQueueNanos.addAndGet(nanos);
+            longestQueueNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void recordServiceTime(long nanos)
+        {
+            served.incrementAndGet();
+            totalServiceNanos.addAndGet(nanos);
+        }
+
+        public long getBatches()
+        {
+            return batches.get();
+        }
+
+        public long getRequests()
+        {
+            return requests.get();
+        }
+
+        public double getMeanBatchSize()
+        {
+            long count = batches.get();
+            return count == 0 ? 0 : (double)requests.get() / count;
+        }
+
+        public long getLargestBatch()
+        {
+            return largestBatch.get();
+        }
+
+        /**
+         * @return the mean time a request waited between arriving and its batch starting
+         */
+        public double getMeanQueueSeconds()
+        {
+            long count = requests.get();
+            return count == 0 ? 0 : totalQueueNanos.get() / 1e9 / count;
+        }
+
+        public double getLongestQueueSeconds()
+        {
+            return longestQueueNanos.get() / 1e9;
+        }
+
+        /**
+         * @return the mean time spent harmonizing one melody
+         */
+        public double getMeanServiceSeconds()
+        {
+            long count = served.get();
+            return count == 0 ? 0 : totalServiceNanos.get() / 1e9 / count;
+        }
+
+        /**
+         * @return requests turned away because the queue was full
+         */
+        public long getRejected()
+        {
+            return rejected.get();
+        }
+
+        /**
+         * @return requests dropped because their deadline passed while they waited
+         */
+        public long getExpired()
+        {
+            return expired.get();
+        }
+
+        /**
+         * @return requests whose harmonizing was stopped part way because their result was
+         *         completed elsewhere, e.g. when the server gave up waiting
+         */
+        public long getCancelled()
+        {
+            return cancelled.get();
+        }
+
+        /**
+         * @return chords the search rejected and replaced with another, over all requests
+         */
+        public long getChordRetries()
+        {
+            return chordRetries.get();
+        }
+
+        /**
+         * @return times the search fell back from a root-position chord to an inversion
+         */
+        public long getInversionsTried()
+        {
+            return inversions.get();
+        }
+
+        /**
+         * @return positions where every try failed and the search had to back up
+         */
+        public long getChordFailures()
+        {
+            return chordFailures.get();
+        }
+
+        /**
+         * @return requests waiting for a batch right now
+         */
+        public int getQueueDepth()
+        {
+            return queue.size();
+        }
+
+        /**
+         * The metrics in the Prometheus text format, one "name value" line each.
+         */
+        public String toString()
+        {
+            return "harmogen_batches_total " + getBatches() + "\n"
+                    + "harmogen_batched_requests_total " + getRequests() + "\n"
+                    + "harmogen_batch_size_mean " + getMeanBatchSize() + "\n"
+                    + "harmogen_batch_size_max " + getLargestBatch() + "\n"
+                    + "harmogen_queue_time_seconds_mean " + getMeanQueueSeconds() + "\n"
+                    + "harmogen_queue_time_seconds_max " + getLongestQueueSeconds() + "\n"
+                    + "harmogen_queue_depth " + getQueueDepth() + "\n"
+                    + "harmogen_queue_capacity " + (getQueueDepth() + queue.remainingCapacity()) + "\n"
+                    + "harmogen_service_time_seconds_mean " + getMeanServiceSeconds() + "\n"
+                    + "harmogen_rejected_total " + getRejected() + "\n"
+                    + "harmogen_expired_total " + getExpired() + "\n"
+                    + "harmogen_cancelled_total " + getCancelled() + "\n"
+                    + "harmogen_chord_retries_total " + getChordRetries() + "\n"
+                    + "harmogen_inversions_tried_total " + getInversionsTried() + "\n"
+                    + "harmogen_chord_failures_total " + getChordFailures() + "\n";
+        }
+    }
+}
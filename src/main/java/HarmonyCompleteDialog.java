@@ -48,6 +48,8 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
     
     private JCheckBox xbSaveText;
     private JCheckBox xbSaveMidi;
+    private JCheckBox xbSaveMusicXml;
+    private JCheckBox xbSaveAbc;
     private JButton btnPlay;
     private JButton btnSaveClose;
     
@@ -70,7 +72,7 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
         layoutComponents();   
         
         this.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-        this.setSize(800, 285);
+        this.setSize(800, 335);
         //this.pack();
         this.setLocationRelativeTo(parent);
     }
@@ -102,6 +104,8 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
         
         xbSaveText = new JCheckBox("Save as text");
         xbSaveMidi = new JCheckBox("Save as MIDI");
+        xbSaveMusicXml = new JCheckBox("Save as MusicXML");
+        xbSaveAbc = new JCheckBox("Save as ABC");
         btnPlay = new JButton("Play");
         btnPlay.addActionListener(this);
         btnSaveClose = new JButton("Save and Close");
@@ -222,6 +226,12 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
         checkBoxesPanel.add(xbSaveMidi, gbc);
         
         gbc.gridy = 2;
+        checkBoxesPanel.add(xbSaveMusicXml, gbc);
+        
+        gbc.gridy = 3;
+        checkBoxesPanel.add(xbSaveAbc, gbc);
+        
+        gbc.gridy = 4;
         checkBoxesPanel.add(btnSaveClose, gbc);
         
         return checkBoxesPanel;
@@ -230,7 +240,7 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
     /**
      * Display a dialog prompting for a file name.
      * 
-     * @param saveType either a midi or text file save
+     * @param saveType a midi, text, MusicXML or ABC file save
      * @return the name picked by the user with an extension appended
      */
     public String showFileNamePrompt(String saveType)
@@ -246,6 +256,10 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
             input = input + ".mid";
         else if(saveType == HarmoGen.TEXT)
             input = input + ".txt";
+        else if(saveType == HarmoGen.MUSICXML)
+            input = input + ".musicxml";
+        else if(saveType == HarmoGen.ABC)
+            input = input + ".abc";
             
         return input;
     }
@@ -257,12 +271,16 @@ public class HarmonyCompleteDialog extends JDialog implements ActionListener
         
         if(event.getSource() == btnSaveClose)
         {
-            String[] choices = {"", ""};
+            String[] choices = {"", "", "", ""};
             
             if(xbSaveText.isSelected())
                 choices[0] = HarmoGen.TEXT;
             if(xbSaveMidi.isSelected())
                 choices[1] = HarmoGen.MIDI;
+            if(xbSaveMusicXml.isSelected())
+                choices[2] = HarmoGen.MUSICXML;
+            if(xbSaveAbc.isSelected())
+                choices[3] = HarmoGen.ABC;
             
             HarmoGen.performOutput(choices);
             
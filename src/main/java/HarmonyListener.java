@@ -0,0 +1,55 @@
+/**
+ * Receives progress from a harmonization as it runs.  Methods are called on the thread doing
+ * the harmonizing, so they should return quickly; a GUI should hand the event to its own
+ * thread rather than update components directly.
+ *
+ * <p>Chord positions count from 1.  Only chordCompleted() must be implemented, so a listener
+ * that wants nothing else can be a lambda; the other events do nothing unless overridden.
+ */
+public interface HarmonyListener
+{
+    /**
+     * A listener that ignores every event.  The engine uses it when no one is listening.
+     */
+    HarmonyListener NO_OP = (index, total) -> {};
+
+    /**
+     * A chord has been chosen.  The chords are found left to right after the first chord and
+     * the closing cadence, so index runs from 2 to total - 2.  If the search backs up, an
+     * index is reported again when its chord is chosen anew.
+     *
+     * @param index  the position of the chord in the harmony, counting from 1
+     * @param total  the number of chords in the finished harmony
+     */
+    void chordCompleted(int index, int total);
+
+    /**
+     * No voicing of the chord picked for a position satisfied the voice-leading rules, so
+     * the search is about to try that position again.
+     *
+     * @param index    the position being harmonized
+     * @param attempt  how many chords have failed at this position so far
+     */
+    default void chordRetried(int index, int attempt)
+    {
+    }
+
+    /**
+     * No root-position voicing of a chord worked, so an inversion is being tried instead.
+     *
+     * @param index  the position being harmonized
+     */
+    default void invertedChordTried(int index)
+    {
+    }
+
+    /**
+     * Every try at a position failed.  The search will go back and replace earlier chords, or
+     * start the cadence over if the position is in the cadence.
+     *
+     * @param index  the position that couldn't be harmonized
+     */
+    default void chordFailed(int index)
+    {
+    }
+}
@@ -0,0 +1,39 @@
+import org.jfugue.Pattern;
+import org.jfugue.Player;
+
+/**
+ * Plays a harmony through jfugue.  Kept apart from HarmoGen so that jfugue and the MIDI
+ * synthesizer are only loaded when someone presses Play, not whenever HarmoGen is.
+ */
+public class HarmonyPlayer
+{
+    /**
+     * Play the four voices together, one chord after another.  Returns when the music ends.
+     *
+     * @param voices  the voices as note strings, soprano first
+     */
+    public static void play(String[] voices)
+    {
+        new Player().play(toPattern(voices));
+    }
+
+    /**
+     * Sets up a jfugue Pattern for playing the harmony.
+     *
+     * @param voices  the harmonized notes, soprano first
+     * @return a Pattern playing each chord in turn
+     */
+    static Pattern toPattern(String[] voices)
+    {
+        Pattern pattern = new Pattern("");
+        String[] soprano = voices[0].split(" ");
+        String[] alto = voices[1].split(" ");
+        String[] tenor = voices[2].split(" ");
+        String[] bass = voices[3].split(" ");
+        for(int i = 0; i < soprano.length; i++)
+        {
+            pattern.add(new Pattern(soprano[i] + "+" + alto[i] + "+" + tenor[i] + "+" + bass[i]));
+        }
+        return pattern;
+    }
+}
@@ -0,0 +1,504 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs HarmoGen as an HTTP service, so other programs can harmonize melodies without starting
+ * a JVM each time.  All requests share one HarmonyService.
+ *
+ * <p>POST /harmonize takes the melody either as JSON,
+ * <pre>
+ *   {"melody": "C5 D5 E5 F5 G5", "key": "C", "mode": "major"}
+ * </pre>
+ * or as a plain note string with the key in the query, e.g. /harmonize?key=F%23&amp;mode=minor.
+ * A request without a key follows the keys KeyTracker finds in the melody, so a melody that
+ * modulates is harmonized one key at a time.  A "ranges" field or query parameter sets the
+ * voices' ranges as VoiceRanges.parse reads them, e.g. "soprano=C5-G6,bass=G3-C5"; the
+ * tables for a key and ranges are built on their first request and cached after that.  A
+ * "parts" field divides the sections for harmony in up to eight parts, e.g. "SSATBB", as
+ * VoiceRanges.divide reads it.  JSON requests get the voices back as JSON, keyed by their
+ * names; plain text requests get a line per voice in the same format as a saved text file.
+ * Melodies that can't be harmonized get a 400 response with the reason.
+ *
+ * <p>Each request runs on its own virtual thread where the JVM has them, and on a cached
+ * thread pool otherwise.  The harmonizing itself is done by a HarmonyBatcher with one worker
+ * per processor.  Requests arriving within a short window of each other are harmonized as one
+ * batch; a window of 0 turns the waiting off.  GET /metrics reports batch sizes, queue times
+ * and load shedding.
+ *
+ * <p>Requests wait for a worker in a bounded queue.  When the queue is full the server answers
+ * 503 at once with a Retry-After header.  Every request has a deadline: the server's timeout,
+ * or a shorter "timeout" in milliseconds given by the client (as a query parameter or JSON
+ * field).  A request still waiting at its deadline is dropped unharmonized and also gets a 503.
+ *
+ * <p>The server listens on the loopback interface unless told otherwise:
+ * <pre>
+ *   java HarmonyServer [--batch-window=micros] [--batch-size=n] [--queue=n] [--timeout=ms]
+ *                      [--model=file] [port] [bind address]
+ * </pre>
+ */
+public class HarmonyServer
+{
+    public static final int DEFAULT_PORT = 8750;
+    public static final String JSON = "application/json";
+    public static final String TEXT = "text/plain";
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final int MAX_BODY = 1 << 20;
+
+    private HarmonyService service;
+    private HttpServer server;
+    private ExecutorService executor;
+    private HarmonyBatcher batcher;
+    private long batchWindowMicros = HarmonyBatcher.DEFAULT_WINDOW_MICROS;
+    private int maxBatchSize = HarmonyBatcher.DEFAULT_MAX_BATCH;
+    private int queueCapacity = HarmonyBatcher.DEFAULT_QUEUE_CAPACITY;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    public HarmonyServer(HarmonyService service)
+    {
+        this.service = service;
+    }
+
+    /**
+     * Set how requests are batched.  Takes effect when the server is started.
+     *
+     * @param windowMicros  how long a batch waits for more requests, or 0 for no waiting
+     * @param maxBatch      the most requests in one batch
+     */
+    public void setBatching(long windowMicros, int maxBatch)
+    {
+        batchWindowMicros = windowMicros;
+        maxBatchSize = maxBatch;
+    }
+
+    /**
+     * Set how much work the server accepts.  Takes effect when the server is started.
+     *
+     * @param capacity  the most requests waiting for a worker
+     * @param timeout   the longest a request may wait, in milliseconds
+     */
+    public void setAdmission(int capacity, long timeout)
+    {
+        queueCapacity = capacity;
+        timeoutMillis = timeout;
+    }
+
+    /**
+     * Start listening.
+     *
+     * @param address the address to bind; port 0 picks a free port
+     */
+    public void start(InetSocketAddress address) throws IOException
+    {
+        server = HttpServer.create(address, 0);
+        server.createContext("/harmonize", new HarmonizeHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        batcher = new HarmonyBatcher(service, batchWindowMicros, maxBatchSize, queueCapacity);
+        batcher.start();
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Start listening on the loopback interface.
+     *
+     * @param port the port, or 0 for any free port
+     */
+    public void start(int port) throws IOException
+    {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server, giving requests in progress up to the delay to finish.
+     */
+    public void stop(int delaySeconds)
+    {
+        server.stop(delaySeconds);
+        batcher.shutdown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * One virtual thread per request on JVMs that have them (Java 21 and later), otherwise a
+     * cached pool of platform threads.
+     */
+    static ExecutorService newRequestExecutor()
+    {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch(Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private class HarmonizeHandler implements HttpHandler
+    {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean json = contentType != null && contentType.startsWith(JSON);
+            try {
+                if(!"POST".equals(exchange.getRequestMethod()))
+                {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, TEXT, "Use POST to harmonize a melody.\n");
+                    return;
+                }
+
+                String body = readBody(exchange.getRequestBody());
+
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String notes = body;
+                if(json)
+                {
+                    params.putAll(parseJsonObject(body));
+                    notes = params.get("melody");
+                }
+
+                long timeout = timeoutMillis;
+                if(params.get("timeout") != null)
+                {
+                    long asked = Long.parseLong(params.get("timeout"));
+                    if(asked <= 0)
+                        throw new IllegalArgumentException("Timeout must be at least 1 ms: " + asked);
+                    timeout = Math.min(timeout, asked);
+                }
+
+                VoiceRanges ranges = VoiceRanges.parse(params.get("ranges"));
+                if(params.get("parts") != null)
+                    ranges = ranges.divide(params.get("parts"));
+                String[] voices;
+                try {
+                    voices = harmonize(notes, params.get("key"), params.get("mode"), ranges, timeout);
+                }
+                catch(InvalidNoteException e) {
+                    sendError(exchange, json, 400, e.getMessage());
+                    return;
+                }
+                catch(RejectedExecutionException | TimeoutException e) {
+                    exchange.getResponseHeaders().set("Retry-After",
+                            String.valueOf(batcher.getRetryAfterSeconds()));
+                    sendError(exchange, json, 503, e.getMessage());
+                    return;
+                }
+
+                if(json)
+                    send(exchange, 200, JSON, toJson(voices, ranges));
+                else
+                    send(exchange, 200, TEXT, toText(voices, ranges));
+            }
+            catch(IllegalArgumentException e) {
+                sendError(exchange, json, 400, e.getMessage());
+            }
+            catch(RuntimeException e) {
+                sendError(exchange, json, 500, "Harmonization failed: " + e);
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Queue a melody and wait for its harmony, up to the timeout.
+     */
+    private String[] harmonize(String notes, String key, String mode, VoiceRanges ranges,
+            long timeout) throws InvalidNoteException, TimeoutException
+    {
+        CompletableFuture<String[]> result = batcher.submit(notes, key, mode, ranges, timeout);
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e) {
+            //if it hasn't started it never will; if it has, its worker is interrupted
+            result.completeExceptionally(e);
+            throw new TimeoutException("No harmony within " + timeout + " ms");
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the harmony");
+        }
+        catch(ExecutionException e) {
+            if(e.getCause() instanceof InvalidNoteException)
+                throw (InvalidNoteException)e.getCause();
+            if(e.getCause() instanceof TimeoutException)
+                throw (TimeoutException)e.getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler
+    {
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try {
+                send(exchange, 200, TEXT, batcher.getMetrics().toString());
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, boolean json, int status, String message)
+            throws IOException
+    {
+        if(json)
+            send(exchange, status, JSON, "{\"error\":" + quote(message) + "}");
+        else
+            send(exchange, status, TEXT, message + "\n");
+    }
+
+    static void send(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String readBody(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) > 0)
+        {
+            if(body.size() + read > MAX_BODY)
+                throw new IllegalArgumentException("Request body is too large");
+            body.write(buffer, 0, read);
+        }
+        return body.toString("UTF-8");
+    }
+
+    static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if(query == null)
+            return params;
+        for(String pair : query.split("&"))
+        {
+            int equals = pair.indexOf('=');
+            if(equals < 0)
+                continue;
+            params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Parse a flat JSON object.  Nested objects and arrays aren't needed by any request and
+     * are rejected; numbers, booleans and null are kept as their text.
+     */
+    static Map<String, String> parseJsonObject(String json)
+    {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] at = { skipSpace(json, 0) };
+        expect(json, at, '{');
+        if(peek(json, at) == '}')
+        {
+            at[0]++;
+            return fields;
+        }
+        while(true)
+        {
+            String name = readJsonString(json, at);
+            expect(json, at, ':');
+            char c = peek(json, at);
+            String value;
+            if(c == '"')
+                value = readJsonString(json, at);
+            else if(c == '{' || c == '[')
+                throw new IllegalArgumentException("Unexpected nested value for \"" + name + "\"");
+            else
+            {
+                int start = at[0];
+                while(at[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(at[0])) < 0)
+                    at[0]++;
+                value = json.substring(start, at[0]);
+                if(value.equals("null"))
+                    value = null;
+            }
+            fields.put(name, value);
+
+            c = peek(json, at);
+            at[0]++;
+            if(c == '}')
+                return fields;
+            if(c != ',')
+                throw new IllegalArgumentException("Malformed JSON at character " + at[0]);
+        }
+    }
+
+    private static String readJsonString(String json, int[] at)
+    {
+        expect(json, at, '"');
+        StringBuilder text = new StringBuilder();
+        while(at[0] < json.length())
+        {
+            char c = json.charAt(at[0]++);
+            if(c == '"')
+                return text.toString();
+            if(c != '\\')
+            {
+                text.append(c);
+                continue;
+            }
+            if(at[0] >= json.length())
+                break;
+            c = json.charAt(at[0]++);
+            switch(c) {
+            case 'n': text.append('\n'); break;
+            case 't': text.append('\t'); break;
+            case 'r': text.append('\r'); break;
+            case 'b': text.append('\b'); break;
+            case 'f': text.append('\f'); break;
+            case 'u':
+                if(at[0] + 4 > json.length())
+                    throw new IllegalArgumentException("Malformed JSON escape");
+                text.append((char)Integer.parseInt(json.substring(at[0], at[0] + 4), 16));
+                at[0] += 4;
+                break;
+            default: text.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    private static void expect(String json, int[] at, char c)
+    {
+        if(peek(json, at) != c)
+            throw new IllegalArgumentException("Malformed JSON: expected '" + c + "' at character "
+                    + at[0]);
+        at[0]++;
+    }
+
+    private static char peek(String json, int[] at)
+    {
+        at[0] = skipSpace(json, at[0]);
+        return at[0] < json.length() ? json.charAt(at[0]) : 0;
+    }
+
+    private static int skipSpace(String json, int i)
+    {
+        while(i < json.length() && Character.isWhitespace(json.charAt(i)))
+            i++;
+        return i;
+    }
+
+    static String quote(String text)
+    {
+        StringBuilder quoted = new StringBuilder(text.length() + 2);
+        quoted.append('"');
+        for(int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if(c == '\n')
+                quoted.append("\\n");
+            else if(c < ' ')
+                quoted.append(String.format("\\u%04x", (int)c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    static String toJson(String[] voices, VoiceRanges ranges)
+    {
+        StringBuilder json = new StringBuilder("{");
+        for(int v = 0; v < voices.length; v++)
+        {
+            if(v > 0)
+                json.append(',');
+            json.append('"').append(ranges.getName(v)).append("\":").append(quote(voices[v]));
+        }
+        return json.append('}').toString();
+    }
+
+    static String toText(String[] voices, VoiceRanges ranges)
+    {
+        String[] labels = HarmonyService.textLabels(ranges);
+        StringBuilder text = new StringBuilder();
+        for(int v = 0; v < voices.length; v++)
+            text.append(labels[v]).append(voices[v]).append('\n');
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        ChordTransitionModel transitions = ChordTransitionModel.getDefault();
+        long window = HarmonyBatcher.DEFAULT_WINDOW_MICROS;
+        int batchSize = HarmonyBatcher.DEFAULT_MAX_BATCH;
+        int capacity = HarmonyBatcher.DEFAULT_QUEUE_CAPACITY;
+        long timeout = DEFAULT_TIMEOUT_MILLIS;
+        List<String> positional = new ArrayList<String>();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--batch-window="))
+                window = Long.parseLong(arg.substring("--batch-window=".length()));
+            else if(arg.startsWith("--batch-size="))
+                batchSize = Integer.parseInt(arg.substring("--batch-size=".length()));
+            else if(arg.startsWith("--queue="))
+                capacity = Integer.parseInt(arg.substring("--queue=".length()));
+            else if(arg.startsWith("--timeout="))
+                timeout = Long.parseLong(arg.substring("--timeout=".length()));
+            else if(arg.startsWith("--model="))
+                transitions = ChordTransitionModel.read(new File(arg.substring("--model=".length())));
+            else
+                positional.add(arg);
+        }
+        HarmonyServer server = new HarmonyServer(new HarmonyService(transitions));
+        server.setBatching(window, batchSize);
+        server.setAdmission(capacity, timeout);
+
+        int port = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : DEFAULT_PORT;
+        if(positional.size() > 1)
+            server.start(new InetSocketAddress(positional.get(1), port));
+        else
+            server.start(port);
+        System.out.println("HarmoGen listening on " + server.server.getAddress());
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Checks HarmonyServer end to end without leaving the machine: starts a server on a free
+ * loopback port, sends it requests over HTTP and checks the answers.
+ *
+ * <pre>
+ *   java HarmonyServerTester
+ * </pre>
+ *
+ * A JSON request must get every voice back as JSON with the melody in the soprano, a plain
+ * text request a labelled line per voice, and a bad melody, a bad timeout or a GET the
+ * matching error.  Each check prints "ok" or "FAILED" and what came back; the exit status is
+ * 1 if any failed.
+ */
+public class HarmonyServerTester
+{
+    //a melody the engine harmonizes whatever its random choices, in four parts and in six
+    private static final String MELODY = "G5 A5 G5 E5 F5 D5 C5";
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        HarmonyServer server = new HarmonyServer(new HarmonyService());
+        server.start(0);
+        String base = "http://localhost:" + server.getPort();
+        try {
+            Response json = post(base + "/harmonize", HarmonyServer.JSON,
+                    "{\"melody\": \"" + MELODY + "\", \"key\": \"C\", \"mode\": \"major\"}");
+            Map<String, String> voices = json.status == 200
+                    ? HarmonyServer.parseJsonObject(json.body) : null;
+            check("JSON request", json, json.status == 200
+                    && json.contentType.startsWith(HarmonyServer.JSON) && voices.size() == 4
+                    && sameNotes(voices.get("soprano")) && voices.get("alto") != null
+                    && voices.get("tenor") != null && voices.get("bass") != null);
+
+            Response text = post(base + "/harmonize?key=C&mode=major", HarmonyServer.TEXT, MELODY);
+            String[] lines = text.body.split("\n");
+            String[] labels = HarmonyService.textLabels(VoiceRanges.DEFAULT);
+            boolean labelled = lines.length == labels.length;
+            for(int v = 0; labelled && v < labels.length; v++)
+                labelled = lines[v].startsWith(labels[v]);
+            check("plain text request", text, text.status == 200
+                    && text.contentType.startsWith(HarmonyServer.TEXT) && labelled
+                    && sameNotes(lines[0].substring(labels[0].length())));
+
+            Response parts = post(base + "/harmonize", HarmonyServer.JSON,
+                    "{\"melody\": \"" + MELODY + "\", \"key\": \"C\", \"parts\": \"SSATBB\"}");
+            check("divided parts", parts, parts.status == 200
+                    && HarmonyServer.parseJsonObject(parts.body).containsKey("bass2"));
+
+            Response badNote = post(base + "/harmonize", HarmonyServer.JSON,
+                    "{\"melody\": \"C5 D E5\", \"key\": \"C\"}");
+            check("bad melody", badNote, badNote.status == 400
+                    && HarmonyServer.parseJsonObject(badNote.body).get("error") != null);
+
+            Response badTimeout = post(base + "/harmonize?key=C&timeout=0", HarmonyServer.TEXT,
+                    MELODY);
+            check("bad timeout", badTimeout, badTimeout.status == 400);
+
+            Response get = send("GET", base + "/harmonize", null, null);
+            check("GET", get, get.status == 405);
+
+            Response metrics = send("GET", base + "/metrics", null, null);
+            check("metrics", metrics, metrics.status == 200);
+        }
+        finally {
+            server.stop(0);
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        if(failures > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @return true if a voice sings the melody; naturals come back written e.g. "C-5"
+     */
+    private static boolean sameNotes(String voice)
+    {
+        return voice != null && voice.replace("-", "").trim().equals(MELODY);
+    }
+
+    private static void check(String name, Response response, boolean passed)
+    {
+        if(!passed)
+            failures++;
+        System.out.println((passed ? "ok      " : "FAILED  ") + name + ": " + response.status
+                + " " + response.body.trim().replace('\n', '|'));
+    }
+
+    private static Response post(String url, String contentType, String body) throws IOException
+    {
+        return send("POST", url, contentType, body);
+    }
+
+    private static Response send(String method, String url, String contentType, String body)
+            throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if(body != null)
+        {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType + "; charset=utf-8");
+            OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        }
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.contentType = String.valueOf(connection.getContentType());
+        InputStream in = response.status < 400 ? connection.getInputStream()
+                : connection.getErrorStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        if(in != null)
+        {
+            byte[] buffer = new byte[4096];
+            int count;
+            while((count = in.read(buffer)) > 0)
+                read.write(buffer, 0, count);
+            in.close();
+        }
+        response.body = read.toString("UTF-8");
+        connection.disconnect();
+        return response;
+    }
+
+    private static class Response
+    {
+        int status;
+        String contentType;
+        String body;
+    }
+}
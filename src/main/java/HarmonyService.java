@@ -0,0 +1,301 @@
+import java.util.List;
+
+/**
+ * The harmonizer as a service: takes a melody and key and returns the harmony or throws
+ * InvalidNoteException with the reason it couldn't be harmonized.  An instance holds no
+ * per-request state, so one instance can be shared by any number of threads; every call
+ * works on its own InferenceEngine.
+ */
+public class HarmonyService
+{
+    //how many times a region is tried after the one before it, which is found again between tries
+    static final int BOUNDARY_TRIES = 5;
+
+    private ChordTransitionModel transitions;
+
+    /**
+     * A service using HarmoGen's built-in chord progressions.
+     */
+    public HarmonyService()
+    {
+        this(ChordTransitionModel.getDefault());
+    }
+
+    /**
+     * @param transitions  the chord progressions to harmonize with, e.g. one trained by
+     *                     ChordModelTrainer
+     */
+    public HarmonyService(ChordTransitionModel transitions)
+    {
+        this.transitions = transitions;
+    }
+
+    /**
+     * Get the tables for a key, to share between harmonizations in that key.
+     */
+    public KeyTables newTables(Key key)
+    {
+        return newTables(key, VoiceRanges.DEFAULT);
+    }
+
+    /**
+     * Get the tables for a key and voice ranges.  They are built the first time and then
+     * come from KeyTables' cache while they are in use.
+     */
+    public KeyTables newTables(Key key, VoiceRanges ranges)
+    {
+        return KeyTables.get(key, transitions, ranges);
+    }
+
+    /**
+     * Harmonize a melody.
+     *
+     * @param notes  the melody as a note string, e.g. "C5 D5 E5"
+     * @param key    the key to harmonize in, or null to follow the melody's keys as
+     *               KeyTracker finds them
+     * @return the harmony, one chord per melody note
+     * @throws InvalidNoteException if the melody or key can't be harmonized
+     */
+    public Chord[] harmonize(String notes, Key key) throws InvalidNoteException
+    {
+        return harmonize(notes, key, VoiceRanges.DEFAULT);
+    }
+
+    /**
+     * Harmonize a melody for voices with the given ranges.
+     *
+     * @param ranges  what each voice may sing; the melody must be in the soprano's range.
+     *                Ranges for more than four parts, as VoiceRanges.divide makes them, give a
+     *                harmony in that many parts.
+     */
+    public Chord[] harmonize(String notes, Key key, VoiceRanges ranges) throws InvalidNoteException
+    {
+        if(key == null)
+            return harmonize(notes, findRegions(notes), ranges, null);
+        return harmonize(notes, newTables(key, ranges));
+    }
+
+    /**
+     * Split a melody into the regions KeyTracker finds, each in one key.
+     *
+     * @return the regions, or an empty list if the melody has no notes
+     * @throws InvalidNoteException if a note can't be read
+     */
+    public static List<KeyTracker.Region> findRegions(String notes) throws InvalidNoteException
+    {
+        return KeyTracker.findRegions(pitchClassesOf(notes));
+    }
+
+    /**
+     * @return the pitch class of each note, 0 (C) to 11
+     * @throws InvalidNoteException if a note can't be read, e.g. "D" with no octave, which
+     *         Note would otherwise fail on with an unchecked exception
+     */
+    private static int[] pitchClassesOf(String notes) throws InvalidNoteException
+    {
+        String[] tokens = splitNotes(notes);
+        int[] pitchClasses = new int[tokens.length];
+        for(int i = 0; i < tokens.length; i++)
+        {
+            pitchClasses[i] = KeyDetector.pitchClassOf(tokens[i]);
+            if(pitchClasses[i] < 0)
+                throw new InvalidNoteException("Invalid note syntax: " + tokens[i]);
+        }
+        return pitchClasses;
+    }
+
+    /**
+     * Harmonize a melody that changes key, each region in its own key.  The regions are
+     * harmonized one after another, each ending on its own cadence, and the chords are put
+     * together in melody order.  Each region's first chord is voiced to follow the last
+     * chord of the region before, so the voice-leading rules hold across the change of key.
+     * If no chord of a region can follow that last chord, the region before is found again,
+     * up to BOUNDARY_TRIES times, for another ending.  The listener hears each region's chords
+     * numbered from the start of that region, and a region found again is heard again.
+     *
+     * @param regions   regions covering the whole melody, as findRegions() gives them
+     * @param listener  told about each chord, retry and failure, or null
+     * @throws InvalidNoteException if any region can't be harmonized; the message says which
+     */
+    public Chord[] harmonize(String notes, List<KeyTracker.Region> regions, HarmonyListener listener)
+            throws InvalidNoteException
+    {
+        return harmonize(notes, regions, VoiceRanges.DEFAULT, listener);
+    }
+
+    /**
+     * Harmonize a melody that changes key for voices with the given ranges.
+     */
+    public Chord[] harmonize(String notes, List<KeyTracker.Region> regions, VoiceRanges ranges,
+            HarmonyListener listener) throws InvalidNoteException
+    {
+        if(regions.isEmpty())
+            throw new InvalidNoteException("Please enter a melody.");
+        String[] tokens = splitNotes(notes);
+        if(regions.size() == 1)
+            return harmonize(notes, newTables(regions.get(0).getKey(), ranges), listener);
+
+        Chord[] chords = new Chord[tokens.length];
+        for(int r = 0; r < regions.size(); r++)
+        {
+            KeyTracker.Region part = regions.get(r);
+            for(int tries = 1; ; tries++)
+            {
+                try {
+                    harmonizeRegion(tokens, part, ranges, listener, chords);
+                    break;
+                }
+                catch(InvalidNoteException e) {
+                    if(r == 0 || tries == BOUNDARY_TRIES)
+                    {
+                        Key key = part.getKey();
+                        throw new InvalidNoteException("In the " + key.getRootName() + " "
+                                + key.getKeyType() + " part, notes " + (part.getFrom() + 1) + " to "
+                                + part.getTo() + ": " + e.getMessage());
+                    }
+                    //the region before may have ended on a voicing nothing here can follow, so
+                    //find it again for another ending
+                    try {
+                        harmonizeRegion(tokens, regions.get(r - 1), ranges, listener, chords);
+                    }
+                    catch(InvalidNoteException again) {
+                        //its old chords stay
+                    }
+                }
+            }
+        }
+        return chords;
+    }
+
+    /**
+     * Harmonize one region of a melody into its place in the harmony, following the chord
+     * before it there, if any.
+     */
+    private void harmonizeRegion(String[] tokens, KeyTracker.Region part, VoiceRanges ranges,
+            HarmonyListener listener, Chord[] chords) throws InvalidNoteException
+    {
+        StringBuilder region = new StringBuilder();
+        for(int i = part.getFrom(); i < part.getTo(); i++)
+            region.append(tokens[i]).append(' ');
+        Chord leadIn = part.getFrom() == 0 ? null : chords[part.getFrom() - 1];
+        Chord[] found = harmonize(region.toString(), newTables(part.getKey(), ranges), listener,
+                leadIn);
+        System.arraycopy(found, 0, chords, part.getFrom(), found.length);
+    }
+
+    private static String[] splitNotes(String notes)
+    {
+        String trimmed = notes == null ? "" : notes.trim();
+        return trimmed.length() == 0 ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * @return the key KeyDetector finds for a note string, or null if it has no notes
+     */
+    public static Key detectKey(String notes)
+    {
+        if(notes == null)
+            return null;
+        KeyDetector.Result found = KeyDetector.detect(notes);
+        return found == null ? null : found.getKey();
+    }
+
+    /**
+     * Harmonize a melody using tables already built for its key, which may be shared with
+     * other melodies in the same key.
+     */
+    public Chord[] harmonize(String notes, KeyTables tables) throws InvalidNoteException
+    {
+        return harmonize(notes, tables, null);
+    }
+
+    /**
+     * Harmonize a melody, telling a listener about the search as it goes.
+     *
+     * @param listener  told about each chord, retry and failure, or null
+     */
+    public Chord[] harmonize(String notes, KeyTables tables, HarmonyListener listener)
+            throws InvalidNoteException
+    {
+        return harmonize(notes, tables, listener, null);
+    }
+
+    /**
+     * @param leadIn  the chord before the melody, which its first chord must follow, or null
+     */
+    private Chord[] harmonize(String notes, KeyTables tables, HarmonyListener listener,
+            Chord leadIn) throws InvalidNoteException
+    {
+        if(notes == null || notes.trim().length() == 0)
+            throw new InvalidNoteException("Please enter a melody.");
+        pitchClassesOf(notes);
+        InferenceEngine engine = new InferenceEngine(notes, tables, listener, null, null, leadIn);
+        if(engine.checkForError())
+            throw new InvalidNoteException(engine.getErrorMessage());
+        return engine.getChords();
+    }
+
+    /**
+     * Harmonize a melody, returning the four voices as note strings, soprano first.
+     */
+    public String[] harmonizeVoices(String notes, Key key) throws InvalidNoteException
+    {
+        return toVoices(harmonize(notes, key));
+    }
+
+    /**
+     * Parse a key and mode as a client would send them, e.g. "F#" and "minor", or "F#m" with
+     * no mode.
+     *
+     * @throws InvalidNoteException if there is no key or it isn't one HarmoGen knows
+     */
+    public static Key parseKey(String key, String mode) throws InvalidNoteException
+    {
+        if(key == null || key.trim().length() == 0)
+            throw new InvalidNoteException("Please enter a key.");
+        Key parsed = Key.parse(mode == null ? key : key.trim() + " " + mode);
+        if(parsed == null)
+            throw new InvalidNoteException("Unknown key: " + key + (mode == null ? "" : " " + mode));
+        return parsed;
+    }
+
+    /**
+     * @return the voices of a harmony as note strings, soprano first
+     */
+    public static String[] toVoices(Chord[] chords)
+    {
+        String[] voices = new String[chords.length > 0 ? chords[0].getVoiceCount() : 4];
+        StringBuilder voice = new StringBuilder(chords.length * 4);
+        for(int v = 0; v < voices.length; v++)
+        {
+            voice.setLength(0);
+            for(int i = 0; i < chords.length; i++)
+            {
+                if(i > 0)
+                    voice.append(' ');
+                voice.append(chords[i].getNote(v).getNoteAndOctave());
+            }
+            voices[v] = voice.toString();
+        }
+        return voices;
+    }
+
+    /**
+     * @return each voice's name as a label, e.g. "Soprano: ", padded so the notes line up
+     */
+    public static String[] textLabels(VoiceRanges ranges)
+    {
+        int width = "Soprano: ".length();
+        for(int v = 0; v < ranges.getVoiceCount(); v++)
+            width = Math.max(width, ranges.getName(v).length() + 2);
+        String[] labels = new String[ranges.getVoiceCount()];
+        for(int v = 0; v < labels.length; v++)
+        {
+            String name = ranges.getName(v);
+            labels[v] = String.format("%-" + width + "s",
+                    Character.toUpperCase(name.charAt(0)) + name.substring(1) + ":");
+        }
+        return labels;
+    }
+}
+
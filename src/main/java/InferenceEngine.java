@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.util.Random;
+
 /**
  * InferenceEngine.java
  * 
@@ -8,6 +11,9 @@
  */
 public class InferenceEngine {
 	
+	//how many first chords to try after a lead-in, or in divided sections, before giving up
+	private static final int FIRST_CHORD_TRIES = 5;
+	
 	private Note[] notes;
 	private KnowledgeDB knowledge;
 	private boolean error = false;
@@ -15,7 +21,9 @@ public class InferenceEngine {
 	private Chord[] cadenceChords;
 	private Chord[] allChords;
 	private Chord[] bodyChords;
-	private static String errorMsg = "";
+	private Chord leadIn;
+	private boolean divided;
+	private String errorMsg = "";
 	
 	/**
 	 * Constructor, called by InitSystem.
@@ -23,10 +31,91 @@ public class InferenceEngine {
 	 * @param myNotes a string of the user's inputted notes, separated by spaces.
 	 */
 	public InferenceEngine( String myNotes, Key key ) {
-	    String[] notesAsStrings = myNotes.split(" ");
+	    this( myNotes, key == null ? null : new KeyTables(key) );
+	}
+	
+	/**
+	 * Constructor for harmonizing with tables shared between melodies in the same key.
+	 * 
+	 * @param myNotes a string of the user's inputted notes, separated by spaces.
+	 * @param tables  the tables of the key to harmonize in, or null if no key was given
+	 */
+	public InferenceEngine( String myNotes, KeyTables tables ) {
+	    this( myNotes, tables, null );
+	}
+	
+	/**
+	 * Constructor that reports progress as the chords are found.  The harmonization can be
+	 * cancelled by interrupting the thread running it, in which case a CancellationException
+	 * is thrown.
+	 * 
+	 * @param myNotes  a string of the user's inputted notes, separated by spaces.
+	 * @param tables   the tables of the key to harmonize in, or null if no key was given
+	 * @param listener told about each chord found, or null
+	 */
+	public InferenceEngine( String myNotes, KeyTables tables, HarmonyListener listener ) {
+	    this( myNotes, tables, listener, null );
+	}
+	
+	/**
+	 * Constructor whose random choices all come from the given generator, so the same
+	 * melody and seed always give the same harmony.
+	 * 
+	 * @param myNotes  a string of the user's inputted notes, separated by spaces.
+	 * @param tables   the tables of the key to harmonize in, or null if no key was given
+	 * @param listener told about each chord found, or null
+	 * @param random   the generator for the search, or null for an unseeded one
+	 */
+	public InferenceEngine( String myNotes, KeyTables tables, HarmonyListener listener,
+	        Random random ) {
+	    this( myNotes, tables, listener, random, null );
+	}
+	
+	/**
+	 * Constructor for harmonizing a melody that has been edited since it was last harmonized.
+	 * Only the chords around the notes that changed are found again, in a window that ends
+	 * where the new chords lead back into the old ones, so changing one note of a long melody
+	 * takes little longer than harmonizing a few notes.  If the melody's length or key has
+	 * changed, or no window fits, the whole melody is harmonized as usual.
+	 * 
+	 * @param myNotes  a string of the user's inputted notes, separated by spaces.
+	 * @param tables   the tables of the key to harmonize in, or null if no key was given
+	 * @param listener told about each chord found, or null
+	 * @param random   the generator for the search, or null for an unseeded one
+	 * @param previous the harmony of the melody before it was edited, or null
+	 */
+	public InferenceEngine( String myNotes, KeyTables tables, HarmonyListener listener,
+	        Random random, Chord[] previous ) {
+	    this( myNotes, tables, listener, random, previous, null );
+	}
+	
+	/**
+	 * Constructor for harmonizing a melody that carries on from a harmony already found, as
+	 * the next key region of a melody that modulates does.  The first chord is voiced to
+	 * follow the lead-in chord by the same rules as every other pair of neighbouring chords,
+	 * and is the new key's I chord if one fits, else any chord that does.
+	 * 
+	 * @param myNotes  a string of the user's inputted notes, separated by spaces.
+	 * @param tables   the tables of the key to harmonize in, or null if no key was given
+	 * @param listener told about each chord found, or null
+	 * @param random   the generator for the search, or null for an unseeded one
+	 * @param previous the harmony of the melody before it was edited, or null
+	 * @param leadIn   the chord just before the melody, possibly in another key, or null
+	 */
+	public InferenceEngine( String myNotes, KeyTables tables, HarmonyListener listener,
+	        Random random, Chord[] previous, Chord leadIn ) {
+	    this.leadIn = leadIn;
+	    divided = tables != null && tables.getRanges().isDivided();
+	    Key key = tables == null ? null : tables.getKey();
+	    String[] notesAsStrings = myNotes.trim().split("\\s+");
 		notes = new Note[notesAsStrings.length];
 		
-		if(key != null)
+		if(key != null && notes.length < 3)
+		{
+		    error = true;
+		    setError("The melody is too short to harmonize.");
+		}
+		else if(key != null)
 		{
 			try {
 			    for( int i = 0; i < notesAsStrings.length; i++ ) {
@@ -38,9 +127,14 @@ public class InferenceEngine {
 			    
 			    allChords = new Chord[notesAsStrings.length];
 				bodyChords = new Chord[allChords.length - 3];
-				knowledge = new KnowledgeDB( notes, key );
+				knowledge = new KnowledgeDB( notes, tables );
+				knowledge.setListener( listener );
+				if( random != null )
+				    knowledge.setRandom( random );
 				
 				error = knowledge.checkInput();
+				if( error )
+				    setError( knowledge.getErrorMessage() );
 			}
 			catch(NumberFormatException e)
 			{
@@ -55,8 +149,10 @@ public class InferenceEngine {
 		}
 		    
 		if( !error ) {
-		    harmonize();	    
-		    printFourParts();	    
+		    if( !reharmonize(previous) )
+		        harmonize();	    
+		    if( !error )
+		        printFourParts();	    
 		}
 	}
 	
@@ -64,19 +160,39 @@ public class InferenceEngine {
 	    return error;
 	}
 	
-	public static void setError( String msg ) {
+	private void setError( String msg ) {
 	    errorMsg = msg;
 	}
 	
-	public static String errorMessage() {
+	/**
+	 * Returns why this melody couldn't be harmonized.
+	 * 
+	 * @return the error message, or an empty String if there was no error
+	 */
+	public String getErrorMessage() {
 	    return errorMsg;
 	}
 	
 	public void harmonize() {
 	    cadenceChords = knowledge.findCadence();
-	    firstChord = knowledge.findFirstChord();
-	    allChords[0] = firstChord;
-	    bodyChords = knowledge.findBodyChords( firstChord );
+	    //the body search never replaces the first chord, so a dead end straight after it is
+	    //worth another where first chords are few: held to a lead-in, or in many parts
+	    int tries = leadIn == null && !divided ? 1 : FIRST_CHORD_TRIES;
+	    do {
+	        firstChord = knowledge.findFirstChord( leadIn );
+	        allChords[0] = firstChord;
+	        //with no voicing for the first chord or the cadence there is nothing to build the body on
+	        if( firstChord == null || cadenceChords[0] == null || cadenceChords[1] == null )
+	            bodyChords = null;
+	        else
+	            bodyChords = knowledge.findBodyChords( firstChord, cadenceChords[0] );
+	    } while( bodyChords == null && firstChord != null && --tries > 0 );
+	    if( bodyChords == null ) {
+	        error = true;
+	        setError("No harmony could be found that follows the voice-leading rules.\n"
+	                + "Try a melody with smaller leaps.");
+	        return;
+	    }
 	    for( int i = 0; i < bodyChords.length; i++ ) {
 	        allChords[i + 1] = bodyChords[i];
 	    }
@@ -84,22 +200,99 @@ public class InferenceEngine {
 	    allChords[notes.length - 1] = cadenceChords[1];
 	}
 	
+	/**
+	 * Find again only the chords of the previous harmony whose melody notes have changed,
+	 * and as many after them as it takes to reconnect with the old chords.
+	 * 
+	 * @return false if the previous harmony can't be reused, so the melody needs harmonizing
+	 * 		   from scratch
+	 */
+	private boolean reharmonize( Chord[] previous ) {
+	    if( previous == null || previous.length != notes.length || leadIn != null )
+	        return false;
+	    Key key = notes[0].getKey();
+	    Key previousKey = previous[0].getSopranoNote().getKey();
+	    if( previousKey.getFifths() != key.getFifths() 
+	            || !previousKey.getKeyType().equals(key.getKeyType()) )
+	        return false;
+	    
+	    int first = -1;
+	    int last = -1;
+	    for( int i = 0; i < notes.length; i++ ) {
+	        if( previous[i].getSopranoNote().getNoteNumber() != notes[i].getNoteNumber() ) {
+	            if( first < 0 )
+	                first = i;
+	            last = i;
+	        }
+	    }
+	    
+	    int lastBody = notes.length - 3;
+	    System.arraycopy(previous, 0, allChords, 0, notes.length);
+	    if( first < 0 )
+	        return true;
+	    if( last >= notes.length - 2 ) {
+	        cadenceChords = knowledge.findCadence();
+	        allChords[notes.length - 2] = cadenceChords[0];
+	        allChords[notes.length - 1] = cadenceChords[1];
+	        if( cadenceChords[0] == null || cadenceChords[1] == null )
+	            return false;
+	        //the new cadence is found on its own, so the last body chord may not lead into it
+	        if( lastBody >= 1 && !knowledge.connects(allChords[lastBody], cadenceChords[0]) )
+	            first = Math.min(first, lastBody);
+	    }
+	    if( first == 0 ) {
+	        firstChord = knowledge.findFirstChord();
+	        allChords[0] = firstChord;
+	        if( firstChord == null )
+	            return false;
+	    }
+	    
+	    //the body chords that changed, the one after a new first chord and the one before a new
+	    //cadence if it no longer leads into it
+	    int from = Math.max(first, 1);
+	    int to = Math.max(from, Math.min(last, lastBody));
+	    return from > lastBody || knowledge.findWindowChords(allChords, from, to);
+	}
+	
+	/**
+	 * @return each voice as a note string, soprano first; more than four if the tables
+	 *         were for more parts
+	 */
 	public String[] printFourParts() {
-	    String soprano = "";
-	    String alto = "";
-	    String tenor = "";
-	    String bass = "";
-	    String[] results = new String[4];
-	    for( int i = 0; i < allChords.length; i++) {
-	        soprano = soprano + allChords[i].getSopranoNote().getNoteAndOctave() + " ";
-	        alto = alto + allChords[i].getAltoNote().getNoteAndOctave() + " ";
-	        tenor = tenor  + allChords[i].getTenorNote().getNoteAndOctave() + " ";
-	        bass = bass + allChords[i].getBassNote().getNoteAndOctave() + " ";
+	    String[] results = new String[allChords.length > 0 ? allChords[0].getVoiceCount() : 4];
+	    StringBuilder voice = new StringBuilder(allChords.length * 4);
+	    for( int v = 0; v < results.length; v++ ) {
+	        voice.setLength(0);
+	        try {
+	            writeVoice(allChords, v, voice);
+	        } catch(IOException e) {
+	            //appending to a StringBuilder doesn't throw
+	        }
+	        results[v] = voice.toString();
 	    }
-	    results[0] = soprano;
-	    results[1] = alto;
-	    results[2] = tenor;
-	    results[3] = bass;	    
 	    return results;
 	}
+	
+	/**
+	 * Returns the generated chords, in melody order.
+	 */
+	public Chord[] getChords() {
+	    return allChords;
+	}
+	
+	/**
+	 * Write one voice of a harmony as a note string, each note followed by a space.  Writes
+	 * straight to the destination, so long harmonies can be streamed to a file.
+	 * 
+	 * @param chords the harmony
+	 * @param voice  one of Chord.SOPRANO, ALTO, TENOR or BASS, or in more parts the voice's
+	 *               number from the top
+	 * @param out    where to write the notes
+	 */
+	public static void writeVoice( Chord[] chords, int voice, Appendable out ) throws IOException {
+	    for( int i = 0; i < chords.length; i++ ) {
+	        out.append(chords[i].getNote(voice).getNoteAndOctave());
+	        out.append(' ');
+	    }
+	}
 }
@@ -53,6 +53,18 @@ public class Key
             F_SHARP_MINOR, C_MINOR, C_SHARP_MINOR, F_MINOR, G_SHARP_MINOR, B_FLAT_MINOR, D_SHARP_MINOR, 
             E_FLAT_MINOR, A_SHARP_MINOR, A_FLAT_MINOR};
     
+    //key roots by the number of sharps (positive) or flats (negative) in the signature, from 7 flats
+    private static final String[] MAJOR_BY_FIFTHS = {C_FLAT_MAJOR, G_FLAT_MAJOR, D_FLAT_MAJOR,
+            A_FLAT_MAJOR, E_FLAT_MAJOR, B_FLAT_MAJOR, F_MAJOR, C_MAJOR, G_MAJOR, D_MAJOR, A_MAJOR,
+            E_MAJOR, B_MAJOR, F_SHARP_MAJOR, C_SHARP_MAJOR};
+    private static final String[] MINOR_BY_FIFTHS = {A_FLAT_MINOR, E_FLAT_MINOR, B_FLAT_MINOR,
+            F_MINOR, C_MINOR, G_MINOR, D_MINOR, A_MINOR, E_MINOR, B_MINOR, F_SHARP_MINOR,
+            C_SHARP_MINOR, G_SHARP_MINOR, D_SHARP_MINOR, A_SHARP_MINOR};
+    
+    //the order sharps and flats are added to a key signature
+    private static final String SHARP_ORDER = "FCGDAEB";
+    private static final String FLAT_ORDER = "BEADGCF";
+    
     private Integer[] notes8;			//the notes of this key on a 1-8 scale	
     private int root12;				//the root of the key on a 1-12 scale
     private int root8;				//the root of the key on a 1-8 scale
@@ -61,6 +73,7 @@ public class Key
     									//melody...
     
     private String minorOrMajor;		//minor or major?
+    private String rootName;			//the root as given, e.g. F#
 
     /**
      * Construct a new key given the key as a String.  Constructed from the key type and root provided
@@ -73,12 +86,122 @@ public class Key
     {
         notes8 = new Integer[7]; 
         minorOrMajor = keyType;
+        rootName = root;
         root12 = setRootKey12(root);
         fillNotes8(root12, keyType);
         sharpsOrFlats = setSharpOrFlatKey(root, keyType);
         root8 = Utilities.convert12to8(root12, sharpsOrFlats);
     }
     
+    /**
+     * Build a key from a key signature, as found in a MIDI key signature meta event.
+     * 
+     * @param fifths	number of sharps (positive) or flats (negative), -7 to 7
+     * @param minor	is this a minor key?
+     * @return the key, or null if the signature is out of range
+     */
+    public static Key fromFifths( int fifths, boolean minor )
+    {
+        if( fifths < -7 || fifths > 7 )
+            return null;
+        if( minor )
+            return new Key(MINOR_BY_FIFTHS[fifths + 7], MINOR);
+        return new Key(MAJOR_BY_FIFTHS[fifths + 7], MAJOR);
+    }
+    
+    /**
+     * Parse a key written the way ABC files and most people write it, e.g. "G", "F#m", 
+     * "Bb major" or "Emin".  Anything after the mode is ignored.
+     * 
+     * @param keyString the key as text
+     * @return the key, or null if the text isn't a major or minor key HarmoGen knows
+     */
+    public static Key parse( String keyString )
+    {
+        String text = keyString.trim();
+        if( text.length() == 0 )
+            return null;
+        
+        char letter = Character.toUpperCase(text.charAt(0));
+        if( letter < 'A' || letter > 'G' )
+            return null;
+        String root = String.valueOf(letter);
+        int modeStart = 1;
+        if( text.length() > 1 && (text.charAt(1) == '#' || text.charAt(1) == 'b') )
+        {
+            root = root + text.charAt(1);
+            modeStart = 2;
+        }
+        
+        String mode = text.substring(modeStart).trim().toLowerCase();
+        int end = mode.indexOf(' ');
+        if( end >= 0 )
+            mode = mode.substring(0, end);
+        
+        String[] roots;
+        String keyType;
+        if( mode.equals("") || mode.startsWith("maj") || mode.startsWith("ion") )
+        {
+            keyType = MAJOR;
+            roots = MAJOR_BY_FIFTHS;
+        }
+        else if( mode.equals("m") || mode.startsWith("min") || mode.startsWith("aeo") )
+        {
+            keyType = MINOR;
+            roots = MINOR_BY_FIFTHS;
+        }
+        else
+            return null;
+        
+        for( int i = 0; i < roots.length; i++ )
+        {
+            if( roots[i].equals(root) )
+                return new Key(root, keyType);
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the key signature as a count of sharps (positive) or flats (negative).
+     * 
+     * @return -7 to 7, or 0 for a key that has no standard signature
+     */
+    public int getFifths()
+    {
+        String[] roots = minorOrMajor.equals(MINOR) ? MINOR_BY_FIFTHS : MAJOR_BY_FIFTHS;
+        for( int i = 0; i < roots.length; i++ )
+        {
+            if( roots[i].equals(rootName) )
+                return i - 7;
+        }
+        return 0;
+    }
+    
+    /**
+     * Does the key signature sharpen or flatten notes with this letter?
+     * 
+     * @param letter	a note letter, A-G
+     * @return Note.SHARP, Note.FLAT, or 0 if the letter is natural in this key
+     */
+    public int getSignatureAccidental( char letter )
+    {
+        int fifths = getFifths();
+        letter = Character.toUpperCase(letter);
+        if( fifths > 0 && SHARP_ORDER.indexOf(letter) < fifths )
+            return Note.SHARP;
+        if( fifths < 0 && FLAT_ORDER.indexOf(letter) < -fifths )
+            return Note.FLAT;
+        return 0;
+    }
+    
+    /**
+     * Returns the root of the key as it was given, e.g. F#.
+     */
+    public String getRootName()
+    {
+        return rootName;
+    }
+    
     /**
      * Iterate through all the possible keys and determine whether this key contains sharps (1),
      * flats (-1), or neither (0).  Uses the glorious ternary operator.
@@ -188,6 +311,17 @@ public class Key
         return note12;
     }
     
+    /**
+     * Returns the pitch class of a degree of the scale, counting C as 0.  Unlike getNote12, 
+     * it gives B for the tonic of Cb, which getNote12 numbers 0.
+     * 
+     * @param degree	the scale degree, 1-7
+     * @return 0-11
+     */
+    public int getPitchClass( int degree ) {
+        return (getNote12(degree) + 11) % 12;
+    }
+    
     public int getRootOfKey12()
     {
         return root12;
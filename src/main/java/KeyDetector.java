@@ -0,0 +1,245 @@
+/**
+ * Finds the key of a melody that doesn't say what it is, using the Krumhansl-Schmuckler
+ * method.  The melody's pitch classes are counted, weighted by duration when durations are
+ * known, and the counts are correlated against the Krumhansl-Kessler major and minor key
+ * profiles at all twelve transpositions.  The key whose profile correlates best wins.
+ *
+ * <p>Keys that sound the same but are spelled differently (C# and Db major) get the same
+ * score; the one with fewer sharps or flats is chosen.  Everything works on a 12-entry
+ * histogram of primitives, so detecting the key costs one pass over the melody and a few
+ * hundred multiplications, cheap enough to run on every file of a corpus.
+ */
+public class KeyDetector
+{
+    //Krumhansl and Kessler's probe-tone ratings, from the tonic up
+    private static final double[] MAJOR_PROFILE = { 6.35, 2.23, 3.48, 2.33, 4.38, 4.09, 2.52,
+            5.19, 2.39, 3.66, 2.29, 2.88 };
+    private static final double[] MINOR_PROFILE = { 6.33, 2.68, 3.52, 5.38, 2.60, 3.53, 2.54,
+            4.75, 3.98, 2.69, 3.34, 3.17 };
+
+    //the profiles less their means and scaled to unit length, so a correlation is a dot product
+    static final double[] MAJOR = normalize(MAJOR_PROFILE);
+    static final double[] MINOR = normalize(MINOR_PROFILE);
+
+    //for each tonic pitch class (C = 0), the best-spelled major and minor key
+    static final Key[] MAJOR_KEYS = new Key[12];
+    static final Key[] MINOR_KEYS = new Key[12];
+
+    static
+    {
+        //a key signature with fewer accidentals takes the place of its enharmonic twin
+        for(int fifths = 0; fifths <= 7; fifths++)
+        {
+            for(int sign = 1; sign >= -1; sign -= 2)
+            {
+                Key major = Key.fromFifths(sign * fifths, false);
+                Key minor = Key.fromFifths(sign * fifths, true);
+                int majorTonic = (major.getRootOfKey12() + 11) % 12;	//Cb's root is 0
+                int minorTonic = (minor.getRootOfKey12() + 11) % 12;
+                if(MAJOR_KEYS[majorTonic] == null)
+                    MAJOR_KEYS[majorTonic] = major;
+                if(MINOR_KEYS[minorTonic] == null)
+                    MINOR_KEYS[minorTonic] = minor;
+            }
+        }
+    }
+
+    /**
+     * Detect the key from pitches alone, each note counting once.
+     *
+     * @param pitches MIDI note numbers
+     * @return the key, or null if there are no notes
+     */
+    public static Result detect(int[] pitches)
+    {
+        return detect(pitches, null, 0, pitches.length);
+    }
+
+    /**
+     * Detect the key of a melody read from a file, weighting notes by duration.
+     */
+    public static Result detect(Melody melody)
+    {
+        return detect(melody.getPitches(), melody.getDurations(), 0, melody.size());
+    }
+
+    /**
+     * Detect the key of part of a melody.
+     *
+     * @param pitches    MIDI note numbers
+     * @param durations  how long each note lasts, in any unit, or null to count notes; notes
+     *                   of no length count as one unit
+     * @param from       the first note to use
+     * @param to         one past the last note to use
+     * @return the key, or null if there are no notes
+     */
+    public static Result detect(int[] pitches, long[] durations, int from, int to)
+    {
+        double[] histogram = new double[12];
+        for(int i = from; i < to; i++)
+        {
+            double weight = durations == null || durations[i] <= 0 ? 1 : durations[i];
+            histogram[pitches[i] % 12] += weight;
+        }
+        return detect(histogram);
+    }
+
+    /**
+     * Detect the key of a note string, e.g. "C5 D5 Eb5".  Tokens that aren't notes are skipped.
+     *
+     * @return the key, or null if there are no notes
+     */
+    public static Result detect(String notes)
+    {
+        double[] histogram = new double[12];
+        String[] tokens = notes.trim().split("\\s+");
+        for(int i = 0; i < tokens.length; i++)
+        {
+            int pitchClass = pitchClassOf(tokens[i]);
+            if(pitchClass >= 0)
+                histogram[pitchClass]++;
+        }
+        return detect(histogram);
+    }
+
+    /**
+     * Detect the key from a pitch-class histogram.
+     *
+     * @param histogram  how much of each pitch class, C first; not changed
+     * @return the key, or null if the histogram is empty or flat
+     */
+    public static Result detect(double[] histogram)
+    {
+        double mean = 0;
+        for(int pc = 0; pc < 12; pc++)
+            mean += histogram[pc];
+        mean /= 12;
+        double[] centred = new double[12];
+        double length = 0;
+        for(int pc = 0; pc < 12; pc++)
+        {
+            centred[pc] = histogram[pc] - mean;
+            length += centred[pc] * centred[pc];
+        }
+        if(length == 0)
+            return null;
+        length = Math.sqrt(length);
+
+        Key best = null;
+        double bestScore = -2;
+        double secondScore = -2;
+        for(int tonic = 0; tonic < 12; tonic++)
+        {
+            double major = 0;
+            double minor = 0;
+            for(int pc = 0; pc < 12; pc++)
+            {
+                int degree = (pc - tonic + 12) % 12;
+                major += centred[pc] * MAJOR[degree];
+                minor += centred[pc] * MINOR[degree];
+            }
+            major /= length;
+            minor /= length;
+
+            for(int mode = 0; mode < 2; mode++)
+            {
+                double score = mode == 0 ? major : minor;
+                if(score > bestScore)
+                {
+                    secondScore = bestScore;
+                    bestScore = score;
+                    best = mode == 0 ? MAJOR_KEYS[tonic] : MINOR_KEYS[tonic];
+                }
+                else if(score > secondScore)
+                {
+                    secondScore = score;
+                }
+            }
+        }
+        return new Result(best, bestScore, bestScore - secondScore);
+    }
+
+    /**
+     * @return the pitch class (C = 0) of a note like "C5", "F#4", "Bb5" or "C-5", or -1
+     */
+    static int pitchClassOf(String note)
+    {
+        if(note.length() < 2)
+            return -1;
+        int letter = "C D EF G A B".indexOf(Character.toUpperCase(note.charAt(0)));
+        if(letter < 0 || note.charAt(0) == ' ')
+            return -1;
+        char tag = note.charAt(1);
+        if(tag == '#')
+            letter++;
+        else if(tag == 'b')
+            letter--;
+        else if(tag != '-' && !Character.isDigit(tag))
+            return -1;
+        return (letter + 12) % 12;
+    }
+
+    private static double[] normalize(double[] profile)
+    {
+        double mean = 0;
+        for(int i = 0; i < profile.length; i++)
+            mean += profile[i];
+        mean /= profile.length;
+        double length = 0;
+        for(int i = 0; i < profile.length; i++)
+            length += (profile[i] - mean) * (profile[i] - mean);
+        length = Math.sqrt(length);
+
+        double[] normalized = new double[profile.length];
+        for(int i = 0; i < profile.length; i++)
+            normalized[i] = (profile[i] - mean) / length;
+        return normalized;
+    }
+
+    /**
+     * A detected key and how sure the detector is of it.
+     */
+    public static class Result
+    {
+        private Key key;
+        private double correlation;
+        private double confidence;
+
+        Result(Key key, double correlation, double confidence)
+        {
+            this.key = key;
+            this.correlation = correlation;
+            this.confidence = confidence;
+        }
+
+        public Key getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return how well the melody matches the key's profile, from -1 to 1; real melodies in
+         *         a clear key score 0.7 and up
+         */
+        public double getCorrelation()
+        {
+            return correlation;
+        }
+
+        /**
+         * @return how far the key is ahead of the runner-up, from 0 (a tie) to 2; relative
+         *         keys often trail by under 0.1, so small values mean the key may be the
+         *         relative major or minor instead
+         */
+        public double getConfidence()
+        {
+            return confidence;
+        }
+
+        public String toString()
+        {
+            return key.getRootName() + " " + key.getKeyType()
+                    + String.format(" (r = %.3f, confidence %.3f)", correlation, confidence);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parts of the knowledge base that depend only on the key and the voice ranges: the
+ * range of each voice as harmony numbers, the scales, and a Note for every pitch the harmony
+ * voices can be given.  Harmonizing a short melody spends much of its time building these, so
+ * code that harmonizes many melodies in one key (HarmonyBatcher, for one) builds the tables
+ * once and passes them to each InferenceEngine.  The tables also carry the chord transition
+ * model the search draws its progressions from, and every voicing of every chord in the
+ * vocabulary, compiled for the key and ranges.
+ *
+ * <p>get() keeps the tables of the most recently used keys, ranges and models, so a service
+ * taking ranges with each request builds the tables for a set of ranges once rather than per
+ * request.
+ *
+ * <p>Nothing in a KeyTables changes after construction, so one can be shared between threads.
+ */
+public class KeyTables
+{
+    //the lowest harmony number Note(int, Key) accepts, C3; ChordGen never goes below it
+    static final int HARMONY_LOW = 46;
+    //the highest harmony number the voices are given, C9
+    static final int HARMONY_HIGH = 88;
+
+    //the notes of the major and natural minor scales, a bit per Note.getScaleID12, 1 to 12
+    private static final int MAJOR_SCALE
+            = 1 << 1 | 1 << 3 | 1 << 5 | 1 << 6 | 1 << 8 | 1 << 10 | 1 << 12;
+    private static final int MINOR_SCALE
+            = 1 << 1 | 1 << 3 | 1 << 4 | 1 << 6 | 1 << 8 | 1 << 9 | 1 << 11;
+
+    //how many tables get() keeps
+    static final int CACHE_SIZE = 64;
+
+    //in order of use, so the least recently used tables are dropped first
+    private static final Map<CacheKey, KeyTables> cache
+            = new LinkedHashMap<CacheKey, KeyTables>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, KeyTables> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Key key;
+    private final VoiceRanges ranges;
+    private final int[] low8;		//each voice's range as harmony numbers
+    private final int[] high8;
+    private final Note[] harmonyNotes = new Note[HARMONY_HIGH + 1];
+    private final int[] degrees = new int[HARMONY_HIGH + 1];	//of each harmony number, 1 to 7
+    private final ChordTransitionModel transitions;
+    private final int mode;
+    private final ChordVocabulary vocabulary = ChordVocabulary.DEFAULT;
+    private final ChordVocabulary.Voicings voicings;
+
+    public KeyTables(Key key)
+    {
+        this(key, ChordTransitionModel.getDefault());
+    }
+
+    /**
+     * @param key          the key
+     * @param transitions  the chord progressions to harmonize with
+     */
+    public KeyTables(Key key, ChordTransitionModel transitions)
+    {
+        this(key, transitions, VoiceRanges.DEFAULT);
+    }
+
+    /**
+     * @param key          the key
+     * @param transitions  the chord progressions to harmonize with
+     * @param ranges       what each voice may sing
+     */
+    public KeyTables(Key key, ChordTransitionModel transitions, VoiceRanges ranges)
+    {
+        this.key = key;
+        this.transitions = transitions;
+        this.ranges = ranges;
+        this.mode = ChordTransitionModel.modeOf(key);
+
+        //harmony numbers rise with pitch, so each range is one run of them
+        int voices = ranges.getVoiceCount();
+        low8 = new int[voices];
+        high8 = new int[voices];
+        for(int v = 0; v < voices; v++)
+        {
+            low8[v] = HARMONY_HIGH + 1;
+            high8[v] = HARMONY_LOW - 1;
+        }
+        int rootLetter = new Note(HARMONY_LOW, key).getRootKey8();
+        for(int i = HARMONY_LOW; i <= HARMONY_HIGH; i++)
+        {
+            harmonyNotes[i] = new Note(i, key);
+            int letter = (i - 45) % 7;		//as Note(int, Key) counts, 1 (C) to 7 (B)
+            if(letter == 0)
+                letter = 7;
+            degrees[i] = (letter - rootLetter + 7) % 7 + 1;
+            for(int v = 0; v < voices; v++)
+            {
+                if(ranges.contains(v, harmonyNotes[i].getNoteNumber()))
+                {
+                    low8[v] = Math.min(low8[v], i);
+                    high8[v] = i;
+                }
+            }
+        }
+
+        //more parts are voiced by ChordGen's search instead, as their voicings are too many
+        voicings = voices == 4 ? vocabulary.compile(this) : null;
+    }
+
+    /**
+     * Get the tables for a key, building them only if they aren't among the last CACHE_SIZE
+     * used.  Two threads asking for new tables at once may both build them; one copy is kept.
+     */
+    public static KeyTables get(Key key, ChordTransitionModel transitions, VoiceRanges ranges)
+    {
+        CacheKey cacheKey = new CacheKey(key, transitions, ranges);
+        KeyTables tables;
+        synchronized(cache) {
+            tables = cache.get(cacheKey);
+        }
+        if(tables != null)
+            return tables;
+
+        tables = new KeyTables(key, transitions, ranges);
+        synchronized(cache) {
+            KeyTables built = cache.get(cacheKey);
+            if(built != null)
+                return built;
+            cache.put(cacheKey, tables);
+        }
+        return tables;
+    }
+
+    public Key getKey()
+    {
+        return key;
+    }
+
+    public VoiceRanges getRanges()
+    {
+        return ranges;
+    }
+
+    /**
+     * @return how many parts the harmony is in, 4 unless the ranges were divided
+     */
+    public int getVoiceCount()
+    {
+        return low8.length;
+    }
+
+    /**
+     * @param voice  Chord.SOPRANO to Chord.BASS, or in more parts the voice's number from the top
+     * @return the lowest harmony number in the voice's range; above getHigh8() if the key
+     *         has no note in it
+     */
+    int getLow8(int voice)
+    {
+        return low8[voice];
+    }
+
+    int getHigh8(int voice)
+    {
+        return high8[voice];
+    }
+
+    /**
+     * Returns the note for a harmony number (see Note(int, Key)).  Notes in the voice ranges
+     * are shared; others are made on demand.
+     */
+    public Note getNote(int harmonyNote8)
+    {
+        if(harmonyNote8 >= HARMONY_LOW && harmonyNote8 <= HARMONY_HIGH)
+            return harmonyNotes[harmonyNote8];
+        return new Note(harmonyNote8, key);
+    }
+
+    /**
+     * @param harmonyNote8  a harmony number from HARMONY_LOW to HARMONY_HIGH
+     * @return its scale degree, 1 to 7, by its letter
+     */
+    int getDegree(int harmonyNote8)
+    {
+        return degrees[harmonyNote8];
+    }
+
+    public ChordTransitionModel getTransitionModel()
+    {
+        return transitions;
+    }
+
+    public ChordVocabulary getVocabulary()
+    {
+        return vocabulary;
+    }
+
+    /**
+     * @return the vocabulary's voicings in this key, or null unless there are four parts
+     */
+    public ChordVocabulary.Voicings getVoicings()
+    {
+        return voicings;
+    }
+
+    /**
+     * @return ChordTransitionModel.MAJOR or MINOR
+     */
+    int getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @return the notes of the key's scale, natural minor for a minor key: bit n is set if
+     *         the note n - 1 semitones above the tonic is in it, as Note.getScaleID12 counts
+     */
+    int getScale()
+    {
+        return Key.MAJOR.equals(key.getKeyType()) ? MAJOR_SCALE : MINOR_SCALE;
+    }
+
+    /**
+     * What a cached KeyTables was built from.  Models are told apart by identity, since a
+     * service keeps one for its lifetime.
+     */
+    private static class CacheKey
+    {
+        private final int fifths;
+        private final String keyType;
+        private final ChordTransitionModel transitions;
+        private final VoiceRanges ranges;
+
+        CacheKey(Key key, ChordTransitionModel transitions, VoiceRanges ranges)
+        {
+            this.fifths = key.getFifths();
+            this.keyType = key.getKeyType();
+            this.transitions = transitions;
+            this.ranges = ranges;
+        }
+
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof CacheKey))
+                return false;
+            CacheKey that = (CacheKey)other;
+            return fifths == that.fifths && keyType.equals(that.keyType)
+                    && transitions == that.transitions && ranges.equals(that.ranges);
+        }
+
+        public int hashCode()
+        {
+            return ((fifths * 31 + keyType.hashCode()) * 31 + System.identityHashCode(transitions)) * 31
+                    + ranges.hashCode();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows the key of a melody note by note, for melodies that modulate.  The tracker looks at
+ * the last few notes, a window of DEFAULT_WINDOW unless told otherwise, and correlates them
+ * against the same Krumhansl-Kessler profiles KeyDetector uses.
+ *
+ * <p>Nothing is recounted as the window slides.  Adding a note and dropping the oldest one
+ * each update the 24 key scores, the pitch-class counts and their sum and sum of squares by
+ * that one note's share, so a step costs the same however long the window or the melody is.
+ *
+ * <p>findRegions() uses a tracker to split a melody into runs of notes that are all in one
+ * key, which the engine can harmonize one at a time.
+ */
+public class KeyTracker
+{
+    public static final int DEFAULT_WINDOW = 16;
+
+    //InferenceEngine needs at least this many notes to harmonize
+    static final int MIN_REGION = 3;
+
+    private static final int KEYS = 24;		//12 major keys by tonic, then 12 minor
+    private static final int[] MAJOR_STEPS = { 0, 2, 4, 5, 7, 9, 11 };
+    private static final int[] MINOR_STEPS = { 0, 2, 3, 5, 7, 8, 10 };
+
+    //the scale of each key as a 12-bit mask of pitch classes, the same scales KeyTables uses
+    private static final int[] SCALES = new int[KEYS];
+
+    static
+    {
+        for(int tonic = 0; tonic < 12; tonic++)
+        {
+            for(int i = 0; i < 7; i++)
+            {
+                SCALES[tonic] |= 1 << (tonic + MAJOR_STEPS[i]) % 12;
+                SCALES[12 + tonic] |= 1 << (tonic + MINOR_STEPS[i]) % 12;
+            }
+        }
+    }
+
+    private final int[] window;				//the pitch classes in the window, oldest at next
+    private int size;
+    private int next;
+    private final double[] counts = new double[12];
+    private double sum;
+    private double sumOfSquares;
+    private final double[] scores = new double[KEYS];	//the counts dotted with each key's profile
+
+    public KeyTracker()
+    {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window  how many of the latest notes to judge the key by
+     */
+    public KeyTracker(int window)
+    {
+        if(window < 1)
+            throw new IllegalArgumentException("The window must hold at least one note");
+        this.window = new int[window];
+    }
+
+    /**
+     * Move the window on by one note, dropping the oldest if the window is full.
+     *
+     * @param pitchClass  the note's pitch class, C = 0
+     */
+    public void add(int pitchClass)
+    {
+        if(size == window.length)
+            count(window[next], -1);
+        else
+            size++;
+        window[next] = pitchClass;
+        next = (next + 1) % window.length;
+        count(pitchClass, 1);
+    }
+
+    private void count(int pitchClass, int weight)
+    {
+        double before = counts[pitchClass];
+        counts[pitchClass] += weight;
+        sum += weight;
+        sumOfSquares += counts[pitchClass] * counts[pitchClass] - before * before;
+        for(int tonic = 0; tonic < 12; tonic++)
+        {
+            int degree = (pitchClass - tonic + 12) % 12;
+            scores[tonic] += weight * KeyDetector.MAJOR[degree];
+            scores[12 + tonic] += weight * KeyDetector.MINOR[degree];
+        }
+    }
+
+    /**
+     * @return the key that best fits the notes in the window, or null before the first note
+     */
+    public Key getKey()
+    {
+        return size == 0 ? null : keyOf(best());
+    }
+
+    /**
+     * @return how well the window matches the best key's profile, from -1 to 1; 0 if the
+     *         window is empty or holds one pitch class only
+     */
+    public double getCorrelation()
+    {
+        //the profiles sum to zero, so the scores already equal the centred counts' dot products
+        double length = sumOfSquares - sum * sum / 12;
+        return size == 0 || length <= 1e-9 ? 0 : scores[best()] / Math.sqrt(length);
+    }
+
+    private int best()
+    {
+        int best = 0;
+        for(int k = 1; k < KEYS; k++)
+        {
+            if(scores[k] > scores[best])
+                best = k;
+        }
+        return best;
+    }
+
+    private static Key keyOf(int k)
+    {
+        return k < 12 ? KeyDetector.MAJOR_KEYS[k] : KeyDetector.MINOR_KEYS[k - 12];
+    }
+
+    private static boolean inScale(int k, int pitchClass)
+    {
+        return (SCALES[k] & 1 << pitchClass) != 0;
+    }
+
+    /**
+     * Split a melody into regions that are each in one key, with the default window.
+     */
+    public static List<Region> findRegions(int[] pitchClasses)
+    {
+        return findRegions(pitchClasses, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Split a melody into regions that are each in one key, in a single pass.  The key of the
+     * first window starts the first region.  A region ends when a note outside its key comes
+     * along and the tracker, now or within a window of it, prefers a key that has that note;
+     * the new region starts at that note.  A note outside the key that the tracker doesn't
+     * follow, like a chromatic passing tone, stays where it is, and the engine will say it is
+     * nonharmonic.
+     *
+     * <p>The boundary moves back a note or two if the old region would otherwise end on a
+     * melody note the cadence can't harmonize, and a region too short to harmonize on its own
+     * is taken over by the key that follows it.  Each region's key is finally settled between
+     * the tracked key and its relative major or minor by all of the region's notes.
+     *
+     * @param pitchClasses  the melody's pitch classes, C = 0
+     * @param window        how many notes the tracker judges the key by
+     * @return the regions in order, covering the whole melody; empty if there are no notes
+     */
+    public static List<Region> findRegions(int[] pitchClasses, int window)
+    {
+        List<Region> regions = new ArrayList<Region>();
+        int length = pitchClasses.length;
+        if(length == 0)
+            return regions;
+
+        //the first region's key comes from the first window of notes
+        KeyTracker tracker = new KeyTracker(window);
+        int settled = Math.min(window, length);
+        for(int i = 0; i < settled; i++)
+            tracker.add(pitchClasses[i]);
+        int current = tracker.best();
+
+        int start = 0;
+        double[] regionCounts = new double[12];
+        //the notes in the window that are outside the current key, as a queue of indexes
+        int[] foreign = new int[window];
+        int foreignHead = 0;
+        int foreignSize = 0;
+
+        for(int i = 0; i < length; i++)
+        {
+            if(i >= settled)
+                tracker.add(pitchClasses[i]);
+            regionCounts[pitchClasses[i]]++;
+            while(foreignSize > 0 && foreign[foreignHead] <= i - window)
+            {
+                foreignHead = (foreignHead + 1) % window;
+                foreignSize--;
+            }
+            if(!inScale(current, pitchClasses[i]))
+            {
+                foreign[(foreignHead + foreignSize) % window] = i;
+                foreignSize++;
+            }
+            if(foreignSize == 0)
+                continue;
+
+            int best = tracker.best();
+            int first = foreign[foreignHead];
+            if(best == current || !inScale(best, pitchClasses[first]))
+                continue;
+
+            //modulate at the first note that left the old key
+            for(int j = first; j <= i; j++)
+                regionCounts[pitchClasses[j]]--;
+            int ending = chooseMode(current, regionCounts);
+            int boundary = first;
+            while(boundary - 1 - start >= MIN_REGION && boundary > first - 2
+                    && !canEndOn(ending, pitchClasses, boundary - 1)
+                    && inScale(best, pitchClasses[boundary - 1]))
+            {
+                boundary--;
+                regionCounts[pitchClasses[boundary]]--;
+            }
+
+            if(boundary - start >= MIN_REGION)
+            {
+                regions.add(new Region(start, boundary, keyOf(ending)));
+                start = boundary;
+                regionCounts = new double[12];
+            }
+            for(int j = start; j <= i; j++)
+            {
+                if(j >= boundary)
+                    regionCounts[pitchClasses[j]]++;
+            }
+            current = best;
+
+            //what counts as foreign has changed with the key
+            foreignHead = 0;
+            foreignSize = 0;
+            for(int j = Math.max(start, i - window + 1); j <= i; j++)
+            {
+                if(!inScale(current, pitchClasses[j]))
+                    foreign[foreignSize++] = j;
+            }
+        }
+        regions.add(new Region(start, length, keyOf(chooseMode(current, regionCounts))));
+        return regions;
+    }
+
+    /**
+     * @return the key or its relative major or minor, whichever fits the counts better
+     */
+    private static int chooseMode(int k, double[] counts)
+    {
+        int relative = k < 12 ? 12 + (k + 9) % 12 : (k - 12 + 3) % 12;
+        return score(relative, counts) > score(k, counts) ? relative : k;
+    }
+
+    private static double score(int k, double[] counts)
+    {
+        double[] profile = k < 12 ? KeyDetector.MAJOR : KeyDetector.MINOR;
+        int tonic = k % 12;
+        double score = 0;
+        for(int pitchClass = 0; pitchClass < 12; pitchClass++)
+            score += counts[pitchClass] * profile[(pitchClass - tonic + 12) % 12];
+        return score;
+    }
+
+    /**
+     * The cadence rules of KnowledgeDB.checkInput: a region can't end on the fourth degree, or
+     * on the first, third or fifth straight after the third.
+     */
+    private static boolean canEndOn(int k, int[] pitchClasses, int last)
+    {
+        int degree = degreeOf(k, pitchClasses[last]);
+        if(degree == 4)
+            return false;
+        if(degree == 1 || degree == 3 || degree == 5)
+            return degreeOf(k, pitchClasses[last - 1]) != 3;
+        return true;
+    }
+
+    /**
+     * @return the scale degree of a pitch class in a key, 1 to 7, or 0 if it isn't in the scale
+     */
+    private static int degreeOf(int k, int pitchClass)
+    {
+        int[] steps = k < 12 ? MAJOR_STEPS : MINOR_STEPS;
+        int step = (pitchClass - k % 12 + 12) % 12;
+        for(int i = 0; i < steps.length; i++)
+        {
+            if(steps[i] == step)
+                return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * A run of melody notes in one key.
+     */
+    public static class Region
+    {
+        private int from;
+        private int to;
+        private Key key;
+
+        Region(int from, int to, Key key)
+        {
+            this.from = from;
+            this.to = to;
+            this.key = key;
+        }
+
+        /**
+         * @return the index of the region's first note
+         */
+        public int getFrom()
+        {
+            return from;
+        }
+
+        /**
+         * @return one past the index of the region's last note
+         */
+        public int getTo()
+        {
+            return to;
+        }
+
+        public Key getKey()
+        {
+            return key;
+        }
+
+        public String toString()
+        {
+            return from + "-" + (to - 1) + " " + key.getRootName() + " " + key.getKeyType();
+        }
+    }
+}
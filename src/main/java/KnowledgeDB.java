@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * @author Alec LaLonde
@@ -13,15 +14,6 @@ public class KnowledgeDB
 	private final int TENOR = 2;
 	private final int ALTO = 3;
 	
-	private final int BASS_LOW = 40;		//E3
-	private final int BASS_HIGH = 64;		//E5
-	private final int TENOR_LOW = 48;		//C4
-	private final int TENOR_HIGH = 69;	//A5
-	private final int ALTO_LOW = 53;		//F4
-	private final int ALTO_HIGH = 74;		//D6
-	private final int SOPRANO_LOW = 60;  	//C5
-	private final int SOPRANO_HIGH = 84; 	//C7
-	
 	private final int random = 0;
 	private final int tonic = 1;
 	private final int supertonic = 2;
@@ -31,20 +23,43 @@ public class KnowledgeDB
 	private final int mediant = 6;
 	private final int leadingTone = 7;
 	
+	//the cadences findCadence() can end a harmony with, as returned by getCadenceType()
+	public static final int AUTHENTIC = 0;
+	public static final int PLAGAL = 1;
+	public static final int HALF = 2;
+	public static final int DECEPTIVE = 3;
+	public static final String[] CADENCE_NAMES = { "authentic", "plagal", "half", "deceptive" };
+	
+	//findBodyChords gives up after this many failed positions per melody note; melodies that
+	//can be harmonized rarely need more than a few per note
+	private final int FAILURES_PER_NOTE = 20;
+	
+	//findWindowChords tries this many times to fit a window before widening it, and gives up
+	//on windows wider than the limit, which are quicker to harmonize from scratch
+	private final int TRIES_PER_WINDOW = 5;
+	private final int WINDOW_LIMIT = 12;
+	
+	//findCadence tries its cadence this many times; in four parts one nearly always turns up,
+	//but in more some melody notes leave the parts below no room
+	private final int CADENCE_TRIES = 20;
+	
 	private Note[] notes;     		//the inputted notes
 	private Key key;					//the deduced key
 	private int root; 				//the root of the key
 	private String keyType;     		//indicates major or minor key
 	private int loops = 0;
-	private ArrayList majorScale;		//holds the notes of a major scale
-	private ArrayList minorScale;		//holds the notes of a minor scale
-	private ArrayList bassRange;		//holds the range for the bass voicing
-	private ArrayList tenorRange;		//holds the range for the tenor voicing
-	private ArrayList altoRange;		//holds the range for the alto voicing
-	private ArrayList sopranoRange;	//holds the range for the soprano voicing
+	private int scale;				//the notes of the key's scale, a bit per scale ID 1-12
+	private VoiceRanges ranges;		//holds the range of each voice
 	private ChordGen chordGen;
+	private ChordVocabulary vocabulary;	//the chords the harmony may use
+	private ChordTransitionModel transitions;	//how likely each chord is to follow another
+	private int mode;					//which of the model's tables, major or minor
 	
 	private boolean badChordChosen = false;
+	private String errorMsg = "";		//why the input was rejected
+	private HarmonyListener listener = HarmonyListener.NO_OP;	//told about progress
+	private int position;				//the chord being found, counting from 1, for the listener
+	private Random rand = new Random();	//every random choice of the search comes from here
 	
 	/**
 	 * Constructor called by InferenceEngine.  Sets up the knowledge indicated
@@ -53,44 +68,62 @@ public class KnowledgeDB
 	 * @param myNotes an array of Note objects inputted by the user.
 	 */
 	public KnowledgeDB( Note[] myNotes, Key key ) {
+	    this( myNotes, new KeyTables(key) );
+	}
+	
+	/**
+	 * Constructor for harmonizing in a key whose tables have already been built.
+	 * 
+	 * @param myNotes an array of Note objects inputted by the user.
+	 * @param tables  the ranges, scales and notes of the key
+	 */
+	public KnowledgeDB( Note[] myNotes, KeyTables tables ) {
 		notes = myNotes;
 	    
-		this.key = key;
+		this.key = tables.getKey();
 		root = key.getRootOfKey12();
 		keyType = key.getKeyType();
 		
-		majorScale = new ArrayList();
-		minorScale = new ArrayList();
-		
-		bassRange = new ArrayList();
-		tenorRange = new ArrayList();
-		altoRange = new ArrayList();
-		sopranoRange = new ArrayList();
-		
-		for( int i = BASS_LOW; i <= SOPRANO_HIGH; i++ ) {
-			if(i <= BASS_HIGH ) bassRange.add(new Integer(i));
-			if(i <= TENOR_HIGH && i >= TENOR_LOW) tenorRange.add(new Integer(i));
-			if(i <= ALTO_HIGH && i >= ALTO_LOW) altoRange.add(new Integer(i));
-			if(i >= SOPRANO_LOW) sopranoRange.add(new Integer(i));
-		}
-		
-		chordGen = new ChordGen(bassRange, tenorRange, altoRange, sopranoRange);
+		scale = tables.getScale();
 		
-		majorScale.add(new Integer(1));
-		majorScale.add(new Integer(3));
-		majorScale.add(new Integer(5));
-		majorScale.add(new Integer(6));
-		majorScale.add(new Integer(8));
-		majorScale.add(new Integer(10));
-		majorScale.add(new Integer(12));
+		ranges = tables.getRanges();
 		
-		minorScale.add(new Integer(1));
-		minorScale.add(new Integer(3));
-		minorScale.add(new Integer(4));
-		minorScale.add(new Integer(6));
-		minorScale.add(new Integer(8));
-		minorScale.add(new Integer(9));
-		minorScale.add(new Integer(11));
+		chordGen = new ChordGen(tables);
+		vocabulary = tables.getVocabulary();
+		transitions = tables.getTransitionModel();
+		mode = tables.getMode();
+	}
+	
+	/**
+	 * Set who hears about progress while the chords are being found.
+	 * 
+	 * @param listener the listener, or null for none
+	 */
+	public void setListener( HarmonyListener listener ) {
+	    this.listener = listener == null ? HarmonyListener.NO_OP : listener;
+	}
+	
+	/**
+	 * Set where the search's random choices come from.  Harmonizing the same melody with
+	 * generators seeded alike gives the same harmony.
+	 * 
+	 * @param rand the generator; it must not be shared with another thread while searching
+	 */
+	public void setRandom( Random rand ) {
+	    this.rand = rand;
+	    chordGen.setRandom( rand );
+	}
+	
+	/**
+	 * Stop the search if the thread running it has been interrupted, e.g. by a Cancel button
+	 * or a server deadline.  Every retry loop in the search, here and in ChordGen, calls this
+	 * once per pass, so an interrupted harmonization gives up its thread within one pass.
+	 * 
+	 * @throws CancellationException if the thread is interrupted
+	 */
+	static void checkCancelled() {
+	    if( Thread.currentThread().isInterrupted() )
+	        throw new CancellationException("Harmonization cancelled");
 	}
 	
 	/**
@@ -106,21 +139,21 @@ public class KnowledgeDB
 		int lastNote = notes.length - 1;
 		
 		for( int i = 0; i < notes.length; i++ ) {
-			if( !sopranoRange.contains(new Integer(notes[i].getNoteNumber())) ) {
-				InferenceEngine.setError(notes[i].getNoteAndOctave() + 
+			if( !ranges.contains(Chord.SOPRANO, notes[i].getNoteNumber()) ) {
+				setError(notes[i].getNoteAndOctave() + 
 				        						" is not in Soprano's range");
 				fail = true;
 			}
 			if( keyType.equals(Key.MAJOR)) {
-				if( !majorScale.contains(new Integer(notes[i].getScaleID12())) ) {
-				    InferenceEngine.setError(notes[i].getNoteAndOctave() + 
+				if( (scale & 1 << notes[i].getScaleID12()) == 0 ) {
+				    setError(notes[i].getNoteAndOctave() + 
 								" is a nonharmonic tone in a major scale");
 				    	fail = true;	
 				    	
 				}
 			} else {
-			    if( !minorScale.contains(new Integer(notes[i].getScaleID12())) ) {
-			        InferenceEngine.setError(notes[i].getNoteAndOctave() + 
+			    if( (scale & 1 << notes[i].getScaleID12()) == 0 ) {
+			        setError(notes[i].getNoteAndOctave() + 
 								" is a nonharmonic tone in a minor scale");
 				    	fail = true;		
 				}
@@ -129,7 +162,7 @@ public class KnowledgeDB
 		if( notes[lastNote].getScaleID8() == subdominant) 
 		{
 		    //if the last melody note is a 4 in it's key, we can't generate a proper cadence
-		    InferenceEngine.setError(notes[lastNote].getNoteAndOctave() + 
+		    setError(notes[lastNote].getNoteAndOctave() + 
 		            			" at the end does not allow for a proper cadence");
 		    	fail = true;		
 		} else if( notes[lastNote].getScaleID8() == tonic ||
@@ -137,7 +170,7 @@ public class KnowledgeDB
 		            notes[lastNote].getScaleID8() == dominant ) {
 		    //ending melody of 3, [1, 3, 5] doesn't allow for a proper cadence 
 		    	if( notes[lastNote - 1].getScaleID8() == submediant ) {
-		    	    InferenceEngine.setError(notes[notes.length - 2].getNoteAndOctave() + 
+		    	    setError(notes[notes.length - 2].getNoteAndOctave() + 
 		    	            " " + notes[lastNote].getNoteAndOctave() +
         					" at the end does not allow for a proper cadence");
 		    	    	fail = true;
@@ -146,231 +179,246 @@ public class KnowledgeDB
 		return fail;
 	}
 		
+	/**
+	 * Returns the reason checkInput() last failed.
+	 * 
+	 * @return the error message, or an empty String
+	 */
+	public String getErrorMessage() {
+	    return errorMsg;
+	}
+	
+	private void setError( String msg ) {
+	    errorMsg = msg;
+	}
+		
 	/**
 	 * Returns a cadence of two chords.  Cadence preference is in this order:
 	 * Authentic, Plagal, Half, Deceptive.  
 	 * 
-	 * @return the two last chords of the harmony.
+	 * @return the two last chords of the harmony; either is null if no voicing was found
 	 */
 	public Chord[] findCadence() 
 	{	  
 	    Chord[] cadenceChords = new Chord[2];
+	    int tries = 0;
 	    int lastNoteID = notes[notes.length - 1].getScaleID8();
 	    int secondToLastNoteID = notes[notes.length - 2].getScaleID8();
 	    
+	    int cadence = getCadenceType( secondToLastNoteID, lastNoteID );
+	    
 	    do{
-	        if( lastNoteID == supertonic || lastNoteID == leadingTone ) 
+	        checkCancelled();
+	        if( cadence == HALF ) 
 	        {    
 	            //if the last melody note is a 2nd or 7th in the key, must use a half cadence
-	            cadenceChords[0] = findChord( notes[notes.length - 2], random, null); 
-	            cadenceChords[1] = findChord( notes[notes.length - 1], dominant,
+	            position = notes.length - 1;
+	            cadenceChords[0] = findChord( notes[notes.length - 2], random, false, null); 
+	            position = notes.length;
+	            cadenceChords[1] = findChord( notes[notes.length - 1], dominant, false,
 	                    cadenceChords[0]);         			
-	        } else if( lastNoteID == mediant ) 
+	        } else if( cadence == DECEPTIVE ) 
 	        {
 	            //	      if the last melody note is a 6th in the key, must use a deceptive cadence
-	            cadenceChords[0] = findChord( notes[notes.length - 2], random, null );
-	            cadenceChords[1] = findChord( notes[notes.length - 1], mediant,
+	            position = notes.length - 1;
+	            cadenceChords[0] = findChord( notes[notes.length - 2], random, true, null );
+	            position = notes.length;
+	            cadenceChords[1] = findChord( notes[notes.length - 1], mediant, false,
+	                    cadenceChords[0]);
+	        } else if( cadence == AUTHENTIC ) {
+	            //if the 2nd-to-last melody note is a 2nd, 5th, or 7th in the key, use a full cadence
+	            position = notes.length - 1;
+	            //the dominant may be a V7
+	            cadenceChords[0] = findChord( notes[notes.length - 2], 
+	                    dominant, true, null); 
+	            position = notes.length;
+	            cadenceChords[1] = findChord( notes[notes.length - 1], tonic, false,
 	                    cadenceChords[0]);
 	        } else {
-	            //if the last melody note is anything else, we can end on a I chord.
-	            if( secondToLastNoteID == dominant || secondToLastNoteID == leadingTone 
-	                    || secondToLastNoteID == supertonic ) {
-	                //if the 2nd-to-last melody note is a 2nd, 5th, or 7th in the key, use a full cadence
-	                cadenceChords[0] = findChord( notes[notes.length - 2], 
-	                        dominant, null); 
-	                cadenceChords[1] = findChord( notes[notes.length - 1], tonic,
-	                        cadenceChords[0]);
-	            } else {
-	                //else use a plagal cadence
-	                cadenceChords[0] = findChord( notes[notes.length - 2], 
-	                        subdominant, null);
-	                cadenceChords[1] = findChord( notes[notes.length - 1], tonic,
-	                        cadenceChords[0]);
-	            }
+	            //else use a plagal cadence
+	            position = notes.length - 1;
+	            cadenceChords[0] = findChord( notes[notes.length - 2], 
+	                    subdominant, false, null);
+	            position = notes.length;
+	            cadenceChords[1] = findChord( notes[notes.length - 1], tonic, false,
+	                    cadenceChords[0]);
 	        }
-	    } while(badChordChosen);
+	    } while(badChordChosen && ++tries < CADENCE_TRIES);
 	    
 	    return cadenceChords;
 	}
 	
 	/**
-	 * Utility function for findCadence(), determines the roots of the chords that
-	 * need to be generated and passes the generation logic to the ChordGen class. 
+	 * Which cadence findCadence() ends a melody with, from its last two notes.
+	 * 
+	 * @param secondToLast the scale degree of the second-to-last melody note, 1-7
+	 * @param last         the scale degree of the last melody note, 1-7
+	 * @return AUTHENTIC, PLAGAL, HALF or DECEPTIVE
+	 */
+	public static int getCadenceType( int secondToLast, int last ) {
+	    if( last == 2 || last == 7 )
+	        return HALF;
+	    if( last == 6 )
+	        return DECEPTIVE;
+	    //anything else can end on a I chord
+	    if( secondToLast == 5 || secondToLast == 7 || secondToLast == 2 )
+	        return AUTHENTIC;
+	    return PLAGAL;
+	}
+	
+	/**
+	 * Utility function for findCadence(), determines the chords that may be used and passes
+	 * the voicing to the ChordGen class.
 	 * 
 	 * @param melodyNote the note of melody that needs to be chorded
-	 * @param chordType  the type of chord   i.e. 5 = dominant chord
+	 * @param chordType  the scale degree of the chord's root, i.e. 5 = dominant chord, or 0
+	 * 					 for any chord containing the melody note
+	 * @param sevenths   whether a seventh chord on that root may be used
+	 * @param prevChord  the chord before, or null
 	 * @return a cadential chord
 	 */
-	public Chord findChord( Note melodyNote, int chordType, Chord prevChord ) {
+	public Chord findChord( Note melodyNote, int chordType, boolean sevenths, Chord prevChord ) {
 	    Chord retChord = null;
-	    Integer[] chordNotes = null;
 	    boolean errors = false;
 	    loops = 0;
 	    badChordChosen = false;
 	    
-	    int chordRoot = melodyNote.getRootKey8() + chordType - 1;
-	    if( chordRoot >= 8 ) chordRoot = chordRoot % 7;
+	    //the chords allowed that contain the melody note; if the one asked for doesn't, any
+	    //triad that does
+	    int degree = degreeOf( melodyNote );
+	    List<ChordVocabulary.Type> choices = new ArrayList<ChordVocabulary.Type>();
+	    ChordVocabulary.Type[] containing = vocabulary.containing( degree );
+	    for( int pass = 0; pass < 2 && choices.isEmpty(); pass++ ) {
+	        for( int i = 0; i < containing.length; i++ ) {
+	            ChordVocabulary.Type type = containing[i];
+	            boolean triad = type.getToneCount() == 3;
+	            if( (triad || sevenths && pass == 0) 
+	                    && (pass == 1 || chordType == random || type.getRoot() == chordType) )
+	                choices.add( type );
+	        }
+	    }
+	    double[] weights = new double[choices.size()];
+	    for( int i = 0; i < weights.length; i++ )
+	        weights[i] = choices.get(i).getWeight();
 	    
 	    do {
-	        double randomNum2 = Math.random();
-		    if( chordType == random ) {
-		        double randomNum = Math.random();
-		        
-		        Integer[] choices = findChordContainingNote( melodyNote.getNoteID8() );
-	
-		        int choice = 0;
-		        if( randomNum < 0.33 )
-		            choice = choices[0].intValue();
-		        else if( randomNum < 0.67 )
-		            choice = choices[1].intValue();
-		        else 
-		            choice = choices[2].intValue();
-		        
-		        if( randomNum2 > 0.5 ) 
-			        chordNotes = findDoubledNotes( choice );
-			    else 
-			        chordNotes = findNotesOfChord( choice );	        
-		    } else { 
-		        if( randomNum2 > 0.5 ) 
-			        chordNotes = findDoubledNotes( chordRoot );
-			    else 
-			        chordNotes = findNotesOfChord( chordRoot );
-		    }
-		    
-		    retChord = chordGen.generateRootChord( chordNotes, melodyNote, prevChord );
+	        checkCancelled();
+	        ChordVocabulary.Type type = choices.get( pick(weights) );
+		    retChord = chordGen.generateChord( type, melodyNote, prevChord );
+		    if( retChord != null && isInverted(retChord) )
+		        listener.invertedChordTried( position );
 		    
-		    if( retChord.getLoopExceeded() == true ) {
-		        retChord = chordGen.generateInvertedChord( chordNotes, melodyNote,
-		                prevChord);
-		    }
 		    if( retChord == null ) 
 		        errors = true;
 		    else
 		        errors = false;
 		    loops++;
+		    if( errors && loops < 100 )
+		        listener.chordRetried( position, loops );
 	    } while( errors && loops < 100); 
 	    
 	    if(errors) 
 	    {
 	        badChordChosen = true;
-	        System.out.println("findChord: error found");
+	        listener.chordFailed( position );
 	    }
 	   
 	    return retChord;
 	}
 	
 	/**
-	 * Determines the best chord given the previous chord and previous soprano note
+	 * Choose an index at random, each in proportion to its weight.
 	 * 
-	 * @param melodyNote
-	 * @param previousChord
-	 * @return
+	 * @param weights the weights, at least one of them; if they are all 0 the choice is uniform
 	 */
-	public Chord findBestChord( Note melodyNote, Chord previousChord ) {
-	    Chord retChord = null;
-	    Integer[] chordNotes = null;
-	    double randomNum = Math.random();
-	    double randomNum2 = Math.random();
-	    int chordRootForKey;
-	    int chordType = 0;
-	    int chordRoot;
-	    boolean validChord = false;
-	    boolean errors = false;
-	    loops = 0;
-	    
-	    int prevNote = 0;
-	    int bass = previousChord.getBassNote().getNoteID8();
-	    int tenor = previousChord.getTenorNote().getNoteID8();
-	    int alto = previousChord.getAltoNote().getNoteID8();
+	private int pick( double[] weights ) {
+	    double total = 0;
+	    for( int i = 0; i < weights.length; i++ )
+	        total += weights[i];
+	    if( total <= 0 )
+	        return (int)(rand.nextDouble() * weights.length);
+	    double pick = rand.nextDouble() * total;
+	    for( int i = 0; i < weights.length - 1; i++ ) {
+	        pick -= weights[i];
+	        if( pick < 0 )
+	            return i;
+	    }
+	    return weights.length - 1;
+	}
+	
+	/**
+	 * @return the scale degree of a note, 1-7, by its letter as the chord tables count it
+	 */
+	private int degreeOf( Note note ) {
+	    return (note.getNoteID8() - note.getRootKey8() + 7) % 7 + 1;
+	}
+	
+	/**
+	 * Works out the root of a chord voiced elsewhere, which has no vocabulary type, from its
+	 * three lower voices.
+	 * 
+	 * @return the root's scale degree, 1-7, or 0 if the notes aren't a triad
+	 */
+	private int findRoot( Chord chord ) {
+	    int root = 0;
+	    int bass = chord.getBassNote().getNoteID8();
+	    int tenor = chord.getTenorNote().getNoteID8();
+	    int alto = chord.getAltoNote().getNoteID8();
 	    
-	    //find the root of the previous chord
 	    if( ((tenor + 2 == bass) && (tenor + 4 == alto)) ||
 	            ((tenor + 2 == alto) && (tenor + 4 == bass)) )
-	        prevNote = previousChord.getTenorNote().getScaleID8();
+	        root = chord.getTenorNote().getScaleID8();
 	    else if( ((bass + 2 == tenor) && (bass + 4 == alto)) ||
 	            ((bass + 2 == alto) && (bass + 4 == tenor)) )
-	        prevNote = previousChord.getBassNote().getScaleID8();
+	        root = chord.getBassNote().getScaleID8();
 	    else if( ((alto + 2 == tenor) && (alto + 4 == bass)) ||
 	            ((alto + 2 == bass) && (alto + 4 == tenor)) )
-	        prevNote = previousChord.getAltoNote().getScaleID8();
+	        root = chord.getAltoNote().getScaleID8();
 	    else if( ((tenor + 2 == alto) && (tenor - 3 == bass)) ||
 	            ((tenor + 2 == bass) && (tenor - 3 == alto)) )
-	        prevNote = previousChord.getTenorNote().getScaleID8();
+	        root = chord.getTenorNote().getScaleID8();
 	    else if( ((alto + 2 == bass) && (alto - 3 == tenor)) ||
 	            ((alto + 2 == tenor) && (alto - 3 == bass)) )
-	        prevNote = previousChord.getAltoNote().getScaleID8();
+	        root = chord.getAltoNote().getScaleID8();
 	    else if( ((bass + 2 == tenor) && (bass - 3 == alto)) ||
 	            ((bass + 2 == alto) && (bass - 3 == tenor)) )
-	        prevNote = previousChord.getBassNote().getScaleID8();
+	        root = chord.getBassNote().getScaleID8();
 	    else if( ((tenor - 5 == alto) && (tenor - 3 == bass)) ||
 	            ((tenor - 5 == bass) && (tenor - 3 == alto)) )
-	        prevNote = previousChord.getTenorNote().getScaleID8();
+	        root = chord.getTenorNote().getScaleID8();
 	    else if( ((alto - 5 == bass) && (alto - 3 == tenor)) ||
 	            ((alto - 5 == tenor) && (alto - 3 == bass)) )
-	        prevNote = previousChord.getAltoNote().getScaleID8();
+	        root = chord.getAltoNote().getScaleID8();
 	    else if( ((bass - 5 == tenor) && (bass - 3 == alto)) ||
 	            ((bass - 5 == alto) && (bass - 3 == tenor)) )
-	        prevNote = previousChord.getBassNote().getScaleID8();
+	        root = chord.getBassNote().getScaleID8();
+	    return root;
+	}
+	
+	/**
+	 * Determines the best chord given the previous chord and previous soprano note
+	 * 
+	 * @param melodyNote
+	 * @param previousChord
+	 * @return
+	 */
+	public Chord findBestChord( Note melodyNote, Chord previousChord ) {
+	    Chord retChord = null;
+	    boolean errors = false;
+	    loops = 0;
 	    
-	    //TODO: there are only three possible chords we can pick that contain the melody note.  
-	    //This should influence our chord picking technique here.
+	    //chords this engine voiced know their root; others are worked out from their notes
+	    int prevNote = previousChord.getType() != null ? previousChord.getType().getRoot() 
+	            : findRoot( previousChord );
 	    
 	    do {
-		    while( !validChord ) {	       
-		        randomNum = Math.random();
-		        randomNum2 = Math.random();
-		        
-		        //Pick a chord (chordType of 4 = fourth chord)
-			    if( randomNum < 0.60 ) {
-			        if( randomNum2 < 0.25 ) chordType = 4;
-			        else if( randomNum2 < 0.5 ) chordType = -5;
-			        else if( randomNum2 < 0.75 ) chordType = 5;
-			        else chordType = -4;
-			    } else if( randomNum < 0.80 ) {
-			        if( randomNum2 < 0.25 ) chordType = 2;
-				    else if( randomNum2 < 0.5 ) chordType = -7;
-				    else if( randomNum2 < 0.75 ) chordType = 7;
-				    else chordType = -2;
-			    } else if( randomNum < 0.95 ) {
-			        chordType = 1;	        
-			    } else {
-			        if( randomNum2 < 0.25 ) chordType = 3;
-			        else if( randomNum2 < 0.5 ) chordType = -6;
-			        else if( randomNum2 < 0.75 ) chordType = 6;
-			        else chordType = -3;
-			    }
-			    //System.out.println("chordType " + chordType);
-			    if( chordType < 0 ) chordRootForKey = prevNote + chordType + 1;
-			    else chordRootForKey = prevNote + chordType - 1;
-			    //System.out.println("prevNote in key" + prevNote);
-			    if( chordRootForKey - 1 >= 8 ) chordRootForKey = chordRootForKey % 7;
-			    else if( chordRootForKey + 1 <= 0 ) chordRootForKey = chordRootForKey + 7;
-			    
-			    chordRoot = chordRootForKey + previousChord.getSopranoNote().getRootKey8() - 1;
-			    //System.out.println("RootKey: " + previousChord.getSopranoNote().getRootKey8());
-			    
-			    if( chordRoot > 7 ) chordRoot = chordRoot % 7;		    
-			    if( errors ) 
-			        chordNotes = findDoubledNotes( chordRoot );
-			    else 
-			        chordNotes = findNotesOfChord( chordRoot );
-			    //System.out.println("chordRoot: " + chordRoot);
-			    for(int i = 0; i < 3; i++) {
-			        if( chordNotes[i].intValue() == melodyNote.getNoteID8() )
-			            validChord = true;
-			    }	
-		    }
-		    /*
-		    for(int i = 0; i < 3; i++) {
-		        System.out.println(chordNotes[i]);
-		    }	
-		    */
-		    retChord = chordGen.generateRootChord( chordNotes, melodyNote, 
-		            previousChord );
-		    if( retChord.getLoopExceeded() == true ) {
-		        retChord = chordGen.generateInvertedChord( chordNotes, melodyNote,
-		                previousChord);		        
-		    }
+	        checkCancelled();
+	        //only a few chords contain the melody note, so pick one of them straight away,
+	        //weighted by how likely the progression model makes it after the previous chord
+	        ChordVocabulary.Type type = pickChordContaining( melodyNote, prevNote );
+		    retChord = chordGen.generateChord( type, melodyNote, previousChord );
+		    if( retChord != null && isInverted(retChord) )
+		        listener.invertedChordTried( position );
 		    
 		    if( retChord == null ) 
 		        errors = true;
@@ -378,26 +426,64 @@ public class KnowledgeDB
 		        errors = false;
 		    //System.out.println(errors);
 		    loops++;
+		    if( errors && loops < 100 )
+		        listener.chordRetried( position, loops );
 	    } while( errors && loops < 100 ); 
 	    
 	    if(errors) 
-	    {
-	        System.out.println("findBestChord: error found");
-	        System.out.println("type of chord was: " + chordType);
-	    }
+	        listener.chordFailed( position );
 	    
 	    return retChord;
 	}
 	
+	/**
+	 * Choose among the chords of the vocabulary containing a melody note, each in proportion
+	 * to the chance of its root following the previous chord's root in the transition model
+	 * and to its weight against other chords on the same root.
+	 * 
+	 * @param melodyNote the note the chord must contain
+	 * @param prevNote   the scale degree of the previous chord's root, or 0 if unknown
+	 * @return the chosen chord
+	 */
+	private ChordVocabulary.Type pickChordContaining( Note melodyNote, int prevNote ) {
+	    ChordVocabulary.Type[] types = vocabulary.containing( degreeOf(melodyNote) );
+	    double[] weights = new double[types.length];
+	    for( int i = 0; i < types.length; i++ )
+	        weights[i] = transitions.getProbability( mode, prevNote, types[i].getRoot() ) 
+	        		* types[i].getWeight();
+	    return types[pick(weights)];
+	}
+	
+	/**
+	 * @return true if the chord has a tone other than its root in the bass
+	 */
+	private boolean isInverted( Chord chord ) {
+	    return degreeOf(chord.getBassNote()) != chord.getType().getRoot();
+	}
+	
 	/**
 	 * Finds the first chord of the harmony, simply a I chord.
 	 * 
 	 * @return first chord of the harmony
 	 */
 	public Chord findFirstChord() {
+	    return findFirstChord( null );
+	}
+	
+	/**
+	 * Finds the first chord of a harmony that follows on from another chord, a I chord if
+	 * one can follow it without parallels or overlapping parts, else any chord that can.
+	 * 
+	 * @param leadIn the chord before the harmony, or null if it starts the piece
+	 * @return first chord of the harmony, or null if none follows the lead-in
+	 */
+	public Chord findFirstChord( Chord leadIn ) {
 	    Chord retChord = null;
 	    Note firstNote = notes[0];
-	    retChord = findChord( firstNote, 1, null );
+	    position = 1;
+	    retChord = findChord( firstNote, tonic, false, leadIn );
+	    if( retChord == null && leadIn != null )
+	        retChord = findChord( firstNote, random, false, leadIn );
 	    return retChord;
 	}
 	
@@ -405,9 +491,11 @@ public class KnowledgeDB
 	 * Find the second through third to last chords.  
 	 * 
 	 * @param firstChord
-	 * @return
+	 * @param cadenceChord the first chord of the cadence, which the last body chord must lead
+	 * 					   into without parallels or overlapping parts
+	 * @return the chords, or null if the search backed up so often that it gave up
 	 */
-	public Chord[] findBodyChords( Chord firstChord ) {
+	public Chord[] findBodyChords( Chord firstChord, Chord cadenceChord ) {
 	    Chord[] bodyChords = new Chord[notes.length - 2];
 	    Note currentNote;
 	    Integer[] chordNotes = new Integer[3];
@@ -415,78 +503,84 @@ public class KnowledgeDB
 	    int limitCounter = 0;
 	    
 	    for( int i = 0; i < notes.length - 3; i++ ) {
+	        checkCancelled();
 	        currentNote = notes[i+1];
+	        position = i + 2;
 	        bodyChords[i] = findBestChord( currentNote, previousChord );  
+	        if( bodyChords[i] != null && i == notes.length - 4 
+	                && !chordGen.connects( bodyChords[i], cadenceChord ) )
+	            bodyChords[i] = null;
 	        
 	        //If the last chord failed to generate successfully, replace the previous chord and try again
 	        if(bodyChords[i] == null)
 	        {
 	            limitCounter++;
+	            if(limitCounter > FAILURES_PER_NOTE * notes.length)
+	                return null;
 	            i = i - 2;
 	            if(limitCounter > 50) i--;  //if replacing the previous chord causes 50 failures, go back 
 	            							  //one more and replace that chord
+	            if(i < -1) i = -1;			  //but never back past the first chord, which stays
+	            previousChord = i >= 0 ? bodyChords[i] : firstChord;
+	        }
+	        else
+	        {
+	            previousChord = bodyChords[i];
+	            listener.chordCompleted( i + 2, notes.length );
 	        }
-	        previousChord = bodyChords[i];
-	        System.out.println("chord number = " + (i+2));
 	    }
 	    
 	    return bodyChords;
 	}
 	/**
-	 * Utility function for findCadenceChord.  Determines the actual notes of the 
-	 * chord in relation to the chord root.
+	 * Re-harmonize part of the body of a harmony whose melody has been edited, keeping the
+	 * rest.  The chords from position from to position to are found again, each following
+	 * the one before as in findBodyChords().  If the new chords can't be found after the old
+	 * chord before them, or the last can't lead into the old chord after it without
+	 * parallels or crossed parts, the window grows by a chord at each end and is tried again.
+	 * It stops growing at the first chord and at the cadence, which are kept as they are; a
+	 * window reaching the last body chord has to lead into the cadence like any other.
 	 * 
-	 * @param chordRoot the root note of the chord
-	 * @return an array containing the 3 notes of the chord
+	 * @param chords the harmony, indexed from 0; the chords in the window are replaced in place
+	 * @param from   the first body chord to find again, at least 1
+	 * @param to     the last body chord that has to be found again
+	 * @return false if no window of up to WINDOW_LIMIT chords fits, and the chords are unchanged
 	 */
-	public Integer[] findNotesOfChord( int chordRoot ) {
-	    Integer[] chordNotes = new Integer[3];
-	    chordNotes[0] = new Integer(chordRoot);
-	    if( chordRoot + 2 > 7 ) 
-	        chordNotes[1] = new Integer((chordRoot + 2) % 7);
-	    else 
-	        chordNotes[1] = new Integer(chordRoot + 2);
-	    if( chordRoot + 4 > 7 ) 
-	        chordNotes[2] = new Integer((chordRoot + 4) % 7);
-	    else 
-	        chordNotes[2] = new Integer(chordRoot + 4);
-	    
-	    return chordNotes;
-	}
-	
-	public Integer[] findDoubledNotes( int chordRoot ) {
-	    Integer[] chordNotes = new Integer[3];
-	    double random = Math.random();
-	    chordNotes[0] = new Integer(chordRoot);
-	    if( random < 0.5 ) {
-		    if( chordRoot + 2 > 7 ) 
-		        chordNotes[1] = new Integer((chordRoot + 2) % 7);
-		    else 
-		        chordNotes[1] = new Integer(chordRoot + 2);
-		    chordNotes[2] = new Integer(chordRoot);
-	    } else {
-	        if( chordRoot + 2 > 7 ) 
-		        chordNotes[1] = new Integer((chordRoot + 2) % 7);
-		    else 
-		        chordNotes[1] = new Integer(chordRoot + 2);
-		    chordNotes[2] = chordNotes[1];
+	public boolean findWindowChords( Chord[] chords, int from, int to ) {
+	    int lastBody = notes.length - 3;
+	    while( to - from < WINDOW_LIMIT ) {
+	        for( int tries = 0; tries < TRIES_PER_WINDOW; tries++ ) {
+	            checkCancelled();
+	            Chord previousChord = chords[from - 1];
+	            Chord[] window = new Chord[to - from + 1];
+	            for( int i = 0; i < window.length && previousChord != null; i++ ) {
+	                position = from + i + 1;
+	                window[i] = findBestChord( notes[from + i], previousChord );
+	                previousChord = window[i];
+	            }
+	            if( previousChord == null )
+	                continue;
+	            if( !connects(previousChord, chords[to + 1]) )
+	                continue;
+	            
+	            for( int i = 0; i < window.length; i++ ) {
+	                chords[from + i] = window[i];
+	                listener.chordCompleted( from + i + 1, notes.length );
+	            }
+	            return true;
+	        }
+	        if( from == 1 && to == lastBody )
+	            break;
+	        from = Math.max(1, from - 1);
+	        to = Math.min(lastBody, to + 1);
 	    }
-	    
-	    return chordNotes;
+	    return false;
 	}
 	
-	public static Integer[] findChordContainingNote( int note ) {
-	    Integer[] chordNotes = new Integer[3];
-	    chordNotes[0] = new Integer(note);
-	    if( note - 2 <= 0 ) 
-	        chordNotes[1] = new Integer(note - 2 + 7);
-	    else 
-	        chordNotes[1] = new Integer(note - 2);
-	    if( note - 4 <= 0 ) 
-	        chordNotes[2] = new Integer(note - 4 + 7);
-	    else 
-	        chordNotes[2] = new Integer(note - 4);
-	    
-	    return chordNotes;
+	/**
+	 * Can next follow previous, by the checks ChordGen makes between neighbouring chords?
+	 */
+	public boolean connects( Chord previous, Chord next ) {
+	    return chordGen.connects( previous, next );
 	}
 }
@@ -0,0 +1,55 @@
+/**
+ * A melody read from a file, kept as parallel primitive arrays so that large inputs don't
+ * turn into one object per note.  Pitches are MIDI note numbers (60 being middle C, which
+ * HarmoGen calls C5); onsets and durations are in ticks of the source file's resolution.
+ */
+public class Melody
+{
+    private int[] pitches;
+    private long[] onsets;
+    private long[] durations;
+    private int resolution;		//ticks per quarter note
+    private Key key;				//the key found in the file, or null if there was none
+
+    public Melody(int[] pitches, long[] onsets, long[] durations, int resolution, Key key)
+    {
+        this.pitches = pitches;
+        this.onsets = onsets;
+        this.durations = durations;
+        this.resolution = resolution;
+        this.key = key;
+    }
+
+    public int size()
+    {
+        return pitches.length;
+    }
+
+    public int[] getPitches()
+    {
+        return pitches;
+    }
+
+    public long[] getOnsets()
+    {
+        return onsets;
+    }
+
+    public long[] getDurations()
+    {
+        return durations;
+    }
+
+    public int getResolution()
+    {
+        return resolution;
+    }
+
+    /**
+     * @return the key given by the file's key signature, or null if the file had none
+     */
+    public Key getKey()
+    {
+        return key;
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.Random;
+
+/**
+ * Makes random melodies in a key for testing the engine: every note is in the key's scale
+ * and the soprano's range, the melody moves by leaps of a few scale steps at most, and it
+ * ends on notes the cadence rules in KnowledgeDB.checkInput accept.  So every melody reaches
+ * the chord search, and whether it gets harmonized is up to the search alone.
+ *
+ * <p>A sampler holds nothing but its key's scale, so one can be shared by threads as long as
+ * each brings its own Random.
+ */
+public class MelodySampler
+{
+    public static final int DEFAULT_MAX_LEAP = 4;
+
+    private static final String LETTERS = "CDEFGAB";
+
+    private final Key key;
+    private final int[] pitches;		//the scale's MIDI notes in the soprano's range, lowest first
+    private final int[] degrees;		//the scale degree of each, 1 to 7
+    private final String[] names;		//each as the key spells it, e.g. B#4 in C# major
+    private int maxLeap = DEFAULT_MAX_LEAP;
+
+    public MelodySampler(Key key)
+    {
+        this(key, VoiceRanges.DEFAULT);
+    }
+
+    /**
+     * @param ranges  the soprano's range is the melody's
+     */
+    public MelodySampler(Key key, VoiceRanges ranges)
+    {
+        this.key = key;
+        int[] degreeOf = new int[12];
+        for(int degree = 1; degree <= 7; degree++)
+            degreeOf[key.getPitchClass(degree)] = degree;
+
+        int count = 0;
+        int low = ranges.getLow(Chord.SOPRANO);
+        int[] inRange = new int[ranges.getHigh(Chord.SOPRANO) - low + 1];
+        for(int pitch = low; pitch <= ranges.getHigh(Chord.SOPRANO); pitch++)
+        {
+            if(degreeOf[pitch % 12] != 0)
+                inRange[count++] = pitch;
+        }
+        pitches = new int[count];
+        degrees = new int[count];
+        names = new String[count];
+        for(int i = 0; i < count; i++)
+        {
+            pitches[i] = inRange[i];
+            degrees[i] = degreeOf[inRange[i] % 12];
+            names[i] = spell(key, pitches[i], degrees[i]);
+        }
+    }
+
+    /**
+     * Spell a note of the scale by its degree's letter and the key signature, so that B# and
+     * Cb keep their letters (and their octaves, which go by the letter) rather than coming
+     * out as C and B the way a spelling by pitch alone has it.
+     */
+    private static String spell(Key key, int pitch, int degree)
+    {
+        char letter = LETTERS.charAt((LETTERS.indexOf(key.getRootName().charAt(0)) + degree - 1) % 7);
+        int accidental = key.getSignatureAccidental(letter);
+        String tag = accidental == Note.SHARP ? "#" : accidental == Note.FLAT ? "b" : "";
+        return letter + tag + (pitch - accidental) / 12;
+    }
+
+    public Key getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @param steps  the widest leap between neighbouring notes, in scale steps
+     */
+    public void setMaxLeap(int steps)
+    {
+        maxLeap = Math.max(1, steps);
+    }
+
+    /**
+     * @return a melody of the given length as MIDI note numbers
+     */
+    public int[] sample(int length, Random random)
+    {
+        int[] melody = new int[length];
+        int[] at = new int[length];			//indexes into pitches
+        for(int i = 0; i < length; i++)
+        {
+            at[i] = i == 0 ? random.nextInt(pitches.length) : step(at[i - 1], random);
+            //the last note has to leave the cadence something to work with
+            while(i == length - 1 && i > 0 && !canEnd(degrees[at[i - 1]], degrees[at[i]]))
+                at[i] = step(at[i - 1], random);
+            melody[i] = pitches[at[i]];
+        }
+        return melody;
+    }
+
+    /**
+     * @return a melody of the given length as a note string
+     */
+    public String sampleNotes(int length, Random random)
+    {
+        return toNoteString(sample(length, random));
+    }
+
+    /**
+     * @param melody  a melody sample() made
+     * @return it as a note string, each note spelled as the key's scale has it
+     */
+    public String toNoteString(int[] melody)
+    {
+        StringBuilder notes = new StringBuilder(melody.length * 4);
+        for(int i = 0; i < melody.length; i++)
+            notes.append(names[indexOf(melody[i])]).append(' ');
+        return notes.toString();
+    }
+
+    /**
+     * @param pitch  a MIDI note number
+     * @return its degree in the key's scale, 1 to 7, or 0 if it isn't in the scale or range
+     */
+    public int getDegree(int pitch)
+    {
+        int i = indexOf(pitch);
+        return i < 0 ? 0 : degrees[i];
+    }
+
+    private int indexOf(int pitch)
+    {
+        for(int i = 0; i < pitches.length; i++)
+        {
+            if(pitches[i] == pitch)
+                return i;
+        }
+        return -1;
+    }
+
+    private int step(int from, Random random)
+    {
+        int low = Math.max(0, from - maxLeap);
+        int high = Math.min(pitches.length - 1, from + maxLeap);
+        return low + random.nextInt(high - low + 1);
+    }
+
+    /**
+     * The rules of KnowledgeDB.checkInput: no ending on the fourth degree, or on the first,
+     * third or fifth straight after the third.
+     */
+    private static boolean canEnd(int previous, int last)
+    {
+        if(last == 4)
+            return false;
+        return previous != 3 || (last != 1 && last != 3 && last != 5);
+    }
+
+    /**
+     * @return the 15 major and 15 minor keys, from seven flats to seven sharps
+     */
+    public static Key[] allKeys()
+    {
+        Key[] keys = new Key[30];
+        for(int fifths = -7; fifths <= 7; fifths++)
+        {
+            keys[fifths + 7] = Key.fromFifths(fifths, false);
+            keys[fifths + 22] = Key.fromFifths(fifths, true);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a harmony as sheet music, either as MusicXML or as a four-voice ABC tune.  Chords
+ * are read from an iterator and written a measure (MusicXML) or a line (ABC) at a time, so
+ * memory use doesn't grow with the length of the harmony.  Every chord is a quarter note in
+ * 4/4 time.
+ *
+ * <p>MusicXML is written in the timewise layout, which lists all four parts measure by
+ * measure, through StAX without building a document in memory.
+ */
+public class NotationWriter
+{
+    public static final int CHORDS_PER_MEASURE = 4;
+    public static final int MEASURES_PER_LINE = 4;
+
+    private static final String[] VOICE_NAMES = { "Soprano", "Alto", "Tenor", "Bass" };
+    private static final String[] ABC_VOICE_IDS = { "S", "A", "T", "B" };
+    private static final String NEW_LINE = "\n";
+
+    /**
+     * Write a harmony as a MusicXML score.
+     *
+     * @param chords  the harmony, in order
+     * @param title   the title of the score
+     * @param out     where to write the score; it is not closed
+     */
+    public static void writeMusicXml(Iterator<Chord> chords, String title, OutputStream out)
+            throws IOException
+    {
+        try {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writeMusicXml(chords, title, xml);
+            xml.flush();
+        }
+        catch(XMLStreamException e) {
+            throw new IOException("Error writing MusicXML: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeMusicXml(Iterator<Chord> chords, String title, XMLStreamWriter xml)
+            throws XMLStreamException
+    {
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeDTD("<!DOCTYPE score-timewise PUBLIC \"-//Recordare//DTD MusicXML 3.1 Timewise//EN\" "
+                + "\"http://www.musicxml.org/dtds/timewise.dtd\">");
+        xml.writeStartElement("score-timewise");
+        xml.writeAttribute("version", "3.1");
+
+        xml.writeStartElement("work");
+        element(xml, "work-title", title);
+        xml.writeEndElement();
+
+        xml.writeStartElement("part-list");
+        for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+        {
+            xml.writeStartElement("score-part");
+            xml.writeAttribute("id", partId(voice));
+            element(xml, "part-name", VOICE_NAMES[voice]);
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+
+        Chord[] measure = new Chord[CHORDS_PER_MEASURE];
+        int measureNumber = 1;
+        int count;
+        while((count = fill(chords, measure)) > 0)
+        {
+            xml.writeStartElement("measure");
+            xml.writeAttribute("number", String.valueOf(measureNumber));
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+            {
+                xml.writeStartElement("part");
+                xml.writeAttribute("id", partId(voice));
+                if(measureNumber == 1)
+                    writeAttributes(xml, voice, measure[0].getSopranoNote().getKey());
+                for(int i = 0; i < count; i++)
+                    writeNote(xml, measure[i].getNote(voice));
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+            measureNumber++;
+        }
+
+        xml.writeEndElement();
+        xml.writeEndDocument();
+    }
+
+    private static void writeAttributes(XMLStreamWriter xml, int voice, Key key)
+            throws XMLStreamException
+    {
+        xml.writeStartElement("attributes");
+        element(xml, "divisions", "1");
+        if(key != null)
+        {
+            xml.writeStartElement("key");
+            element(xml, "fifths", String.valueOf(key.getFifths()));
+            element(xml, "mode", Key.MINOR.equals(key.getKeyType()) ? "minor" : "major");
+            xml.writeEndElement();
+        }
+        xml.writeStartElement("time");
+        element(xml, "beats", String.valueOf(CHORDS_PER_MEASURE));
+        element(xml, "beat-type", "4");
+        xml.writeEndElement();
+        xml.writeStartElement("clef");
+        if(voice == Chord.BASS)
+        {
+            element(xml, "sign", "F");
+            element(xml, "line", "4");
+        }
+        else
+        {
+            element(xml, "sign", "G");
+            element(xml, "line", "2");
+            if(voice == Chord.TENOR)
+                element(xml, "clef-octave-change", "-1");
+        }
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    private static void writeNote(XMLStreamWriter xml, Note note) throws XMLStreamException
+    {
+        String symbol = note.getNoteSymbol();
+        int alter = 0;
+        if(symbol.length() > 1 && symbol.charAt(1) == '#')
+            alter = 1;
+        else if(symbol.length() > 1 && symbol.charAt(1) == 'b')
+            alter = -1;
+        //MusicXML puts middle C in octave 4, where HarmoGen puts it in octave 5
+        int octave = (note.getNoteNumber() - alter) / 12 - 1;
+
+        xml.writeStartElement("note");
+        xml.writeStartElement("pitch");
+        element(xml, "step", symbol.substring(0, 1));
+        if(alter != 0)
+            element(xml, "alter", String.valueOf(alter));
+        element(xml, "octave", String.valueOf(octave));
+        xml.writeEndElement();
+        element(xml, "duration", "1");
+        element(xml, "type", "quarter");
+        xml.writeEndElement();
+    }
+
+    private static void element(XMLStreamWriter xml, String name, String text)
+            throws XMLStreamException
+    {
+        xml.writeStartElement(name);
+        xml.writeCharacters(text);
+        xml.writeEndElement();
+    }
+
+    private static String partId(int voice)
+    {
+        return "P" + (voice + 1);
+    }
+
+    /**
+     * Write a harmony as an ABC tune with one voice per part.
+     *
+     * @param chords  the harmony, in order
+     * @param title   the title of the tune
+     * @param out     where to write the tune; it is not closed
+     */
+    public static void writeAbc(Iterator<Chord> chords, String title, Writer out) throws IOException
+    {
+        Chord[] line = new Chord[CHORDS_PER_MEASURE * MEASURES_PER_LINE];
+        int count = fill(chords, line);
+        Key key = count > 0 ? line[0].getSopranoNote().getKey() : null;
+
+        out.write("X:1" + NEW_LINE);
+        out.write("T:" + title + NEW_LINE);
+        out.write("M:" + CHORDS_PER_MEASURE + "/4" + NEW_LINE);
+        out.write("L:1/4" + NEW_LINE);
+        out.write("%%score (S A) (T B)" + NEW_LINE);
+        for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+        {
+            out.write("V:" + ABC_VOICE_IDS[voice] + " name=\"" + VOICE_NAMES[voice] + "\"");
+            //bass notes are written two octaves up (see Utilities.convertHGtoABC), which
+            //middle=d places on the staff and octave=-2 corrects for playback
+            out.write(voice == Chord.BASS ? " clef=bass middle=d octave=-2" : " clef=treble");
+            out.write(NEW_LINE);
+        }
+        if(key != null)
+            out.write("K:" + key.getRootName() + (Key.MINOR.equals(key.getKeyType()) ? "m" : ""));
+        else
+            out.write("K:C");
+        out.write(NEW_LINE);
+
+        StringBuilder voiceLine = new StringBuilder();
+        //by voice, then letter A to G, the accidental in force in the current bar
+        int[][] inForce = new int[ABC_VOICE_IDS.length][7];
+        while(count > 0)
+        {
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+            {
+                voiceLine.setLength(0);
+                voiceLine.append("[V:").append(ABC_VOICE_IDS[voice]).append("] ");
+                for(int i = 0; i < count; i++)
+                {
+                    //a line holds whole bars, so it starts a bar too
+                    if(i % CHORDS_PER_MEASURE == 0)
+                        startBar(inForce[voice], key);
+                    voiceLine.append(abcNote(line[i].getNote(voice), voice != Chord.BASS,
+                            inForce[voice]));
+                    voiceLine.append(i % CHORDS_PER_MEASURE == CHORDS_PER_MEASURE - 1 ? " | " : " ");
+                }
+                out.write(voiceLine.toString().trim());
+                out.write(NEW_LINE);
+            }
+            count = fill(chords, line);
+        }
+    }
+
+    /**
+     * Reset the accidentals in force at a bar line to those of the key signature.
+     *
+     * @param inForce  by letter, A to G, Note.SHARP, Note.FLAT or 0 for a natural
+     */
+    private static void startBar(int[] inForce, Key key)
+    {
+        for(int letter = 0; letter < inForce.length; letter++)
+            inForce[letter] = key == null ? 0 : key.getSignatureAccidental((char)('A' + letter));
+    }
+
+    /**
+     * Convert a note to ABC.  An accidental in ABC holds to the end of the bar, as AbcReader
+     * reads it, so the note's accidental is written only where it differs from the one in
+     * force, the key signature's or one written earlier in the bar: a natural after a sharp
+     * of the same letter gets its "=".
+     *
+     * @param inForce  by letter, A to G, the accidentals in force; updated with the note's
+     */
+    private static String abcNote(Note note, boolean isTrebleClef, int[] inForce)
+    {
+        String abc = Utilities.convertHGtoABC(note.getNoteAndOctave(), isTrebleClef);
+        int accidental = 0;
+        if(abc.charAt(0) == '^')
+            accidental = Note.SHARP;
+        else if(abc.charAt(0) == '_')
+            accidental = Note.FLAT;
+        String bare = accidental == 0 ? abc : abc.substring(1);
+
+        int letter = Character.toUpperCase(bare.charAt(0)) - 'A';
+        if(accidental == inForce[letter])
+            return bare;
+        inForce[letter] = accidental;
+        return accidental == 0 ? "=" + bare : abc;
+    }
+
+    /**
+     * Take up to buffer.length chords from the iterator.
+     *
+     * @return how many chords were taken
+     */
+    private static int fill(Iterator<Chord> chords, Chord[] buffer)
+    {
+        int count = 0;
+        while(count < buffer.length && chords.hasNext())
+            buffer[count++] = chords.next();
+        return count;
+    }
+
+    /**
+     * Convenience for writing a harmony held in an array.
+     */
+    public static Iterator<Chord> iterate(Chord[] chords)
+    {
+        return Arrays.asList(chords).iterator();
+    }
+}
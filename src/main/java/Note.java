@@ -83,8 +83,15 @@ public class Note
 		noteNumberMidi = Utilities.findNoteNumber( noteSymbol, octave, noteTag );
 		noteID12 = noteNumberMidi % 12 + 1;
 		noteID8 = Utilities.convert12to8(noteID12, sharpOrFlatKey );	
+		//a note spelled as the key signature has it keeps its letter, which B#, E#, Cb and
+		//Fb would otherwise lose to the letter of their sounding pitch
+		if( noteTag == '#' || noteTag == 'b' ) {
+		    int accidental = noteTag == '#' ? SHARP : FLAT;
+		    if( key.getSignatureAccidental(noteSymbol.charAt(0)) == accidental )
+		        noteID8 = letterID8( noteSymbol.charAt(0) );
+		}
 		rootKey12 = key.getRootOfKey12();
-		rootKey8 = Utilities.convert12to8(rootKey12, sharpOrFlatKey);
+		rootKey8 = letterID8( key.getRootName().charAt(0) );
 		scaleID12 = Utilities.findScaleID12(rootKey12, noteID12);		
 		scaleID8 = Utilities.convert12to8( scaleID12, sharpOrFlatKey );
 	}
@@ -98,6 +105,7 @@ public class Note
 	 */
 	public Note( int myNoteID8, Key currentKey ) 
 	{
+	    key = currentKey;
 	    scaleType = currentKey.getKeyType();
 	    
 	    noteNumberHarmoGen = myNoteID8;
@@ -106,7 +114,7 @@ public class Note
 
 	    sharpOrFlatKey = currentKey.getSharpOrFlatKey();
 	    rootKey12 = currentKey.getRootOfKey12();
-	    rootKey8 = Utilities.convert12to8(rootKey12, sharpOrFlatKey);
+	    rootKey8 = letterID8( currentKey.getRootName().charAt(0) );
 	    
 	    scaleID8 = noteID8 - rootKey8 + 1;
 	    scaleID12 = Utilities.findScaleID12(rootKey12, noteID12);
@@ -116,12 +124,26 @@ public class Note
 
 	    noteID12 =  currentKey.getNote12(scaleID8);
 	    octave = Utilities.findOctave(noteNumberHarmoGen);
+	    //B# sounds in the octave above its letter and Cb in the one below
+	    if( noteID8 == 7 && noteID12 == 1 )
+	        octave++;
+	    else if( noteID8 == 1 && noteID12 == 12 )
+	        octave--;
 	    noteNumberMidi = Utilities.findNoteNumber( octave, noteID12 );
 	    noteSymbol = Utilities.createNoteSymbol(noteID12, sharpOrFlatKey);
 	    noteAndOctave = noteSymbol + octave;
 	}
 	
 	
+	/**
+	 * @param letter a note letter, A-G
+	 * @return its noteID8, 1 (C) to 7 (B); the root of Cb major is a C, where its 1-12
+	 * 		   number would make it a B
+	 */
+	private static int letterID8( char letter ) {
+	    return "CDEFGAB".indexOf( Character.toUpperCase(letter) ) + 1;
+	}
+	
 	/**
 	 * Accessor for octave.
 	 * 
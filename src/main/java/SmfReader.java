@@ -0,0 +1,441 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Reads the melody out of a Standard MIDI File without building a javax.sound.midi Sequence.
+ * Track chunks are scanned one at a time straight from a memory-mapped file (or from a
+ * channel through a single reusable buffer), and only the note events are kept, as packed
+ * primitives.
+ *
+ * <p>Every (track, channel) pair that plays notes is a candidate voice; the melody is the
+ * voice with the highest average pitch among those carrying a reasonable share of the notes.
+ * If that voice plays chords, only the top note of each is kept.  The first key signature
+ * meta event found in the file becomes the melody's key.
+ *
+ * <p>readNotes() keeps every voice instead, for code that needs the harmony as well as the
+ * melody.
+ *
+ * <p>A reader keeps its scratch buffers between files, so one instance can be reused to walk
+ * through a whole corpus.  Instances are not thread-safe.
+ */
+public class SmfReader
+{
+    private static final int MTHD = 0x4D546864;		//"MThd"
+    private static final int MTRK = 0x4D54726B;		//"MTrk"
+
+    private static final int META = 0xFF;
+    private static final int META_KEY_SIGNATURE = 0x59;
+    private static final int SYSEX = 0xF0;
+    private static final int SYSEX_ESCAPE = 0xF7;
+    private static final int NOTE_OFF = 0x80;
+    private static final int NOTE_ON = 0x90;
+    private static final int PROGRAM_CHANGE = 0xC0;
+    private static final int CHANNEL_PRESSURE = 0xD0;
+    private static final int DRUM_CHANNEL = 9;
+
+    //a voice needs at least this share of the busiest voice's notes to be considered the melody
+    private static final double MIN_MELODY_SHARE = 0.25;
+
+    private ByteBuffer scratch = ByteBuffer.allocate(8192);
+    private Map<Integer, Voice> voices = new HashMap<Integer, Voice>();
+    private Key key;
+    private int resolution;
+    private int headerExtra;		//header bytes beyond the six this reader understands
+
+    /**
+     * Read the melody of a MIDI file by memory-mapping it.
+     *
+     * @param file the MIDI file
+     * @return the melody, with the file's key if it has a key signature
+     */
+    public Melody readMelody(File file) throws IOException, InvalidMidiDataException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readMelody(mapped);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the melody of a MIDI file held in (or mapped into) a buffer.
+     *
+     * @param smf the whole file, positioned at its start
+     */
+    public Melody readMelody(ByteBuffer smf) throws InvalidMidiDataException
+    {
+        scan(smf);
+        return buildMelody();
+    }
+
+    /**
+     * Read every note of a MIDI file, from all voices but the drums, by memory-mapping it.
+     *
+     * @param file the MIDI file
+     * @return the notes in order of onset, with the file's key if it has a key signature
+     */
+    public Melody readNotes(File file) throws IOException, InvalidMidiDataException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return buildAllNotes();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private void scan(ByteBuffer smf) throws InvalidMidiDataException
+    {
+        reset();
+        try {
+            int tracks = readHeader(smf);
+            skip(smf, headerExtra);
+            for(int i = 0; i < tracks && smf.remaining() >= 8; i++)
+            {
+                int chunkType = smf.getInt();
+                int length = smf.getInt();
+                if(length < 0 || length > smf.remaining())
+                    throw new InvalidMidiDataException("Truncated track chunk");
+
+                ByteBuffer chunk = smf.slice();
+                chunk.limit(length);
+                smf.position(smf.position() + length);
+
+                if(chunkType == MTRK)
+                    scanTrack(chunk, i);
+                else
+                    i--;  //unknown chunks don't count as tracks
+            }
+        }
+        catch(java.nio.BufferUnderflowException e) {
+            throw new InvalidMidiDataException("Unexpected end of MIDI data");
+        }
+    }
+
+    /**
+     * Read the melody of a MIDI file from a channel, one track chunk at a time.
+     *
+     * @param in a channel positioned at the start of the file
+     */
+    public Melody readMelody(ReadableByteChannel in) throws IOException, InvalidMidiDataException
+    {
+        reset();
+        ByteBuffer header = fill(in, 14);
+        int tracks;
+        try {
+            tracks = readHeader(header);
+        }
+        catch(java.nio.BufferUnderflowException e) {
+            throw new InvalidMidiDataException("Unexpected end of MIDI data");
+        }
+        if(headerExtra > 0)
+            fill(in, headerExtra);
+
+        for(int i = 0; i < tracks; i++)
+        {
+            ByteBuffer chunkHeader = fill(in, 8);
+            int chunkType = chunkHeader.getInt();
+            int length = chunkHeader.getInt();
+            if(length < 0)
+                throw new InvalidMidiDataException("Invalid track chunk length");
+
+            ByteBuffer chunk = fill(in, length);
+            try {
+                if(chunkType == MTRK)
+                    scanTrack(chunk, i);
+                else
+                    i--;
+            }
+            catch(java.nio.BufferUnderflowException e) {
+                throw new InvalidMidiDataException("Unexpected end of MIDI data");
+            }
+        }
+        return buildMelody();
+    }
+
+    private void reset()
+    {
+        voices.clear();
+        key = null;
+        resolution = 0;
+    }
+
+    /**
+     * Read exactly length bytes from the channel into the scratch buffer, growing it if needed.
+     */
+    private ByteBuffer fill(ReadableByteChannel in, int length) throws IOException
+    {
+        if(scratch.capacity() < length)
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        scratch.clear();
+        scratch.limit(length);
+        while(scratch.hasRemaining())
+        {
+            if(in.read(scratch) < 0)
+                throw new EOFException("Unexpected end of MIDI file");
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * @return the number of tracks promised by the header
+     */
+    private int readHeader(ByteBuffer buffer) throws InvalidMidiDataException
+    {
+        if(buffer.getInt() != MTHD)
+            throw new InvalidMidiDataException("Not a Standard MIDI File");
+        int length = buffer.getInt();
+        if(length < 6)
+            throw new InvalidMidiDataException("Invalid MIDI header");
+        buffer.getShort();		//format, all formats are scanned the same way
+        int tracks = buffer.getShort() & 0xFFFF;
+        resolution = buffer.getShort();
+        headerExtra = length - 6;
+        return tracks;
+    }
+
+    /**
+     * Walk the events of one track chunk, keeping note events and the key signature.
+     */
+    private void scanTrack(ByteBuffer track, int trackNumber) throws InvalidMidiDataException
+    {
+        long tick = 0;
+        int status = 0;
+
+        while(track.hasRemaining())
+        {
+            tick += readVariableLength(track);
+            int b = track.get() & 0xFF;
+
+            if(b == META)
+            {
+                int type = track.get() & 0xFF;
+                int length = (int)readVariableLength(track);
+                if(type == META_KEY_SIGNATURE && length >= 2 && key == null
+                        && track.remaining() >= 2)
+                    key = Key.fromFifths(track.get(track.position()),
+                            track.get(track.position() + 1) == 1);
+                skip(track, length);
+                continue;
+            }
+            if(b == SYSEX || b == SYSEX_ESCAPE)
+            {
+                int length = (int)readVariableLength(track);
+                skip(track, length);
+                continue;
+            }
+
+            int data1;
+            if(b >= 0x80)
+            {
+                status = b;
+                data1 = track.get() & 0xFF;
+            }
+            else if(status != 0)
+            {
+                data1 = b;		//running status
+            }
+            else
+            {
+                throw new InvalidMidiDataException("Data byte without a status byte in track "
+                        + trackNumber);
+            }
+
+            int command = status & 0xF0;
+            int channel = status & 0x0F;
+            if(command == PROGRAM_CHANGE || command == CHANNEL_PRESSURE)
+                continue;
+            int data2 = track.get() & 0xFF;
+
+            if(channel == DRUM_CHANNEL)
+                continue;
+            if(command == NOTE_ON && data2 > 0)
+                voiceFor(trackNumber, channel).noteOn(data1, tick);
+            else if(command == NOTE_OFF || command == NOTE_ON)
+                voiceFor(trackNumber, channel).noteOff(data1, tick);
+        }
+    }
+
+    private static void skip(ByteBuffer buffer, int length) throws InvalidMidiDataException
+    {
+        if(length > buffer.remaining())
+            throw new InvalidMidiDataException("Unexpected end of MIDI data");
+        buffer.position(buffer.position() + length);
+    }
+
+    private static long readVariableLength(ByteBuffer buffer) throws InvalidMidiDataException
+    {
+        long value = 0;
+        for(int i = 0; i < 4; i++)
+        {
+            int b = buffer.get() & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new InvalidMidiDataException("Variable length quantity is too long");
+    }
+
+    private Voice voiceFor(int track, int channel)
+    {
+        Integer id = Integer.valueOf(track * 16 + channel);
+        Voice voice = voices.get(id);
+        if(voice == null)
+        {
+            voice = new Voice();
+            voices.put(id, voice);
+        }
+        return voice;
+    }
+
+    /**
+     * Pick the melody voice and reduce it to a single line.
+     */
+    private Melody buildMelody() throws InvalidMidiDataException
+    {
+        int mostNotes = 0;
+        for(Iterator<Voice> it = voices.values().iterator(); it.hasNext(); )
+            mostNotes = Math.max(mostNotes, it.next().count);
+        if(mostNotes == 0)
+            throw new InvalidMidiDataException("The MIDI file contains no notes");
+
+        Voice melody = null;
+        double highest = -1;
+        for(Iterator<Voice> it = voices.values().iterator(); it.hasNext(); )
+        {
+            Voice voice = it.next();
+            if(voice.count < mostNotes * MIN_MELODY_SHARE)
+                continue;
+            double average = (double)voice.pitchSum / voice.count;
+            if(average > highest)
+            {
+                highest = average;
+                melody = voice;
+            }
+        }
+
+        return melody.toMelody(resolution, key);
+    }
+
+    /**
+     * Merge the voices, each already in order of onset, into one list of notes.
+     */
+    private Melody buildAllNotes() throws InvalidMidiDataException
+    {
+        Voice[] all = voices.values().toArray(new Voice[voices.size()]);
+        int total = 0;
+        for(int v = 0; v < all.length; v++)
+            total += all[v].count;
+        if(total == 0)
+            throw new InvalidMidiDataException("The MIDI file contains no notes");
+
+        int[] pitches = new int[total];
+        long[] onsets = new long[total];
+        long[] durations = new long[total];
+        int[] next = new int[all.length];
+        for(int i = 0; i < total; i++)
+        {
+            int earliest = -1;
+            for(int v = 0; v < all.length; v++)
+            {
+                if(next[v] < all[v].count && (earliest < 0
+                        || all[v].onsets[next[v]] < all[earliest].onsets[next[earliest]]))
+                    earliest = v;
+            }
+            Voice voice = all[earliest];
+            pitches[i] = voice.pitches[next[earliest]];
+            onsets[i] = voice.onsets[next[earliest]];
+            durations[i] = voice.durations[next[earliest]];
+            next[earliest]++;
+        }
+        return new Melody(pitches, onsets, durations, resolution, key);
+    }
+
+    /**
+     * The notes of one (track, channel) pair, as parallel growable arrays.
+     */
+    private static class Voice
+    {
+        int count = 0;
+        long pitchSum = 0;
+        int[] pitches = new int[64];
+        long[] onsets = new long[64];
+        long[] durations = new long[64];
+        int[] sounding = new int[128];		//index + 1 of the note sounding at each pitch
+
+        void noteOn(int pitch, long tick)
+        {
+            if(count == pitches.length)
+            {
+                pitches = Arrays.copyOf(pitches, count * 2);
+                onsets = Arrays.copyOf(onsets, count * 2);
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            noteOff(pitch, tick);  //a repeated note-on ends the previous one
+            pitches[count] = pitch;
+            onsets[count] = tick;
+            durations[count] = 0;
+            count++;
+            sounding[pitch] = count;
+            pitchSum += pitch;
+        }
+
+        void noteOff(int pitch, long tick)
+        {
+            int index = sounding[pitch] - 1;
+            if(index >= 0)
+            {
+                durations[index] = tick - onsets[index];
+                sounding[pitch] = 0;
+            }
+        }
+
+        /**
+         * Keep the highest note of every group of notes starting together.
+         */
+        Melody toMelody(int resolution, Key key)
+        {
+            int kept = 0;
+            for(int i = 0; i < count; i++)
+            {
+                if(kept > 0 && onsets[kept - 1] == onsets[i])
+                {
+                    if(pitches[i] > pitches[kept - 1])
+                    {
+                        pitches[kept - 1] = pitches[i];
+                        durations[kept - 1] = durations[i];
+                    }
+                }
+                else
+                {
+                    pitches[kept] = pitches[i];
+                    onsets[kept] = onsets[i];
+                    durations[kept] = durations[i];
+                    kept++;
+                }
+            }
+            return new Melody(Arrays.copyOf(pitches, kept), Arrays.copyOf(onsets, kept),
+                    Arrays.copyOf(durations, kept), resolution, key);
+        }
+    }
+}
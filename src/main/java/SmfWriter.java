@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Writes a harmony as MIDI straight from its Chords, with no note strings in between.  Every
+ * chord lasts a quarter note at 120 beats per minute.
+ *
+ * <p>write() produces a format 1 Standard MIDI File: a conductor track with the tempo and
+ * key signature, then one track per voice, soprano first, each on its own channel.  Harmonies
+ * in more than four parts get a track per part, up to VoiceRanges.MAX_VOICES, so the drum
+ * channel is never used.  Tracks are assembled in a buffer that the writer keeps, so one
+ * instance can write any number of files without allocating per file.  Instances are not
+ * thread-safe.
+ */
+public class SmfWriter
+{
+    public static final int RESOLUTION = 480;		//ticks per quarter note
+    public static final int TICKS_PER_CHORD = RESOLUTION;
+    public static final int TEMPO = 500000;		//microseconds per quarter note, i.e. 120 bpm
+    public static final int VELOCITY = 80;
+
+    private static final String[] VOICE_NAMES = { "Soprano", "Alto", "Tenor", "Bass" };
+
+    private static final int NOTE_OFF = 0x80;
+    private static final int NOTE_ON = 0x90;
+    private static final int META = 0xFF;
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_KEY_SIGNATURE = 0x59;
+
+    private byte[] track = new byte[4096];
+    private int trackLength;
+
+    /**
+     * Write a harmony as a complete MIDI file.
+     *
+     * @param chords  the harmony
+     * @param out     where to write the file; it is not closed
+     * @return the number of bytes written
+     */
+    public int write(Chord[] chords, OutputStream out) throws IOException
+    {
+        int voices = voiceCount(chords);
+        int written = writeHeader(out, 1, voices + 1);
+
+        startConductorTrack(chords);
+        written += writeTrack(out);
+
+        for(int voice = 0; voice < voices; voice++)
+        {
+            startTrack(voiceName(voice, voices));
+            addVoice(chords, voice, voice);
+            written += writeTrack(out);
+        }
+        return written;
+    }
+
+    /**
+     * Write the MThd chunk.
+     *
+     * @return the number of bytes written
+     */
+    public static int writeHeader(OutputStream out, int format, int tracks) throws IOException
+    {
+        byte[] header = { 'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, (byte)format,
+                (byte)(tracks >> 8), (byte)tracks, (byte)(RESOLUTION >> 8), (byte)RESOLUTION };
+        out.write(header);
+        return header.length;
+    }
+
+    /**
+     * Begin a track holding the tempo and, if chords are given and have a key, their key
+     * signature.
+     */
+    void startConductorTrack(Chord[] chords)
+    {
+        trackLength = 0;
+        addTempo();
+        if(chords != null)
+            addKeySignature(chords);
+    }
+
+    /**
+     * Add the tempo to the current track, at its start.
+     */
+    void addTempo()
+    {
+        byte[] tempo = { (byte)(TEMPO >> 16), (byte)(TEMPO >> 8), (byte)TEMPO };
+        addMeta(0, META_TEMPO, tempo);
+    }
+
+    /**
+     * Begin a new track in the buffer.
+     *
+     * @param name the track name, or null for none; written as UTF-8
+     */
+    void startTrack(String name)
+    {
+        trackLength = 0;
+        if(name != null)
+            addMeta(0, META_TRACK_NAME, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Add one voice of a harmony to the current track.
+     */
+    void addVoice(Chord[] chords, int voice, int channel)
+    {
+        for(int i = 0; i < chords.length; i++)
+        {
+            int pitch = chords[i].getNote(voice).getNoteNumber();
+            addEvent(0, NOTE_ON | channel, pitch, VELOCITY);
+            addEvent(TICKS_PER_CHORD, NOTE_OFF | channel, pitch, 0);
+        }
+    }
+
+    /**
+     * Add all four voices of a harmony to the current track, on channels 0 to 3, so a whole
+     * harmony fits in one track.
+     */
+    void addChords(Chord[] chords)
+    {
+        for(int i = 0; i < chords.length; i++)
+        {
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+                addEvent(0, NOTE_ON | voice, chords[i].getNote(voice).getNoteNumber(), VELOCITY);
+            for(int voice = Chord.SOPRANO; voice <= Chord.BASS; voice++)
+                addEvent(voice == Chord.SOPRANO ? TICKS_PER_CHORD : 0, NOTE_OFF | voice,
+                        chords[i].getNote(voice).getNoteNumber(), 0);
+        }
+    }
+
+    /**
+     * Add the key signature of a harmony to the start of the current track.
+     */
+    void addKeySignature(Chord[] chords)
+    {
+        Key key = keyOf(chords);
+        if(key != null)
+            addMeta(0, META_KEY_SIGNATURE, new byte[] { (byte)key.getFifths(),
+                    (byte)(Key.MINOR.equals(key.getKeyType()) ? 1 : 0) });
+    }
+
+    /**
+     * End the current track and write it as an MTrk chunk.
+     *
+     * @return the number of bytes written
+     */
+    int writeTrack(OutputStream out) throws IOException
+    {
+        addMeta(0, META_END_OF_TRACK, new byte[0]);
+        byte[] header = { 'M', 'T', 'r', 'k', (byte)(trackLength >> 24), (byte)(trackLength >> 16),
+                (byte)(trackLength >> 8), (byte)trackLength };
+        out.write(header);
+        out.write(track, 0, trackLength);
+        return header.length + trackLength;
+    }
+
+    private void addEvent(int delta, int status, int data1, int data2)
+    {
+        ensureCapacity(7);
+        addVariableLength(delta);
+        track[trackLength++] = (byte)status;
+        track[trackLength++] = (byte)data1;
+        track[trackLength++] = (byte)data2;
+    }
+
+    private void addMeta(int delta, int type, byte[] data)
+    {
+        ensureCapacity(10 + data.length);
+        addVariableLength(delta);
+        track[trackLength++] = (byte)META;
+        track[trackLength++] = (byte)type;
+        addVariableLength(data.length);
+        System.arraycopy(data, 0, track, trackLength, data.length);
+        trackLength += data.length;
+    }
+
+    private void addVariableLength(int value)
+    {
+        int shift = 21;
+        while(shift > 0 && (value >>> shift) == 0)
+            shift -= 7;
+        for(; shift > 0; shift -= 7)
+            track[trackLength++] = (byte)(0x80 | ((value >>> shift) & 0x7F));
+        track[trackLength++] = (byte)(value & 0x7F);
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if(trackLength + extra > track.length)
+        {
+            byte[] larger = new byte[Math.max(track.length * 2, trackLength + extra)];
+            System.arraycopy(track, 0, larger, 0, trackLength);
+            track = larger;
+        }
+    }
+
+    private static int voiceCount(Chord[] chords)
+    {
+        return chords.length > 0 ? chords[0].getVoiceCount() : 4;
+    }
+
+    /**
+     * @return the track name of a voice: its SATB name in four parts, else "Part" and its number
+     */
+    private static String voiceName(int voice, int voices)
+    {
+        return voices == 4 ? VOICE_NAMES[voice] : "Part " + (voice + 1);
+    }
+
+    private static Key keyOf(Chord[] chords)
+    {
+        return chords.length > 0 ? chords[0].getSopranoNote().getKey() : null;
+    }
+
+    /**
+     * Build a javax.sound.midi Sequence of a harmony, laid out the same way as write(), for
+     * playing it or handing it to other MIDI code.
+     *
+     * @param chords the harmony
+     * @return a sequence with a conductor track and one track per voice
+     */
+    public static Sequence toSequence(Chord[] chords) throws InvalidMidiDataException
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+
+        Track conductor = sequence.createTrack();
+        byte[] tempo = { (byte)(TEMPO >> 16), (byte)(TEMPO >> 8), (byte)TEMPO };
+        conductor.add(new MidiEvent(new MetaMessage(META_TEMPO, tempo, tempo.length), 0));
+        Key key = keyOf(chords);
+        if(key != null)
+        {
+            byte[] signature = { (byte)key.getFifths(),
+                    (byte)(Key.MINOR.equals(key.getKeyType()) ? 1 : 0) };
+            conductor.add(new MidiEvent(new MetaMessage(META_KEY_SIGNATURE, signature,
+                    signature.length), 0));
+        }
+
+        for(int voice = 0; voice < voiceCount(chords); voice++)
+        {
+            Track track = sequence.createTrack();
+            byte[] name = voiceName(voice, voiceCount(chords)).getBytes();
+            track.add(new MidiEvent(new MetaMessage(META_TRACK_NAME, name, name.length), 0));
+            for(int i = 0; i < chords.length; i++)
+            {
+                int pitch = chords[i].getNote(voice).getNoteNumber();
+                long tick = (long)i * TICKS_PER_CHORD;
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, voice, pitch,
+                        VELOCITY), tick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, voice, pitch, 0),
+                        tick + TICKS_PER_CHORD));
+            }
+        }
+        return sequence;
+    }
+}
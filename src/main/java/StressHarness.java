@@ -0,0 +1,344 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A soak test for the engine: harmonizes random melodies in every key and reports how often
+ * it fails, hangs or breaks a rule, and how long it takes, by melody length.
+ *
+ * <pre>
+ *   java StressHarness [--trials=N] [--lengths=8,16,32,64] [--timeout=ms] [--threads=N]
+ *                      [--leap=steps] [--parts=SSATBB] [--seed=N]
+ * </pre>
+ *
+ * <p>Melodies come from MelodySampler, cycling through all 30 keys, so every one is in the
+ * scale and range and reaches the chord search.  --trials is per length; millions are fine
+ * for a soak run, the default is enough for a quick look.  Each harmonization runs with a
+ * timeout and is interrupted if it passes it, which counts as a hang.  Every harmony found
+ * is checked by VoiceLeadingValidator, and each rule broken is counted.  --parts harmonizes
+ * in the divided sections VoiceRanges.divide makes, e.g. SSAATTBB for eight parts.
+ *
+ * <p>Each outcome is one of: ok; invalid, a harmony that breaks a rule; failed, the engine
+ * gave up with an error message; hung; or crashed, an exception escaped the engine.  A few
+ * of the melodies that hung or crashed are printed so they can be tried again.  Latency
+ * percentiles cover every harmonization that finished in time.
+ */
+public class StressHarness
+{
+    private static final int EXAMPLES = 3;
+
+    private int trials = 1000;
+    private int[] lengths = { 8, 16, 32, 64 };
+    private long timeoutMillis = 2000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxLeap = MelodySampler.DEFAULT_MAX_LEAP;
+    private VoiceRanges ranges = VoiceRanges.DEFAULT;
+    private long seed = 1;
+
+    public static void main(String[] args) throws Exception
+    {
+        StressHarness harness = new StressHarness();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--trials="))
+                harness.trials = Integer.parseInt(arg.substring("--trials=".length()));
+            else if(arg.startsWith("--lengths="))
+                harness.lengths = parseLengths(arg.substring("--lengths=".length()));
+            else if(arg.startsWith("--timeout="))
+                harness.timeoutMillis = Long.parseLong(arg.substring("--timeout=".length()));
+            else if(arg.startsWith("--threads="))
+                harness.threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if(arg.startsWith("--leap="))
+                harness.maxLeap = Integer.parseInt(arg.substring("--leap=".length()));
+            else if(arg.startsWith("--parts="))
+                harness.ranges = VoiceRanges.DEFAULT.divide(arg.substring("--parts=".length()));
+            else if(arg.startsWith("--seed="))
+                harness.seed = Long.parseLong(arg.substring("--seed=".length()));
+            else
+            {
+                System.out.println("usage: java StressHarness [--trials=N] [--lengths=8,16,32,64] "
+                        + "[--timeout=ms] [--threads=N] [--leap=steps] [--parts=SSATBB] "
+                        + "[--seed=N]");
+                return;
+            }
+        }
+        harness.run();
+    }
+
+    private static int[] parseLengths(String text)
+    {
+        String[] parts = text.split(",");
+        int[] lengths = new int[parts.length];
+        for(int i = 0; i < parts.length; i++)
+            lengths[i] = Integer.parseInt(parts[i].trim());
+        return lengths;
+    }
+
+    private void run() throws InterruptedException, ExecutionException
+    {
+        final Key[] keys = MelodySampler.allKeys();
+        final MelodySampler[] samplers = new MelodySampler[keys.length];
+        final KeyTables[] tables = new KeyTables[keys.length];
+        for(int k = 0; k < keys.length; k++)
+        {
+            samplers[k] = new MelodySampler(keys[k], ranges);
+            samplers[k].setMaxLeap(maxLeap);
+            tables[k] = new KeyTables(keys[k], ChordTransitionModel.getDefault(), ranges);
+        }
+
+        System.out.println(trials + " melodies per length on " + threads + " threads, timeout "
+                + timeoutMillis + " ms, leaps up to " + maxLeap + " steps, " + ranges.getVoiceCount()
+                + " parts, seed " + seed);
+        long started = System.nanoTime();
+
+        final AtomicLong next = new AtomicLong();
+        final long total = (long)trials * lengths.length;
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stress-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            //each thread keeps its own tallies, added together at the end
+            List<Future<Tally[]>> results = new ArrayList<Future<Tally[]>>();
+            for(int t = 0; t < threads; t++)
+                results.add(pool.submit(() -> work(next, total, samplers, tables, watchdog)));
+
+            Tally[] tallies = new Tally[lengths.length];
+            for(int l = 0; l < lengths.length; l++)
+                tallies[l] = new Tally();
+            for(Future<Tally[]> result : results)
+            {
+                Tally[] part = result.get();
+                for(int l = 0; l < lengths.length; l++)
+                    tallies[l].add(part[l]);
+            }
+            report(tallies, System.nanoTime() - started);
+        }
+        finally {
+            pool.shutdownNow();
+            watchdog.shutdownNow();
+        }
+    }
+
+    private Tally[] work(AtomicLong next, long total, MelodySampler[] samplers, KeyTables[] tables,
+            ScheduledExecutorService watchdog)
+    {
+        Tally[] tallies = new Tally[lengths.length];
+        for(int l = 0; l < lengths.length; l++)
+            tallies[l] = new Tally();
+        Watch watch = new Watch();
+
+        for(long trial = next.getAndIncrement(); trial < total; trial = next.getAndIncrement())
+        {
+            int l = (int)(trial % lengths.length);
+            int k = (int)(trial / lengths.length % samplers.length);
+            //the melody depends only on the seed and the trial, so any one can be made again
+            Random random = new Random(seed * 1000003 + trial);
+            int[] melody = samplers[k].sample(lengths[l], random);
+            String notes = samplers[k].toNoteString(melody);
+
+            final int generation = watch.start();
+            ScheduledFuture<?> alarm = watchdog.schedule(() -> watch.fire(generation),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            InferenceEngine engine = null;
+            Throwable crash = null;
+            try {
+                engine = new InferenceEngine(notes, tables[k]);
+            }
+            catch(CancellationException e) {
+                //checked below: only the watchdog interrupts these threads
+            }
+            catch(RuntimeException | StackOverflowError e) {
+                crash = e;
+            }
+            long elapsed = System.nanoTime() - start;
+            alarm.cancel(false);
+            boolean hung = watch.finish();
+
+            Tally tally = tallies[l];
+            if(hung || engine == null && crash == null)
+            {
+                tally.hangs++;
+                tally.example(notes + "(" + samplers[k].getKey().getRootName() + " "
+                        + samplers[k].getKey().getKeyType() + ", hung)");
+            }
+            else if(crash != null)
+            {
+                tally.crashes++;
+                tally.example(notes + "(" + samplers[k].getKey().getRootName() + " "
+                        + samplers[k].getKey().getKeyType() + ", " + crash + ")");
+            }
+            else
+            {
+                tally.latency(elapsed);
+                if(engine.checkForError())
+                {
+                    tally.failed++;
+                }
+                else
+                {
+                    int broken = VoiceLeadingValidator.validate(engine.getChords(), melody,
+                            samplers[k].getKey(), ranges);
+                    if(broken == 0)
+                        tally.ok++;
+                    else
+                        tally.invalid++;
+                    for(int rule = 0; rule < VoiceLeadingValidator.RULES; rule++)
+                    {
+                        if((broken & 1 << rule) != 0)
+                            tally.broken[rule]++;
+                    }
+                }
+            }
+        }
+        return tallies;
+    }
+
+    private void report(Tally[] tallies, long elapsed)
+    {
+        System.out.println();
+        System.out.println("length   trials     ok%  invalid%  failed%   hangs  crashes    p50(ms)    p99(ms)   p999(ms)");
+        for(int l = 0; l < lengths.length; l++)
+        {
+            Tally tally = tallies[l];
+            long count = tally.ok + tally.invalid + tally.failed + tally.hangs + tally.crashes;
+            long[] latencies = Arrays.copyOf(tally.latencies, tally.finished);
+            Arrays.sort(latencies);
+            System.out.println(String.format("%6d %8d  %6.2f  %8.2f  %7.2f  %6d  %7d  %9.3f  %9.3f  %9.3f",
+                    lengths[l], count, percent(tally.ok, count), percent(tally.invalid, count),
+                    percent(tally.failed, count), tally.hangs, tally.crashes,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999)));
+        }
+
+        System.out.println();
+        System.out.println("rules broken, as a share of the harmonies found:");
+        for(int rule = 0; rule < VoiceLeadingValidator.RULES; rule++)
+        {
+            StringBuilder line = new StringBuilder(String.format("  %-20s", VoiceLeadingValidator.getRuleName(rule)));
+            for(int l = 0; l < lengths.length; l++)
+            {
+                long found = tallies[l].ok + tallies[l].invalid;
+                line.append(String.format("  %6.2f%%", percent(tallies[l].broken[rule], found)));
+            }
+            System.out.println(line);
+        }
+
+        for(int l = 0; l < lengths.length; l++)
+        {
+            for(String example : tallies[l].examples)
+                System.out.println("  " + example);
+        }
+        System.out.println(String.format("%nfinished in %.1f s", elapsed / 1e9));
+    }
+
+    private static double percent(long part, long whole)
+    {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    /**
+     * @return the latency below which the given share of the sorted latencies fall, in ms
+     */
+    private static double percentile(long[] sorted, double share)
+    {
+        if(sorted.length == 0)
+            return 0;
+        int index = (int)Math.ceil(share * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * What happened to the melodies of one length on one thread.
+     */
+    private static class Tally
+    {
+        long ok;
+        long invalid;
+        long failed;
+        long hangs;
+        long crashes;
+        final long[] broken = new long[VoiceLeadingValidator.RULES];
+        long[] latencies = new long[1024];	//in ns, of every run that finished in time
+        int finished;
+        final List<String> examples = new ArrayList<String>();
+
+        void latency(long nanos)
+        {
+            if(finished == latencies.length)
+                latencies = Arrays.copyOf(latencies, finished * 2);
+            latencies[finished++] = nanos;
+        }
+
+        void example(String text)
+        {
+            if(examples.size() < EXAMPLES)
+                examples.add(text);
+        }
+
+        void add(Tally other)
+        {
+            ok += other.ok;
+            invalid += other.invalid;
+            failed += other.failed;
+            hangs += other.hangs;
+            crashes += other.crashes;
+            for(int rule = 0; rule < broken.length; rule++)
+                broken[rule] += other.broken[rule];
+            for(int i = 0; i < other.finished; i++)
+                latency(other.latencies[i]);
+            for(String text : other.examples)
+                example(text);
+        }
+    }
+
+    /**
+     * Lets the watchdog interrupt one harmonization and no other.  Each start() begins a new
+     * generation, and an alarm left over from an earlier one is ignored.
+     */
+    private static class Watch
+    {
+        private Thread runner;
+        private int generation;
+        private boolean fired;
+
+        synchronized int start()
+        {
+            runner = Thread.currentThread();
+            fired = false;
+            return ++generation;
+        }
+
+        synchronized void fire(int alarmGeneration)
+        {
+            if(runner != null && alarmGeneration == generation)
+            {
+                fired = true;
+                runner.interrupt();
+            }
+        }
+
+        /**
+         * @return true if the watchdog interrupted this harmonization
+         */
+        synchronized boolean finish()
+        {
+            runner = null;
+            Thread.interrupted();
+            return fired;
+        }
+    }
+}
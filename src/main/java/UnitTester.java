@@ -57,5 +57,18 @@ public class UnitTester {
         System.out.println(HGNote4 + " has become " + converted10);
         System.out.println(HGNote5 + " has become " + converted11);
         System.out.println(HGNote6 + " has become " + converted12);
+        System.out.println();
+        
+        //numbered repeat endings aren't chords, so every note of the tune is kept
+        String repeatEndings = "X:1\nT:Endings\nK:G\n|:GABc dedB|[1 GABG A2 D2:|[2 GBAF G4|]\n";
+        try {
+            AbcTune tune = new AbcReader(new java.io.ByteArrayInputStream(
+                    repeatEndings.getBytes(java.nio.charset.StandardCharsets.US_ASCII))).next();
+            int count = tune.getNotes().trim().split(" +").length;
+            System.out.println("Repeat endings: " + tune.getNotes().trim() + " (" + count 
+                    + " notes, expected 19)");
+        } catch(java.io.IOException e) {
+            System.out.println("Repeat endings: " + e);
+        }
     }
 }
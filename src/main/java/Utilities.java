@@ -1,9 +1,21 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
 /**
  * A class to hold all the conversion methods for HarmoGen.  Methods are static.
  *
  * @author Alec LaLonde
  */
 public class Utilities {
+    
+    private final static String NOTES_AS_SHARPS[] =
+		{ "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+	
+	private final static String NOTES_AS_FLATS[] =
+		{ "C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab", "A", "Bb", "B" };
+	
+	private final static int octaveSize = 12;
 
     /**
      * Creates string representations for HarmoGen-generated Notes.
@@ -128,18 +140,9 @@ public class Utilities {
 	
 	public static int findOctave(int harmonyNote)
 	{
-	    int octave;
-	    
 	    if( harmonyNote < 53 ) 
-	        octave = 3;	        
-	    else if( harmonyNote < 60 )
-	        octave = 4;
-	    else if( harmonyNote < 67)
-	        octave = 5;
-	    else 
-	        octave = 6;
-	    
-	    return octave;
+	        return 3;
+	    return 3 + (harmonyNote - 46) / 7;	//7 harmony numbers to an octave from C3 = 46
 	}
 	    
 	/**
@@ -228,13 +231,14 @@ public class Utilities {
 	{
 	    int scaleID12 = noteID12 - root + 1;
 	    if( scaleID12 <= 0) scaleID12 = scaleID12 + 12;
+	    if( scaleID12 > 12 ) scaleID12 = scaleID12 - 12;	//Cb's root is numbered 0
 	    
 	    return scaleID12;
 	}
 	
 	/**
 	 * Convert a ABC-style note to a HarmoGen-style note (e.g. c' -> C7).
-	 * Only works for soprano notes in the range C5-C7.
+	 * Each ' raises the note an octave and each , lowers it one.
 	 * 
 	 * @param ABCnote the note in ABC notation
 	 * @return the note in HarmoGen notation, and capitalized
@@ -260,17 +264,15 @@ public class Utilities {
 	        bareNote = ABCnote.charAt(0);
 	    }
 	    
-	    if(ABCnote.endsWith("'"))
-	    {
-	        harmoGenNote = harmoGenNote.concat("7");
-	    }
-	    else 
+	    int octave = Character.isUpperCase(bareNote) ? 5 : 6;
+	    for(int i = 0; i < ABCnote.length(); i++)
 	    {
-	        if(Character.isUpperCase(bareNote))
-	            harmoGenNote = harmoGenNote.concat("5");
-	        else
-	            harmoGenNote = harmoGenNote.concat("6");
+	        if(ABCnote.charAt(i) == '\'')
+	            octave++;
+	        else if(ABCnote.charAt(i) == ',')
+	            octave--;
 	    }
+	    harmoGenNote = harmoGenNote.concat(String.valueOf(octave));
 	    
 	    return harmoGenNote;
 	}
@@ -318,4 +320,51 @@ public class Utilities {
 	    
 	    return abcNote;
 	}
+    
+    /**
+     * Read a note string from a text source.  Lines are joined with a space, so notes may be
+     * split across lines.  Runs in time linear in the length of the input.
+     * 
+     * @param in the text to read
+     * @return the notes, separated by spaces
+     */
+    public static String readNotes(Reader in) throws IOException
+    {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader)in 
+                : new BufferedReader(in);
+        StringBuilder notes = new StringBuilder();
+        String nextLine;
+        while( (nextLine = reader.readLine()) != null )
+        {
+            nextLine = nextLine.trim();
+            if(nextLine.length() == 0)
+                continue;
+            if(notes.length() > 0)
+                notes.append(' ');
+            notes.append(nextLine);
+        }
+        return notes.toString();
+    }
+    
+    /**
+     * Convert MIDI note numbers to a HarmoGen note string (e.g. 61 -> C#5 or Db5), spelling
+     * accidentals with sharps or flats according to the key.
+     * 
+     * @param noteNumbers MIDI note numbers, 60 being middle C
+     * @param key the key the notes will be harmonized in
+     * @return the notes, each followed by a space
+     */
+    public static String createNoteString(int[] noteNumbers, Key key)
+    {
+        String[] noteNames = key.getSharpOrFlatKey() == Note.FLAT ? NOTES_AS_FLATS : NOTES_AS_SHARPS;
+        StringBuilder notes = new StringBuilder(noteNumbers.length * 4);
+        
+        for(int i = 0; i < noteNumbers.length; i++)
+        {
+            notes.append(noteNames[noteNumbers[i] % octaveSize]);
+            notes.append(noteNumbers[i] / octaveSize);
+            notes.append(' ');
+        }
+        return notes.toString();
+    }
 }
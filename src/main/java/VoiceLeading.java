@@ -0,0 +1,150 @@
+/**
+ * The part-writing rules between a chord and the one before it, in any number of parts up to
+ * VoiceRanges.MAX_VOICES: no two voices move in parallel fifths or octaves, and no voice moves
+ * past where its neighbour was.  When a section is divided, the rules are relaxed: its parts
+ * may move in unison or octaves and past each other's last notes, as they share one line and
+ * often sing it together, and a voice holding its note while another leaps to an octave or
+ * fifth with it is taken as oblique motion, not a parallel.  These are the rules
+ * VoiceLeadingValidator checks a finished harmony against, so a chord these allow passes
+ * there too.
+ *
+ * <p>Comparing every pair of voices costs a number of tests that grows with the square of the
+ * parts.  Instead a chord is held as one bit mask of voices per pitch class, and the previous
+ * chord as, for each voice, the mask of voices above it an octave away and the mask of those
+ * a fifth higher.  Whether a new note for a voice moves in parallel with any voice above it
+ * is then two ANDs of those masks, the same work in eight parts as in four, so checking a
+ * whole chord grows only with the number of parts.  ChordGen's search places one voice at a
+ * time from the top and asks about each note as it goes.
+ *
+ * <p>Read-only once made, so one can be shared; the masks of the chord being built are the
+ * caller's.
+ */
+public class VoiceLeading
+{
+    private final int[] previous;		//the previous chord's notes, top first, as MIDI numbers
+    private final int[] octaves;		//by voice, the voices above it at an octave or unison before
+    private final int[] fifths;			//by voice, the voices above it a fifth higher before
+    private final boolean[] doubles;	//by voice, whether it shares a section with the one over it
+    private final boolean oblique;		//whether a held note never makes a parallel
+
+    public VoiceLeading(Chord previous)
+    {
+        this(pitchesOf(previous), null);
+    }
+
+    /**
+     * @param ranges  the voices the chords are for, whose divided sections may move in octaves,
+     *                or null if every voice is a section of its own
+     */
+    public VoiceLeading(Chord previous, VoiceRanges ranges)
+    {
+        this(pitchesOf(previous), ranges);
+    }
+
+    /**
+     * @param previous  the previous chord's notes, top first, as MIDI numbers
+     */
+    public VoiceLeading(int[] previous)
+    {
+        this(previous, null);
+    }
+
+    /**
+     * @param previous  the previous chord's notes, top first, as MIDI numbers
+     * @param ranges    the voices, or null if every voice is a section of its own
+     */
+    public VoiceLeading(int[] previous, VoiceRanges ranges)
+    {
+        this.previous = previous;
+        octaves = new int[previous.length];
+        fifths = new int[previous.length];
+        doubles = new boolean[previous.length];
+        oblique = ranges != null && ranges.isDivided();
+        int[] byPitchClass = new int[12];
+        for(int v = 0; v < previous.length; v++)
+        {
+            int pitchClass = previous[v] % 12;
+            octaves[v] = byPitchClass[pitchClass];
+            if(ranges != null)
+            {
+                octaves[v] &= ~ranges.getSectionMates(v);
+                doubles[v] = v > 0 && (ranges.getSectionMates(v) & 1 << (v - 1)) != 0;
+            }
+            fifths[v] = byPitchClass[(pitchClass + 7) % 12];
+            byPitchClass[pitchClass] |= 1 << v;
+        }
+    }
+
+    /**
+     * @return a chord's notes, top first, as MIDI numbers
+     */
+    public static int[] pitchesOf(Chord chord)
+    {
+        int[] pitches = new int[chord.getVoiceCount()];
+        for(int v = 0; v < pitches.length; v++)
+            pitches[v] = chord.getNote(v).getNoteNumber();
+        return pitches;
+    }
+
+    /**
+     * Would a voice make parallel fifths or octaves with a voice above it?
+     *
+     * @param voice         the voice, counting from 0 at the top
+     * @param pitch         its new note as a MIDI number
+     * @param byPitchClass  the new notes of the voices above it: for each pitch class, a mask
+     *                      with bit v set if voice v sings it
+     * @param moved         the voices above it whose note differs from the previous chord's
+     */
+    public boolean makesParallels(int voice, int pitch, int[] byPitchClass, int moved)
+    {
+        int pitchClass = pitch % 12;
+        int parallel = octaves[voice] & byPitchClass[pitchClass]
+                | fifths[voice] & byPitchClass[(pitchClass + 7) % 12];
+        if(oblique && pitch == previous[voice])
+            return false;		//in divided sections a held note makes no parallel
+        if(oblique || pitch == previous[voice])
+            parallel &= moved;		//then a parallel needs the voice above to move too
+        return parallel != 0;
+    }
+
+    /**
+     * @return true if the voice's new note isn't the one it sang before
+     */
+    public boolean moves(int voice, int pitch)
+    {
+        return pitch != previous[voice];
+    }
+
+    /**
+     * Would a voice move above where the voice over it was, or the voice over it move below
+     * where this one was?
+     *
+     * @param pitch  the voice's new note
+     * @param above  the new note of the voice over it; ignored for the top voice
+     */
+    public boolean overlaps(int voice, int pitch, int above)
+    {
+        return voice > 0 && !doubles[voice]
+                && (pitch > previous[voice - 1] || above < previous[voice]);
+    }
+
+    /**
+     * @param chord  the new chord's notes, top first, as MIDI numbers
+     * @return true if the chord can follow the previous one
+     */
+    public boolean allows(int[] chord)
+    {
+        int[] byPitchClass = new int[12];
+        int moved = 0;
+        for(int v = 0; v < chord.length; v++)
+        {
+            if(makesParallels(v, chord[v], byPitchClass, moved)
+                    || overlaps(v, chord[v], v > 0 ? chord[v - 1] : 0))
+                return false;
+            byPitchClass[chord[v] % 12] |= 1 << v;
+            if(moves(v, chord[v]))
+                moved |= 1 << v;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Checks a finished harmony against the part-writing rules, for testing the engine.  It
+ * shares no code with ChordGen's checks: it works on the MIDI note numbers of the result and
+ * the key's scale alone, so a bug in how the engine numbers or compares notes shows up here
+ * instead of being repeated.  One pass over the chords, no allocation.
+ *
+ * <p>validate() returns the rules broken as a bit mask, one bit per rule below, so a caller
+ * can count how often each rule is broken.
+ */
+public class VoiceLeadingValidator
+{
+    public static final int SOPRANO_CHANGED = 0;		//the soprano doesn't sing the melody
+    public static final int VOICES_OUT_OF_ORDER = 1;	//a voice is above the one over it
+    public static final int WIDE_SPACING = 2;		//more than an octave between upper voices
+    public static final int NOT_A_CHORD = 3;		//the notes aren't a triad of the key with its
+    												//root and third, or a seventh on the fifth
+    												//or seventh degree with its root, third
+    												//and seventh
+    public static final int PARALLEL_FIFTHS = 4;
+    public static final int PARALLEL_OCTAVES = 5;
+    public static final int OVERLAP = 6;			//a voice moves past where its neighbour was
+    public static final int RULES = 7;
+
+    private static final String[] RULE_NAMES = { "soprano changed", "voices out of order",
+            "wide spacing", "not a chord", "parallel fifths", "parallel octaves", "overlap" };
+
+    /**
+     * @return the name of a rule, for reports
+     */
+    public static String getRuleName(int rule)
+    {
+        return RULE_NAMES[rule];
+    }
+
+    /**
+     * Check a harmony, in four parts or more.  In more parts the wide spacing rule applies to
+     * every pair of neighbouring voices above the bass, and every voice is taken as a section
+     * of its own.
+     *
+     * @param chords   the harmony, one chord per melody note
+     * @param melody   the melody as MIDI note numbers
+     * @param key      the key it was harmonized in
+     * @return the rules broken, as a mask with bit r set for rule r; 0 if the harmony is sound
+     */
+    public static int validate(Chord[] chords, int[] melody, Key key)
+    {
+        return validate(chords, melody, key, null);
+    }
+
+    /**
+     * Check a harmony for the given voices.  The parts of a divided section may move in
+     * unison or octaves and past each other's last notes, and those of the bass section may
+     * be more than an octave below the voice over them.  When any section is divided, a voice
+     * holding its note makes no parallel with one that moves.
+     *
+     * @param ranges  the voices it was harmonized for, or null if each is a section of its own
+     */
+    public static int validate(Chord[] chords, int[] melody, Key key, VoiceRanges ranges)
+    {
+        //the pitch classes of each triad of the key and the two seventh chords, as 12-bit
+        //masks, and the tones each needs
+        int[] vocabulary = new int[9];
+        int[] required = new int[9];
+        for(int degree = 0; degree < 7; degree++)
+        {
+            int root = 1 << key.getPitchClass(degree + 1);
+            int third = 1 << key.getPitchClass((degree + 2) % 7 + 1);
+            int fifth = 1 << key.getPitchClass((degree + 4) % 7 + 1);
+            vocabulary[degree] = root | third | fifth;
+            required[degree] = root | third;
+        }
+        for(int i = 0; i < 2; i++)
+        {
+            int degree = i == 0 ? 4 : 6;		//the fifth and seventh degrees
+            int seventh = 1 << key.getPitchClass((degree + 6) % 7 + 1);
+            vocabulary[7 + i] = vocabulary[degree] | seventh;
+            required[7 + i] = required[degree] | seventh;
+        }
+
+        int broken = 0;
+        int voices = chords.length > 0 ? chords[0].getVoiceCount() : 4;
+        int[] previous = new int[voices];
+        int[] current = new int[voices];
+        //lowest voice first, as below: the voices each may double, and those free of the
+        //spacing rule
+        int[] mates = new int[voices];
+        int free = 1;
+        for(int v = 0; v < voices && ranges != null; v++)
+        {
+            int top = voices - 1 - v;
+            for(int other = 0; other < voices; other++)
+            {
+                if((ranges.getSectionMates(top) & 1 << (voices - 1 - other)) != 0)
+                    mates[v] |= 1 << other;
+            }
+            if(ranges.isBass(top))
+                free |= 1 << v;
+        }
+        for(int i = 0; i < chords.length; i++)
+        {
+            //lowest voice first
+            for(int v = 0; v < voices; v++)
+                current[v] = chords[i].getNote(voices - 1 - v).getNoteNumber();
+
+            if(i >= melody.length || current[voices - 1] != melody[i])
+                broken |= 1 << SOPRANO_CHANGED;
+
+            int sounding = 0;
+            for(int v = 0; v < voices; v++)
+            {
+                sounding |= 1 << current[v] % 12;
+                if(v > 0 && current[v] < current[v - 1])
+                    broken |= 1 << VOICES_OUT_OF_ORDER;
+                if(v > 0 && (free & 1 << (v - 1)) == 0 && current[v] - current[v - 1] > 12)
+                    broken |= 1 << WIDE_SPACING;
+            }
+
+            boolean chord = false;
+            for(int c = 0; c < vocabulary.length && !chord; c++)
+                chord = (sounding & ~vocabulary[c]) == 0 && (sounding & required[c]) == required[c];
+            if(!chord)
+                broken |= 1 << NOT_A_CHORD;
+
+            if(i > 0)
+                broken |= checkMotion(previous, current, mates,
+                        ranges != null && ranges.isDivided());
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return broken;
+    }
+
+    /**
+     * The rules between two chords, lowest voice first.
+     *
+     * @param mates  by voice, the voices in its section, which it may move in octaves with
+     *               and overlap
+     * @param oblique  whether a voice holding its note is never in parallel with another
+     */
+    private static int checkMotion(int[] previous, int[] current, int[] mates, boolean oblique)
+    {
+        int broken = 0;
+        int voices = current.length;
+        for(int lower = 0; lower < voices; lower++)
+        {
+            if(lower < voices - 1 && (mates[lower] & 1 << (lower + 1)) == 0
+                    && (current[lower] > previous[lower + 1] || current[lower + 1] < previous[lower]))
+                broken |= 1 << OVERLAP;
+            for(int upper = lower + 1; upper < voices; upper++)
+            {
+                //repeating the same two notes is not a parallel, nor in divided sections is
+                //one voice holding its note
+                boolean lowerHolds = previous[lower] == current[lower];
+                boolean upperHolds = previous[upper] == current[upper];
+                if(lowerHolds && upperHolds || oblique && (lowerHolds || upperHolds))
+                    continue;
+                int before = (previous[upper] - previous[lower]) % 12;
+                int after = (current[upper] - current[lower]) % 12;
+                if(before == 7 && after == 7)
+                    broken |= 1 << PARALLEL_FIFTHS;
+                if(before == 0 && after == 0 && (mates[lower] & 1 << upper) == 0)
+                    broken |= 1 << PARALLEL_OCTAVES;
+            }
+        }
+        return broken;
+    }
+}
@@ -0,0 +1,294 @@
+import java.util.Arrays;
+
+/**
+ * The lowest and highest note each of the four voices may sing, as MIDI note numbers with
+ * middle C as 60.  DEFAULT is the range HarmoGen has always used; a choir with other voices,
+ * a children's choir or a male-voice ensemble, asks for its own, e.g.
+ *
+ * <pre>
+ *   soprano=C5-G6,alto=G4-D6,tenor=C4-G5,bass=G3-C5
+ * </pre>
+ *
+ * <p>divide() makes ranges for more parts, from three to MAX_VOICES, by splitting sections:
+ * "SSATBB" gives two sopranos and two basses each with the soprano's and bass's range.  The
+ * voices are numbered from the top, as Chord numbers them.  The parts of a divided section
+ * know they belong together, so the part-writing rules can let them double each other.
+ *
+ * <p>KeyTables.get() builds and caches the tables for each key and set of ranges, so a set of
+ * ranges used by many requests is only compiled once.  Immutable, with equals() and hashCode()
+ * by value so it can be part of a cache key.
+ */
+public class VoiceRanges
+{
+    //the notes KeyTables can give the voices: C3 to C9
+    public static final int LOWEST = 36;
+    public static final int HIGHEST = 108;
+    public static final int MIN_VOICES = 3;
+    public static final int MAX_VOICES = 8;
+
+    //before DEFAULT, which names its voices with them
+    private static final String[] VOICE_NAMES = { "soprano", "alto", "tenor", "bass" };
+
+    public static final VoiceRanges DEFAULT = new VoiceRanges(
+            new int[] { 60, 48, 40, 36 }, new int[] { 84, 84, 76, 67 });
+
+    private static final String SECTIONS = "SATB";
+    private static final int[] LETTER_PITCHES = { 9, 11, 0, 2, 4, 5, 7 };	//A to G, from C
+
+    private final String[] names;
+    private final int[] low;
+    private final int[] high;
+    private final int[] sections;		//by voice, 0 (soprano) to 3 (bass), or above for a
+    									//voice by another name, a section to itself
+
+    /**
+     * @param low   the lowest note of each voice, by Chord.SOPRANO to Chord.BASS
+     * @param high  the highest note of each voice
+     * @throws IllegalArgumentException if a range is empty or outside LOWEST to HIGHEST
+     */
+    public VoiceRanges(int[] low, int[] high)
+    {
+        this(VOICE_NAMES, low, high);
+    }
+
+    /**
+     * @param names  what to call each voice, top first
+     * @param low    the lowest note of each voice
+     * @param high   the highest note of each voice
+     * @throws IllegalArgumentException if there are too few or too many voices, or a range is
+     *         empty or outside LOWEST to HIGHEST
+     */
+    public VoiceRanges(String[] names, int[] low, int[] high)
+    {
+        if(names.length < MIN_VOICES || names.length > MAX_VOICES || low.length != names.length
+                || high.length != names.length)
+            throw new IllegalArgumentException("Need a range for each of " + MIN_VOICES + " to "
+                    + MAX_VOICES + " voices");
+        for(int v = 0; v < names.length; v++)
+        {
+            if(low[v] > high[v] || low[v] < LOWEST || high[v] > HIGHEST)
+                throw new IllegalArgumentException("Bad " + names[v] + " range: " + low[v]
+                        + "-" + high[v] + " (notes must be from " + LOWEST + " to " + HIGHEST + ")");
+        }
+        this.names = names.clone();
+        this.low = low.clone();
+        this.high = high.clone();
+
+        //by the name, less the number divide() gives the parts of a divided section
+        sections = new int[names.length];
+        for(int v = 0; v < names.length; v++)
+        {
+            String section = names[v].replaceAll("[0-9]+$", "");
+            sections[v] = VOICE_NAMES.length + v;
+            for(int i = 0; i < VOICE_NAMES.length; i++)
+            {
+                if(VOICE_NAMES[i].equalsIgnoreCase(section))
+                    sections[v] = i;
+            }
+        }
+    }
+
+    /**
+     * Read ranges as toString() writes them: a comma-separated list of voice=low-high, each
+     * note a MIDI number or a name such as C#5.  Voices left out keep their DEFAULT range.
+     *
+     * @return the ranges, or DEFAULT for null or an empty string
+     * @throws IllegalArgumentException if the text can't be read or a range is bad
+     */
+    public static VoiceRanges parse(String text)
+    {
+        if(text == null || text.trim().length() == 0)
+            return DEFAULT;
+        int[] low = DEFAULT.low.clone();
+        int[] high = DEFAULT.high.clone();
+        for(String part : text.split(","))
+        {
+            int equals = part.indexOf('=');
+            int dash = part.indexOf('-', equals + 2);
+            if(equals < 0 || dash < 0)
+                throw new IllegalArgumentException("Voice range should be voice=low-high: " + part);
+            int voice = voiceOf(part.substring(0, equals).trim());
+            low[voice] = parseNote(part.substring(equals + 1, dash).trim());
+            high[voice] = parseNote(part.substring(dash + 1).trim());
+        }
+        return new VoiceRanges(low, high);
+    }
+
+    /**
+     * Split four-part ranges into more parts.  The top part of a section has the section's
+     * range.  The parts under it sing lower, as a second soprano does, so they reach halfway
+     * down to the lowest note of the section below; otherwise a melody near the bottom of the
+     * soprano range would leave the second soprano nowhere to go.
+     *
+     * @param sections  one letter per part, S, A, T or B, top first, e.g. "SSATBB"
+     * @return the parts' ranges, named e.g. soprano1, soprano2, alto, tenor, bass1, bass2
+     * @throws IllegalArgumentException if a letter isn't a section, the sections aren't in
+     *         order or there are too few or too many
+     */
+    public VoiceRanges divide(String sections)
+    {
+        if(low.length != 4)
+            throw new IllegalArgumentException("Only four-part ranges can be divided");
+        String letters = sections.trim().toUpperCase();
+        int count = letters.length();
+        String[] parts = new String[count];
+        int[] partLow = new int[count];
+        int[] partHigh = new int[count];
+        for(int i = 0; i < count; i++)
+        {
+            int section = SECTIONS.indexOf(letters.charAt(i));
+            if(section < 0 || (i > 0 && section < SECTIONS.indexOf(letters.charAt(i - 1))))
+                throw new IllegalArgumentException("Parts should be S, A, T and B, top first: "
+                        + sections);
+            //numbered only if the section is divided
+            int first = letters.indexOf(letters.charAt(i));
+            boolean divided = letters.lastIndexOf(letters.charAt(i)) > first;
+            parts[i] = VOICE_NAMES[section] + (divided ? String.valueOf(i - first + 1) : "");
+            partLow[i] = low[section];
+            if(i > first && section < SECTIONS.length() - 1)
+                partLow[i] = (low[section] + low[section + 1]) / 2;
+            partHigh[i] = high[section];
+        }
+        return new VoiceRanges(parts, partLow, partHigh);
+    }
+
+    private static int voiceOf(String name)
+    {
+        for(int v = Chord.SOPRANO; v <= Chord.BASS; v++)
+        {
+            if(VOICE_NAMES[v].equalsIgnoreCase(name))
+                return v;
+        }
+        throw new IllegalArgumentException("Unknown voice: " + name);
+    }
+
+    /**
+     * @return the MIDI number of a note written as a number or as e.g. "Bb4"
+     */
+    private static int parseNote(String note)
+    {
+        if(note.length() > 0 && Character.isDigit(note.charAt(0)))
+            return Integer.parseInt(note);
+        if(note.length() < 2 || "ABCDEFG".indexOf(Character.toUpperCase(note.charAt(0))) < 0)
+            throw new IllegalArgumentException("Invalid note: " + note);
+        int pitch = LETTER_PITCHES[Character.toUpperCase(note.charAt(0)) - 'A'];
+        int at = 1;
+        if(note.charAt(at) == '#')
+        {
+            pitch++;
+            at++;
+        }
+        else if(note.charAt(at) == 'b')
+        {
+            pitch--;
+            at++;
+        }
+        try {
+            return Integer.parseInt(note.substring(at)) * 12 + pitch;
+        }
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid note: " + note);
+        }
+    }
+
+    public int getVoiceCount()
+    {
+        return low.length;
+    }
+
+    /**
+     * @return what the voice is called, e.g. "alto" or "bass2"
+     */
+    public String getName(int voice)
+    {
+        return names[voice];
+    }
+
+    /**
+     * @param voice  Chord.SOPRANO to Chord.BASS, or in more parts the voice's number from the top
+     */
+    public int getLow(int voice)
+    {
+        return low[voice];
+    }
+
+    public int getHigh(int voice)
+    {
+        return high[voice];
+    }
+
+    /**
+     * @return the voices other than this one in its section, a bit per voice; 0 unless the
+     *         section is divided
+     */
+    public int getSectionMates(int voice)
+    {
+        int mates = 0;
+        for(int v = 0; v < sections.length; v++)
+        {
+            if(v != voice && sections[v] == sections[voice])
+                mates |= 1 << v;
+        }
+        return mates;
+    }
+
+    /**
+     * @return true if some section is sung by more than one part
+     */
+    public boolean isDivided()
+    {
+        for(int v = 0; v < sections.length; v++)
+        {
+            if(getSectionMates(v) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the voice is the bass or a part of a divided bass section
+     */
+    public boolean isBass(int voice)
+    {
+        return sections[voice] == sections[sections.length - 1];
+    }
+
+    /**
+     * @param noteNumber  a MIDI note number
+     * @return true if the voice may sing it
+     */
+    public boolean contains(int voice, int noteNumber)
+    {
+        return noteNumber >= low[voice] && noteNumber <= high[voice];
+    }
+
+    public boolean equals(Object other)
+    {
+        if(!(other instanceof VoiceRanges))
+            return false;
+        VoiceRanges ranges = (VoiceRanges)other;
+        return Arrays.equals(low, ranges.low) && Arrays.equals(high, ranges.high)
+                && Arrays.equals(names, ranges.names);
+    }
+
+    public int hashCode()
+    {
+        return 31 * Arrays.hashCode(low) + Arrays.hashCode(high);
+    }
+
+    /**
+     * @return the ranges as parse() reads them, in MIDI numbers; in more than four parts parse()
+     *         can't read it back, but divide() can make it again
+     */
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder();
+        for(int v = 0; v < low.length; v++)
+        {
+            if(v > 0)
+                text.append(',');
+            text.append(names[v]).append('=').append(low[v]).append('-').append(high[v]);
+        }
+        return text.toString();
+    }
+}